@@ -3,21 +3,106 @@ package bthomas.hexmap.logging;
 import bthomas.hexmap.Main;
 
 import java.io.*;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IllegalFormatException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * Logger base for Hexmap
  * Sets up logging to output to both a file and STD out as applicable
  *
+ * Messages below the logger's level are thrown away before anything is built for them, and the format overload of
+ * log only formats messages that are kept. Once started asynchronously, callers only copy their message into a slot of
+ * a preallocated ring buffer, and a writer thread formats and writes everything waiting in one batch. What happens when
+ * the buffer is full is set by the logger's FullPolicy, and counted either way.
+ *
+ * The writer thread can also rotate the log file once it gets too big or a new day starts. The old file is renamed to
+ * name.date.n.txt, where date is the day it was started, and a separate archiver thread gzips it and deletes the oldest
+ * archives beyond the number kept, so neither callers nor the writer wait for the compression.
+ *
  * @author Brendan Thomas
  * @since 2019-03-13
  */
 public class HexmapLogger {
 	public static final String INFO = "[INFO]: ", DEBUG = "[DEBUG]: ", ERROR = "[ERROR]: ", SEVERE = "[SEVERE]: ";
 
+	/**
+	 * What a caller does when the asynchronous buffer is full
+	 */
+	public enum FullPolicy {
+		//DEBUG and INFO messages are thrown away and counted, ERROR and SEVERE messages wait for room
+		DROP,
+		//every message waits for room
+		BLOCK
+	}
+
+	//the writer wakes up at least this often even if nobody signals it
+	private static final long WRITER_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+	//how long a full caller backs off before checking again
+	private static final long FULL_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+	//a batch is written early once it gets this big
+	private static final int MAX_BATCH_CHARS = 64 * 1024;
+	private static final long CLOSE_TIMEOUT_MILLIS = 5000;
+	private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+	private static final class Slot {
+		//the sequence number of the message in this slot once it is ready to be written, guards the other fields
+		volatile long published = -1;
+		String level;
+		String message;
+		Object[] args;
+	}
+
 	private PrintWriter outputFile;
 	private boolean writeToSTD;
+	private final Path logPath;
+	//matches the archives of this log, giving their date and number
+	private final Pattern archivePattern;
+	private volatile int minRank = rank(DEBUG);
+
+	//only set while logging asynchronously, slots is set last so the rest are seen once it is
+	private volatile Slot[] slots;
+	private int mask;
+	private FullPolicy fullPolicy;
+	private volatile Thread writer;
+	//the next sequence number to be claimed by a caller, the next one the writer will take, and the first one it has
+	//not written out yet
+	private final AtomicLong claimed = new AtomicLong();
+	private volatile long consumed = 0;
+	private volatile long written = 0;
+	private volatile boolean writerSleeping = false;
+	private volatile boolean closing = false;
+
+	private final LongAdder logged = new LongAdder();
+	private final LongAdder dropped = new LongAdder();
+	private final LongAdder waited = new LongAdder();
+	//only used by the writer
+	private long droppedReported = 0;
+
+	//rotation settings, only used once logging asynchronously. Sizes are counted in characters, which is close enough
+	private long rotateBytes = 0;
+	private boolean rotateDaily = false;
+	private int keepArchives = 0;
+	private ExecutorService archiver;
+	//the size of the current file, the day it was started and when the next day starts, only used by the writer
+	private long fileBytes = 0;
+	private LocalDate fileDate = LocalDate.now();
+	private long nextDayMillis;
 
 	/**
 	 * Standard constructor, creates an output file with a given name,
@@ -30,6 +115,9 @@ public class HexmapLogger {
 	public HexmapLogger(String logName, boolean writeToSTD) {
 		this.writeToSTD = writeToSTD;
 		File logfile = new File(logName + ".txt");
+		logPath = logfile.toPath();
+		archivePattern = Pattern.compile(Pattern.quote(new File(logName).getName())
+				+ "\\.(\\d{4}-\\d{2}-\\d{2})\\.(\\d{1,9})\\.txt(\\.gz)?");
 
 		//move and replace current file with old file if necessary
 		if(logfile.exists()) {
@@ -65,6 +153,86 @@ public class HexmapLogger {
 		return writer.toString();
 	}
 
+	/**
+	 * Sets the least important level that is still logged, messages at lower levels are thrown away
+	 *
+	 * @param level One of DEBUG, INFO, ERROR or SEVERE
+	 */
+	public void setLevel(String level) {
+		minRank = rank(level);
+	}
+
+	/**
+	 * Checks if messages at a level are logged, so callers can skip building a message that would be thrown away
+	 *
+	 * @param level The info level to check
+	 * @return True if messages at the level are logged
+	 */
+	public boolean isEnabled(String level) {
+		return rank(level) >= minRank;
+	}
+
+	/**
+	 * Sets when the log file is rotated. Rotation is done by the writer thread, so this only has an effect if it is
+	 * called before startAsync.
+	 *
+	 * @param maxBytes The size the file can reach before it is rotated, or 0 for no limit
+	 * @param daily Whether the file is rotated when a new day starts
+	 * @param keepArchives How many rotated files are kept, or 0 to keep them all
+	 */
+	public synchronized void setRotation(long maxBytes, boolean daily, int keepArchives) {
+		if(writer != null) {
+			return;
+		}
+		rotateBytes = maxBytes;
+		rotateDaily = daily;
+		this.keepArchives = keepArchives;
+	}
+
+	/**
+	 * Switches to logging asynchronously, so callers no longer wait for the message to be written.
+	 * Does nothing if the logger is already asynchronous.
+	 *
+	 * @param capacity How many messages can wait to be written, rounded up to a power of two
+	 * @param fullPolicy What callers do when that many are already waiting
+	 */
+	public synchronized void startAsync(int capacity, FullPolicy fullPolicy) {
+		if(writer != null || closing) {
+			return;
+		}
+
+		int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+		Slot[] slots = new Slot[size];
+		for(int i = 0; i < size; i++) {
+			slots[i] = new Slot();
+		}
+		this.mask = size - 1;
+		this.fullPolicy = fullPolicy;
+
+		//anything already written synchronously goes out before the writer starts adding to the file
+		outputFile.flush();
+		if(rotateBytes > 0 || rotateDaily) {
+			try {
+				fileBytes = Files.size(logPath);
+			}
+			catch (IOException e) {
+				fileBytes = 0;
+			}
+			startDay();
+			archiver = Executors.newSingleThreadExecutor(task -> {
+				Thread archiverThread = new Thread(task, "Hexmap log archiver");
+				archiverThread.setDaemon(true);
+				return archiverThread;
+			});
+			//finish off anything a previous run rotated but did not get to compress
+			archiver.execute(this::archiveLeftovers);
+		}
+		writer = new Thread(() -> runWriter(slots), "Hexmap log writer");
+		writer.setDaemon(true);
+		writer.start();
+		this.slots = slots;
+	}
+
 	/**
 	 * Logs a message with this logger
 	 *
@@ -72,17 +240,384 @@ public class HexmapLogger {
 	 * @param message The message to log
 	 */
 	public void log(String level, String message) {
-		outputFile.println(level + message);
-		if(writeToSTD) {
-			System.out.println(level + message);
+		if(isEnabled(level)) {
+			publish(level, message, null);
+		}
+	}
+
+	/**
+	 * Logs a message built with String.format, which is only formatted if the level is logged.
+	 * When logging asynchronously the formatting is done by the writer thread, so the arguments must not be changed
+	 * after the call.
+	 *
+	 * @param level The info level to mark this message as
+	 * @param format The format string of the message
+	 * @param args The arguments referenced by the format string
+	 */
+	public void log(String level, String format, Object... args) {
+		if(isEnabled(level)) {
+			publish(level, format, args);
 		}
 	}
 
+	/**
+	 * Waits until everything logged so far has been written out
+	 */
 	public void flush() {
-		outputFile.flush();
+		Thread writer = this.writer;
+		if(writer == null) {
+			outputFile.flush();
+			return;
+		}
+
+		long target = claimed.get();
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(CLOSE_TIMEOUT_MILLIS);
+		while(written < target && writer.isAlive() && System.nanoTime() < deadline) {
+			LockSupport.unpark(writer);
+			LockSupport.parkNanos(FULL_PARK_NANOS);
+		}
 	}
 
+	/**
+	 * Writes out everything logged so far and closes the log file
+	 */
 	public void close() {
+		Thread writer;
+		ExecutorService archiver;
+		synchronized(this) {
+			closing = true;
+			writer = this.writer;
+			archiver = this.archiver;
+		}
+
+		if(writer != null) {
+			LockSupport.unpark(writer);
+			try {
+				writer.join(CLOSE_TIMEOUT_MILLIS);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
 		outputFile.close();
+
+		if(archiver != null) {
+			archiver.shutdown();
+			try {
+				archiver.awaitTermination(CLOSE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * @return A line with the number of messages logged, dropped and waited for, and how full the buffer is
+	 */
+	public String report() {
+		Slot[] slots = this.slots;
+		if(slots == null) {
+			return String.format("logger: %d messages, synchronous", logged.sum());
+		}
+		return String.format("logger: %d messages, %d dropped, %d waited for room, buffer %d of %d",
+				logged.sum(), dropped.sum(), waited.sum(), Math.max(0, claimed.get() - consumed), slots.length);
+	}
+
+	private void publish(String level, String message, Object[] args) {
+		Slot[] slots = this.slots;
+		if(slots == null) {
+			String line = level + format(message, args);
+			outputFile.println(line);
+			if(writeToSTD) {
+				System.out.println(line);
+			}
+			logged.increment();
+			return;
+		}
+
+		//claim a sequence number, only once its slot has been written out by the writer
+		long seq;
+		boolean counted = false;
+		while(true) {
+			seq = claimed.get();
+			if(seq - consumed >= slots.length) {
+				if(fullPolicy == FullPolicy.DROP && rank(level) < rank(ERROR)) {
+					dropped.increment();
+					return;
+				}
+				if(!counted) {
+					waited.increment();
+					counted = true;
+				}
+				if(!writer.isAlive()) {
+					dropped.increment();
+					return;
+				}
+				LockSupport.unpark(writer);
+				LockSupport.parkNanos(FULL_PARK_NANOS);
+				continue;
+			}
+			if(claimed.compareAndSet(seq, seq + 1)) {
+				break;
+			}
+		}
+
+		Slot slot = slots[(int) seq & mask];
+		slot.level = level;
+		slot.message = message;
+		slot.args = args;
+		slot.published = seq;
+		logged.increment();
+		if(writerSleeping) {
+			LockSupport.unpark(writer);
+		}
+	}
+
+	private void runWriter(Slot[] slots) {
+		StringBuilder batch = new StringBuilder(MAX_BATCH_CHARS);
+		String separator = System.lineSeparator();
+		while(true) {
+			long next = consumed;
+			Slot slot = slots[(int) next & mask];
+			if(slot.published != next) {
+				if(batch.length() > 0) {
+					writeBatch(batch);
+				}
+				written = next;
+				if(closing && claimed.get() == next) {
+					break;
+				}
+
+				//check again after saying we are asleep, so a message published in between is not left waiting
+				writerSleeping = true;
+				if(slot.published != next && !closing) {
+					LockSupport.parkNanos(this, WRITER_PARK_NANOS);
+				}
+				writerSleeping = false;
+				continue;
+			}
+
+			batch.append(slot.level).append(format(slot.message, slot.args)).append(separator);
+			slot.level = null;
+			slot.message = null;
+			slot.args = null;
+			//frees the slot for the caller that wraps around to it
+			consumed = next + 1;
+
+			if(batch.length() >= MAX_BATCH_CHARS) {
+				writeBatch(batch);
+				written = next + 1;
+			}
+		}
+	}
+
+	private void writeBatch(StringBuilder batch) {
+		long droppedNow = dropped.sum();
+		if(droppedNow != droppedReported) {
+			batch.append(ERROR).append(droppedNow - droppedReported)
+					.append(" log messages dropped, the log buffer was full").append(System.lineSeparator());
+			droppedReported = droppedNow;
+		}
+
+		if(needsRotation(batch.length())) {
+			rotate();
+		}
+		fileBytes += batch.length();
+		outputFile.print(batch);
+		outputFile.flush();
+		if(writeToSTD) {
+			System.out.print(batch);
+		}
+		batch.setLength(0);
+	}
+
+	/**
+	 * Checks if the current file should be rotated before a batch is added to it, empty files are never rotated
+	 *
+	 * @param batchChars The length of the batch
+	 * @return True if the file should be rotated first
+	 */
+	private boolean needsRotation(int batchChars) {
+		if(archiver == null) {
+			return false;
+		}
+		if(rotateDaily && System.currentTimeMillis() >= nextDayMillis) {
+			if(fileBytes > 0) {
+				return true;
+			}
+			startDay();
+		}
+		return rotateBytes > 0 && fileBytes > 0 && fileBytes + batchChars > rotateBytes;
+	}
+
+	/**
+	 * Renames the current file to the next free archive name, starts a new one and hands the old one to the archiver.
+	 * If the rename fails the writer carries on in the same file, and tries again at the next rotation.
+	 */
+	private void rotate() {
+		outputFile.close();
+		Path archive = nextArchive(fileDate);
+		String problem = null;
+		try {
+			Files.move(logPath, archive);
+		}
+		catch (IOException e) {
+			archive = null;
+			problem = "Could not rotate the log, carrying on in the same file: " + getStackTraceString(e);
+		}
+
+		try {
+			outputFile = new PrintWriter(new BufferedWriter(new FileWriter(logPath.toFile(), archive == null)));
+		}
+		catch (IOException e) {
+			//the closed writer quietly ignores what is written to it, so only the console gets the log until the next
+			//rotation manages to open the file
+			System.out.println(ERROR + "Could not open a new log file: " + getStackTraceString(e));
+		}
+		fileBytes = 0;
+		startDay();
+
+		if(problem != null) {
+			outputFile.println(ERROR + problem);
+		}
+		if(archive != null) {
+			Path rotated = archive;
+			archiver.execute(() -> {
+				compress(rotated);
+				prune();
+			});
+		}
+	}
+
+	private void startDay() {
+		fileDate = LocalDate.now();
+		nextDayMillis = fileDate.plusDays(1).atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli();
+	}
+
+	/**
+	 * @param date The day the file being rotated was started
+	 * @return The first archive name for the day that is not used by an archive, compressed or not
+	 */
+	private Path nextArchive(LocalDate date) {
+		String base = logPath.getFileName().toString();
+		base = base.substring(0, base.length() - ".txt".length()) + "." + date + ".";
+		for(int i = 1; ; i++) {
+			Path archive = logPath.resolveSibling(base + i + ".txt");
+			if(!Files.exists(archive) && !Files.exists(archive.resolveSibling(archive.getFileName() + ".gz"))) {
+				return archive;
+			}
+		}
+	}
+
+	/**
+	 * Gzips a rotated file next to itself, the original is only deleted once the compressed copy is complete
+	 *
+	 * @param file The rotated file to compress
+	 */
+	private void compress(Path file) {
+		Path compressed = file.resolveSibling(file.getFileName() + ".gz");
+		Path temp = file.resolveSibling(file.getFileName() + ".gz.tmp");
+		try {
+			try(InputStream in = Files.newInputStream(file);
+					OutputStream out = new GZIPOutputStream(Files.newOutputStream(temp), COPY_BUFFER_SIZE)) {
+				byte[] buffer = new byte[COPY_BUFFER_SIZE];
+				int read;
+				while((read = in.read(buffer)) > 0) {
+					out.write(buffer, 0, read);
+				}
+			}
+			Files.move(temp, compressed, StandardCopyOption.REPLACE_EXISTING);
+			Files.delete(file);
+		}
+		catch (IOException e) {
+			log(ERROR, "Could not compress old log " + file + ": " + getStackTraceString(e));
+		}
+	}
+
+	/**
+	 * Compresses any archives left uncompressed by a previous run, then deletes old ones
+	 */
+	private void archiveLeftovers() {
+		for(Path archive : listArchives()) {
+			if(!archive.getFileName().toString().endsWith(".gz")) {
+				compress(archive);
+			}
+		}
+		prune();
+	}
+
+	/**
+	 * Deletes the oldest archives beyond the number kept
+	 */
+	private void prune() {
+		if(keepArchives <= 0) {
+			return;
+		}
+		ArrayList<Path> archives = listArchives();
+		for(int i = 0; i < archives.size() - keepArchives; i++) {
+			try {
+				Files.deleteIfExists(archives.get(i));
+			}
+			catch (IOException e) {
+				log(ERROR, "Could not delete old log " + archives.get(i) + ": " + getStackTraceString(e));
+			}
+		}
+	}
+
+	/**
+	 * @return The archives of this log, oldest first
+	 */
+	private ArrayList<Path> listArchives() {
+		ArrayList<Path> archives = new ArrayList<>();
+		Path dir = logPath.toAbsolutePath().getParent();
+		try(DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+			for(Path path : stream) {
+				if(archivePattern.matcher(path.getFileName().toString()).matches()) {
+					archives.add(path);
+				}
+			}
+		}
+		catch (IOException e) {
+			log(ERROR, "Could not list old logs: " + getStackTraceString(e));
+		}
+
+		archives.sort((a, b) -> {
+			Matcher first = archivePattern.matcher(a.getFileName().toString());
+			Matcher second = archivePattern.matcher(b.getFileName().toString());
+			first.matches();
+			second.matches();
+			int byDate = first.group(1).compareTo(second.group(1));
+			if(byDate != 0) {
+				return byDate;
+			}
+			return Integer.compare(Integer.parseInt(first.group(2)), Integer.parseInt(second.group(2)));
+		});
+		return archives;
+	}
+
+	private static String format(String message, Object[] args) {
+		if(args == null) {
+			return message;
+		}
+		try {
+			return String.format(message, args);
+		}
+		catch (IllegalFormatException e) {
+			return message + " " + Arrays.toString(args);
+		}
+	}
+
+	private static int rank(String level) {
+		switch(level) {
+			case DEBUG:
+				return 0;
+			case INFO:
+				return 1;
+			case ERROR:
+				return 2;
+			default:
+				return 3;
+		}
 	}
 }
@@ -1,13 +1,17 @@
 package bthomas.hexmap;
 
 import bthomas.hexmap.common.Scheduling.BasicTaskScheduler;
+import bthomas.hexmap.common.Scheduling.ScheduledTask;
 import bthomas.hexmap.logging.HexmapLogger;
 import bthomas.hexmap.client.Client;
 import bthomas.hexmap.server.Server;
+import bthomas.hexmap.server.ServerConfig;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.JsonParser;
 
+import java.nio.file.Paths;
+
 /***
  * Main class for HexMap, handles Logger creation and command line processing
  *
@@ -43,9 +47,24 @@ public class Main
         scheduler = new BasicTaskScheduler();
     }
 
-    public static void scheduleTask(Runnable task, long executionTime)
+    public static ScheduledTask scheduleTask(Runnable task, long executionTime)
+    {
+        return scheduler.schedule(task, executionTime);
+    }
+
+    public static ScheduledTask scheduleAtFixedRate(Runnable task, long firstTime, long periodMillis)
+    {
+        return scheduler.scheduleAtFixedRate(task, firstTime, periodMillis);
+    }
+
+    public static ScheduledTask scheduleWithFixedDelay(Runnable task, long firstTime, long delayMillis)
+    {
+        return scheduler.scheduleWithFixedDelay(task, firstTime, delayMillis);
+    }
+
+    public static String getSchedulerReport()
     {
-        scheduler.schedule(task, executionTime);
+        return scheduler.report();
     }
 
     public void run()
@@ -54,7 +73,21 @@ public class Main
         {
             if(isServer)
             {
-                Server server = new Server();
+                ServerConfig config = ServerConfig.load(Paths.get("server.properties"));
+                logger.setLevel(config.logLevel.level);
+                if(config.logBufferSize > 0)
+                {
+                    logger.setRotation(config.logRotateMegabytes * 1024L * 1024L, config.logRotateDaily,
+                            config.logKeepArchives);
+                    logger.startAsync(config.logBufferSize, config.logFullPolicy);
+                }
+                else if(config.logRotateMegabytes > 0 || config.logRotateDaily)
+                {
+                    //rotation is done by the writer thread, which synchronous logging doesn't have
+                    logger.log(HexmapLogger.ERROR, "log.bufferSize is 0, so the log will not be rotated or cleaned "
+                            + "up. Set log.rotateMegabytes to 0 and log.rotateDaily to false to hide this warning");
+                }
+                Server server = new Server(config);
                 server.run();
             }
             else
@@ -2,17 +2,24 @@ package bthomas.hexmap.client;
 
 import bthomas.hexmap.Main;
 import bthomas.hexmap.common.Unit;
-import bthomas.hexmap.common.json.JsonConversionException;
+import bthomas.hexmap.common.net.BoardDiffMessage;
+import bthomas.hexmap.common.net.BoardSnapshotMessage;
 import bthomas.hexmap.common.net.ChatMessage;
 import bthomas.hexmap.common.net.CloseMessage;
 import bthomas.hexmap.common.net.CommandMessage;
 import bthomas.hexmap.common.net.HandshakeMessage;
 import bthomas.hexmap.common.net.HexMessage;
 import bthomas.hexmap.common.net.InitMessage;
+import bthomas.hexmap.common.net.MessageFormatException;
+import bthomas.hexmap.common.net.MessageFrame;
+import bthomas.hexmap.common.net.MessageRegistry;
 import bthomas.hexmap.common.net.MoveUnitMessage;
 import bthomas.hexmap.common.net.NewUnitMessage;
 import bthomas.hexmap.common.net.PingMessage;
+import bthomas.hexmap.common.net.ResumeMessage;
 import bthomas.hexmap.common.net.ValidationMessage;
+import bthomas.hexmap.common.net.ViewportMessage;
+import bthomas.hexmap.common.net.WireFormat;
 import bthomas.hexmap.logging.HexmapLogger;
 
 import javax.swing.BorderFactory;
@@ -36,6 +43,7 @@ import java.awt.Insets;
 import java.awt.MenuItem;
 import java.awt.Point;
 import java.awt.PopupMenu;
+import java.awt.Rectangle;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.KeyEvent;
@@ -44,20 +52,23 @@ import java.awt.event.MouseEvent;
 import java.awt.event.MouseListener;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.regex.Pattern;
 
@@ -73,21 +84,42 @@ public class Client implements ActionListener, MouseListener, KeyListener
 {
 
     private Socket service = null;
-    private BufferedReader input = null;
-    private PrintWriter output = null;
+    private InputStream input = null;
+    private OutputStream output = null;
+    private final Object outputLock = new Object();
+    //where the client is connected to, so it can reconnect there
+    private String serverIp = null;
+    private int serverPort = 0;
+    //the format used for messages sent to the server, agreed on in the handshake
+    private volatile WireFormat wireFormat = WireFormat.JSON;
 
     public boolean connected = false;
     private boolean closeReceived = false;
-    private boolean settingUp = false;
-    private boolean setUp = false;
+    //released once the Hexmap GUI for the current connection is built
+    private volatile CountDownLatch guiReady = new CountDownLatch(1);
+    private static final int GUI_WAIT_SECONDS = 10;
     private boolean chatStarted = false;
-    public long lastPingReceived = System.currentTimeMillis();
-    public long lastPingSent = 0;
+    //when anything was last received from the server, checked by the keepalive
+    public volatile long lastReceived = System.currentTimeMillis();
+    private final ClientKeepAliveManager keepAlive = new ClientKeepAliveManager(this);
+
+    //token to resume the session with if the connection is lost, or null if the server does not keep sessions
+    private volatile String sessionToken = null;
+    //messages received in the session so far, counted on the connection listener thread from the init message on
+    private long receivedMessages = 0;
+    private boolean counting = false;
+    //set from reconnecting after a lost connection until the server answers the resume
+    private volatile boolean resuming = false;
+    //how long to keep trying to reconnect after losing the connection, and how long to wait between tries
+    private static final int RESUME_WINDOW_MILLIS = 30_000;
+    private static final int RESUME_RETRY_MILLIS = 1000;
 
     private Path infoFile = Paths.get("clientInfo.txt");
 
     private final ReentrantLock connectionLock = new ReentrantLock();
-    private HashMap<Long, HexMessage> messages = new HashMap<>();
+    private final MessageRegistry messages = new MessageRegistry();
+    //the registry for the current connection, using the server's ids once binary is agreed on
+    private volatile MessageRegistry registry = messages;
 
     //to handle main thread waiting
     private final ReentrantLock mainThreadLock = new ReentrantLock();
@@ -110,14 +142,22 @@ public class Client implements ActionListener, MouseListener, KeyListener
     private JScrollPane displayPane;
 
     //Hexmap UI elements
+    //the most of the map shown at once, bigger maps scroll
+    private static final Dimension MAX_MAP_VIEW = new Dimension(1200, 800);
     private JFrame hexmapMainFrame;
     private JPanel hexmapDisplayPanel;
     private HexMapCanvas hexCanvas;
+    private JScrollPane hexCanvasScroller;
+    //the grid locations last reported to the server as visible, only touched on the GUI thread
+    private Rectangle reportedViewport;
     private JTextField chatEnter;
     private JTextArea chatArea;
     private JScrollPane chatAreaScroller;
     private JButton disconnectButton;
 
+    //units from the chunks of a board snapshot received so far, only touched by the connection listener
+    private ArrayList<Unit> pendingSnapshot = new ArrayList<>();
+
     //event handling variables
     private Unit selectedChr = null;
     private Point lastGridPositionClickedOn = null; //where the user started a click'n'drag on the hex grid
@@ -134,7 +174,7 @@ public class Client implements ActionListener, MouseListener, KeyListener
 
     public void run()
     {
-        Main.scheduleTask(new ClientKeepAliveManager(this), System.currentTimeMillis() + ClientKeepAliveManager.PING_INTERVAL_MILlIS);
+        Main.scheduleTask(keepAlive, System.currentTimeMillis() + ClientKeepAliveManager.PING_INTERVAL_MILlIS);
         //start Swing UI code and create landing GUI
         SwingUtilities.invokeLater(this::setupConnectionGUI);
 
@@ -173,12 +213,18 @@ public class Client implements ActionListener, MouseListener, KeyListener
         service = null;
         input = null;
         output = null;
+        wireFormat = WireFormat.JSON;
+        registry = messages;
         connected = false;
         closeReceived = false;
-        settingUp = false;
-        setUp = false;
+        sessionToken = null;
+        receivedMessages = 0;
+        counting = false;
+        resuming = false;
+        guiReady = new CountDownLatch(1);
         chatStarted = false;
         selectedChr = null;
+        pendingSnapshot = new ArrayList<>();
         lastMessages.clear();
         lastMessagesPos = -1;
 
@@ -200,6 +246,8 @@ public class Client implements ActionListener, MouseListener, KeyListener
         hexmapMainFrame = null;
         hexmapDisplayPanel = null;
         hexCanvas = null;
+        hexCanvasScroller = null;
+        reportedViewport = null;
         chatEnter = null;
         chatArea = null;
         chatAreaScroller = null;
@@ -309,16 +357,17 @@ public class Client implements ActionListener, MouseListener, KeyListener
      */
     private void setupHexmapGUI(int x, int y)
     {
-        settingUp = true;
-
         int radius = 25;
         Dimension hexSize = HexMapCanvas.getGridSize(x, y, radius);
+        //large maps scroll, and the server is told which part is on screen
+        Dimension viewSize = new Dimension(Math.min(hexSize.width, MAX_MAP_VIEW.width),
+                Math.min(hexSize.height, MAX_MAP_VIEW.height));
 
         //create window and init
         hexmapMainFrame = new JFrame();
         hexmapMainFrame.setLayout(new GridBagLayout());
         hexmapMainFrame.setTitle("Hexmap");
-        hexmapMainFrame.setSize(hexSize.width + 250, hexSize.height + 75);
+        hexmapMainFrame.setSize(viewSize.width + 250, viewSize.height + 75);
         hexmapMainFrame.setResizable(false);
 
         //allow window to close from the X button
@@ -334,18 +383,23 @@ public class Client implements ActionListener, MouseListener, KeyListener
         hexmapMainFrame.addMouseListener(this);
 
         hexmapDisplayPanel = new JPanel(new GridBagLayout());
-        hexmapDisplayPanel.setSize(hexSize);
+        hexmapDisplayPanel.setSize(viewSize);
         hexmapMainFrame.add(hexmapDisplayPanel, getGBC(0, 0, 1, 1));
 
         hexCanvas = new HexMapCanvas(x, y, radius);
         hexCanvas.addMouseListener(this);
         hexCanvas.setOpaque(true);
         hexCanvas.setVisible(true);
-        hexmapDisplayPanel.add(hexCanvas, getGBC(0, 0, 1, 1));
+        hexCanvasScroller = new JScrollPane(hexCanvas);
+        hexCanvasScroller.setBorder(null);
+        hexCanvasScroller.getViewport().setPreferredSize(viewSize);
+        hexCanvasScroller.getViewport().setMinimumSize(viewSize);
+        hexCanvasScroller.getViewport().addChangeListener(e -> reportViewport());
+        hexmapDisplayPanel.add(hexCanvasScroller, getGBC(0, 0, 1, 1));
 
         chatArea = new JTextArea("Welcome to Hexmap!");
-        chatArea.setSize(225, hexSize.height - 6);
-        chatArea.setMinimumSize(new Dimension(225, hexSize.height - 6));
+        chatArea.setSize(225, viewSize.height - 6);
+        chatArea.setMinimumSize(new Dimension(225, viewSize.height - 6));
         chatArea.setEditable(false);
         chatArea.setLineWrap(true);
         chatArea.setBackground(Color.WHITE);
@@ -384,9 +438,9 @@ public class Client implements ActionListener, MouseListener, KeyListener
         chatAreaScroller.setMinimumSize(chatAreaScroller.getSize());
         chatEnter.setMinimumSize(chatEnter.getSize());
         disconnectButton.setMinimumSize(disconnectButton.getSize());
+        reportViewport();
 
-        setUp = true;
-        settingUp = false;
+        guiReady.countDown();
     }
 
     private void registerAllMessages()
@@ -395,11 +449,15 @@ public class Client implements ActionListener, MouseListener, KeyListener
         registerMessage(new CommandMessage());
         registerMessage(new MoveUnitMessage());
         registerMessage(new NewUnitMessage());
+        registerMessage(new BoardSnapshotMessage());
+        registerMessage(new BoardDiffMessage());
         registerMessage(new ValidationMessage());
         registerMessage(new HandshakeMessage());
         registerMessage(new CloseMessage());
         registerMessage(new InitMessage());
         registerMessage(new PingMessage());
+        registerMessage(new ViewportMessage());
+        registerMessage(new ResumeMessage());
     }
 
     /**
@@ -413,18 +471,15 @@ public class Client implements ActionListener, MouseListener, KeyListener
      */
     private boolean registerMessage(HexMessage message)
     {
-        if(messages.containsKey(message.getKey()))
-        {
-            return false;
-        }
-
-        messages.put(message.getKey(), message);
-        return true;
+        return messages.register(message);
     }
 
-    public HexMessage getRegisteredMessage(long key)
+    /**
+     @return The message types to use on the current connection
+     */
+    public MessageRegistry getRegistry()
     {
-        return messages.get(key);
+        return registry;
     }
 
 
@@ -512,11 +567,13 @@ public class Client implements ActionListener, MouseListener, KeyListener
 
 
                 service = new Socket(ip, port);
-                input = new BufferedReader(new InputStreamReader(service.getInputStream()));
-                output = new PrintWriter(service.getOutputStream());
+                input = service.getInputStream();
+                output = new BufferedOutputStream(service.getOutputStream());
 
                 Main.logger.log(HexmapLogger.INFO, "Made connection to " + ip + ":" + port);
                 connected = true;
+                serverIp = ip;
+                serverPort = port;
 
                 //activate main thread to listen
                 toListenFrom = new ConnectionListener(this, input);
@@ -526,7 +583,7 @@ public class Client implements ActionListener, MouseListener, KeyListener
                 }
 
                 //start automatic communication with server
-                sendMessage(new HandshakeMessage(Main.version));
+                sendMessage(new HandshakeMessage(Main.version, true, true));
             }
             catch(IOException e1)
             {
@@ -547,7 +604,6 @@ public class Client implements ActionListener, MouseListener, KeyListener
      */
     public void initConnection(int sizeX, int sizeY)
     {
-        settingUp = true;
         //close the connection GUI
         landingFrame.dispose();
 
@@ -555,11 +611,62 @@ public class Client implements ActionListener, MouseListener, KeyListener
         setupHexmapGUI(sizeX, sizeY);
     }
 
+    /**
+     Tells the server which part of the map is on screen, if that changed since it was last told. Called on the GUI
+     thread whenever the map is scrolled or resized.
+     <p>
+     Units outside the new part are dropped, since the server stops sending their moves. They are sent again when they
+     come back into view.
+     */
+    private void reportViewport()
+    {
+        if(hexCanvas == null)
+        {
+            return;
+        }
+
+        Rectangle visible = hexCanvas.getVisibleLocations();
+        if(!visible.isEmpty() && !visible.equals(reportedViewport))
+        {
+            reportedViewport = visible;
+            sendMessage(new ViewportMessage(visible));
+            for(Unit u : hexCanvas.removeUnitsOutside(visible))
+            {
+                deselect(u);
+            }
+        }
+    }
+
     /**
      Upon handshake to server, respond with username and password to log in
+
+     @param binary
+     If the server agreed to use the binary wire format
+     @param compressed
+     If the server agreed to compress large batches, which the connection listener inflates on its own
+     @param types
+     The server's message keys indexed by the ids binary frames use, or null if it did not send them
      */
-    public void respondToHandshake()
+    public void respondToHandshake(boolean binary, boolean compressed, long[] types)
     {
+        //called on the connection listener thread, so the server's ids are in place before its next frame is decoded
+        if(binary && types != null)
+        {
+            registry = messages.withIds(types);
+            wireFormat = WireFormat.BINARY;
+        }
+        if(compressed)
+        {
+            Main.logger.log(HexmapLogger.INFO, "Server will compress large batches.");
+        }
+
+        //a client coming back after losing its connection picks its session up instead of logging in again
+        if(resuming)
+        {
+            sendMessage(new ResumeMessage(sessionToken, receivedMessages));
+            return;
+        }
+
         String password = passwordField.getText().trim();
         if(password.length() == 0)
         {
@@ -568,6 +675,177 @@ public class Client implements ActionListener, MouseListener, KeyListener
         sendMessage(new ValidationMessage(usernameField.getText().trim(), password));
     }
 
+    /**
+     Sets the token to resume the session with if the connection is lost
+
+     @param token
+     The token sent by the server, or null if it does not keep sessions
+     */
+    public void setSessionToken(String token)
+    {
+        sessionToken = token;
+    }
+
+    /**
+     Notes that the server is alive, and counts a message received from it so a lost session can be resumed right after
+     the last one. Called on the connection listener thread before the message is applied.
+
+     @param message
+     The received message
+     */
+    public void messageReceived(HexMessage message)
+    {
+        lastReceived = System.currentTimeMillis();
+        //the server numbers the messages of a session from its init message on, but not the answer to a resume
+        if(message instanceof InitMessage)
+        {
+            receivedMessages = 0;
+            counting = true;
+        }
+        if(counting && !resuming && !(message instanceof ResumeMessage))
+        {
+            receivedMessages++;
+        }
+    }
+
+    /**
+     Handles the server's answer to resuming the session. Called on the connection listener thread, so the messages
+     that were missed are only applied after this.
+
+     @param accepted
+     True if the session was resumed, false if the server no longer has it
+     */
+    public void resumeAnswered(boolean accepted)
+    {
+        if(accepted)
+        {
+            resuming = false;
+            Main.logger.log(HexmapLogger.INFO, "Resumed session after " + receivedMessages + " messages");
+            SwingUtilities.invokeLater(() -> chatAppend("Reconnected."));
+        }
+        else
+        {
+            sessionToken = null;
+            disconnect("Connection lost, the server could not resume the session.\n");
+        }
+    }
+
+    /**
+     Handles the connection to the server breaking. If the server keeps a session for this client, the client
+     reconnects and resumes it, otherwise it disconnects. Called on the connection listener thread.
+
+     @param reason
+     Why the connection broke
+     */
+    public void connectionLost(String reason)
+    {
+        if(sessionToken == null || isClosing)
+        {
+            disconnect(reason);
+            return;
+        }
+
+        Main.logger.log(HexmapLogger.INFO, "Connection lost, trying to resume session: " + reason);
+        SwingUtilities.invokeLater(() -> {
+            if(chatArea != null)
+            {
+                chatAppend("Connection lost, reconnecting...");
+            }
+        });
+
+        long deadline = System.currentTimeMillis() + RESUME_WINDOW_MILLIS;
+        while(true)
+        {
+            synchronized(connectionLock)
+            {
+                //the user disconnected in the meantime
+                if(!connected)
+                {
+                    return;
+                }
+
+                try
+                {
+                    if(service != null)
+                    {
+                        service.close();
+                    }
+                    Socket socket = new Socket();
+                    socket.connect(new InetSocketAddress(serverIp, serverPort), RESUME_RETRY_MILLIS);
+                    service = socket;
+                    input = service.getInputStream();
+                    synchronized(outputLock)
+                    {
+                        output = new BufferedOutputStream(service.getOutputStream());
+                        //the new connection starts out like any other until the handshake
+                        wireFormat = WireFormat.JSON;
+                        registry = messages;
+                    }
+                    resuming = true;
+                    lastReceived = System.currentTimeMillis();
+                    Main.logger.log(HexmapLogger.INFO, "Reconnected to " + serverIp + ":" + serverPort);
+
+                    //the main thread picks the new listener up once the old one returns
+                    toListenFrom = new ConnectionListener(this, input);
+                    sendMessage(new HandshakeMessage(Main.version, true, true));
+                    return;
+                }
+                catch(IOException e)
+                {
+                    Main.logger.log(HexmapLogger.INFO, "Could not reconnect: " + e.getMessage());
+                }
+            }
+
+            long wait = Math.min(RESUME_RETRY_MILLIS, deadline - System.currentTimeMillis());
+            if(wait <= 0)
+            {
+                disconnect("Connection lost, could not reconnect to the server.\n");
+                return;
+            }
+            try
+            {
+                Thread.sleep(wait);
+            }
+            catch(InterruptedException e)
+            {
+                disconnect(reason);
+                return;
+            }
+        }
+    }
+
+    /**
+     Drops a connection the server stopped answering. If the session can be resumed, the connection listener then
+     reconnects, otherwise the client disconnects.
+
+     @param reason
+     Why the connection is dropped
+     */
+    public void dropConnection(String reason)
+    {
+        if(sessionToken == null)
+        {
+            disconnect(reason);
+            return;
+        }
+
+        Main.logger.log(HexmapLogger.INFO, "Dropping connection: " + reason);
+        synchronized(connectionLock)
+        {
+            try
+            {
+                if(service != null)
+                {
+                    service.close();
+                }
+            }
+            catch(IOException e)
+            {
+                Main.logger.log(HexmapLogger.ERROR, "Error closing connection: " + HexmapLogger.getStackTraceString(e));
+            }
+        }
+    }
+
     /**
      Adds a Unit to the Hexmap.
 
@@ -576,12 +854,87 @@ public class Client implements ActionListener, MouseListener, KeyListener
      */
     public void addUnit(Unit chr)
     {
+        //sent before the server heard the map was scrolled away from it, so no moves of it would follow
+        if(reportedViewport != null && !reportedViewport.contains(chr.locX, chr.locY))
+        {
+            return;
+        }
+        //a unit coming back into view replaces the out of date copy, which may have been selected
+        deselect(chr);
         hexCanvas.addUnit(chr);
     }
 
+    /**
+     Clears the selection if it is a unit being replaced or removed
+
+     @param chr
+     The unit, or a copy of it
+     */
+    private void deselect(Unit chr)
+    {
+        if(selectedChr != null && selectedChr.UID == chr.UID)
+        {
+            hexCanvas.setHighlighted(false, selectedChr.locX, selectedChr.locY);
+            selectedChr = null;
+        }
+    }
+
 
     /**
-     Moves a unit from one map location to another
+     Collects one chunk of the board snapshot sent when joining a server. Once the last chunk arrives, all of the
+     snapshot's units are added to the Hexmap in a single pass on the GUI thread.
+
+     @param chunk
+     The received chunk
+     */
+    public void receiveSnapshot(BoardSnapshotMessage chunk)
+    {
+        pendingSnapshot.addAll(chunk.units);
+        if(!chunk.isLast())
+        {
+            return;
+        }
+
+        ArrayList<Unit> snapshot = pendingSnapshot;
+        pendingSnapshot = new ArrayList<>();
+        Main.logger.log(HexmapLogger.INFO, "Server: sent board with " + snapshot.size() + " units.");
+        waitForGUI();
+        SwingUtilities.invokeLater(() -> {
+            hexCanvas.addUnits(snapshot);
+            //the snapshot has the whole board, but only moves in view will be sent
+            if(reportedViewport != null)
+            {
+                hexCanvas.removeUnitsOutside(reportedViewport);
+            }
+        });
+    }
+
+
+    /**
+     Applies every unit change of one server tick to the Hexmap in a single pass on the GUI thread
+
+     @param diff
+     The received changes
+     */
+    public void receiveBoardDiff(BoardDiffMessage diff)
+    {
+        waitForGUI();
+        SwingUtilities.invokeLater(() -> {
+            for(int i = 0; i < diff.moves.length; i += BoardDiffMessage.MOVE_FIELDS)
+            {
+                moveUnit(diff.moves[i], diff.moves[i + 1], diff.moves[i + 2], diff.moves[i + 3], diff.moves[i + 4]);
+            }
+            for(Unit u : diff.units)
+            {
+                addUnit(u);
+            }
+        });
+    }
+
+
+    /**
+     Moves a unit from one map location to another. A unit moved out of view is dropped, since the server only tells
+     the client about it again once it comes back into view.
 
      @param UID
      The unique identifier for the unit to move
@@ -606,19 +959,27 @@ public class Client implements ActionListener, MouseListener, KeyListener
                 break;
             }
         }
+        //a board diff can carry a move the joining snapshot already showed, so the unit is somewhere else by now
+        if(movedUnit == null)
+        {
+            movedUnit = hexCanvas.getUnit(UID);
+        }
 
         if(movedUnit != null)
         {
-            Main.logger.log(HexmapLogger.INFO, String.format("Unit: %s moved from %d, %d to %d, %d", movedUnit.name,
-                    movedUnit.locX, movedUnit.locY, toX, toY));
+            Main.logger.log(HexmapLogger.INFO, "Unit: %s moved from %d, %d to %d, %d", movedUnit.name,
+                    movedUnit.locX, movedUnit.locY, toX, toY);
 
-            if(selectedChr != null && UID == selectedChr.UID)
+            deselect(movedUnit);
+
+            if(reportedViewport != null && !reportedViewport.contains(toX, toY))
             {
-                hexCanvas.setHighlighted(false, selectedChr.locX, selectedChr.locY);
-                selectedChr = null;
+                hexCanvas.removeUnit(movedUnit);
+            }
+            else
+            {
+                hexCanvas.moveUnit(movedUnit, toX, toY);
             }
-
-            hexCanvas.moveUnit(movedUnit, toX, toY);
         }
     }
 
@@ -631,19 +992,18 @@ public class Client implements ActionListener, MouseListener, KeyListener
     {
         //wait for GUI to be set up if it's not
         //shouldn't take long or block infinitely
-        while(!setUp && settingUp)
+        boolean ready;
+        try
         {
-            try
-            {
-                Thread.sleep(50);
-            }
-            catch(InterruptedException e)
-            {
-            }
+            ready = guiReady.await(GUI_WAIT_SECONDS, TimeUnit.SECONDS);
+        }
+        catch(InterruptedException e)
+        {
+            ready = false;
         }
 
         //how the hell did this happen
-        if(!setUp)
+        if(!ready)
         {
             Main.logger.log(HexmapLogger.SEVERE, "Error while waiting for UI setup.");
             close();
@@ -658,17 +1018,32 @@ public class Client implements ActionListener, MouseListener, KeyListener
      */
     public void sendMessage(HexMessage message)
     {
-        try
+        //the server would take anything else sent before the session is resumed as coming from a stranger
+        if(resuming && !(message instanceof HandshakeMessage || message instanceof ResumeMessage
+                || message instanceof PingMessage || message instanceof CloseMessage))
         {
-            String out = Main.GSON.toJson(message.toJson(new HashSet<>())) + "\n";
-            output.write(out);
-            output.flush();
+            Main.logger.log(HexmapLogger.INFO, "Dropped message sent while reconnecting: " + message);
+            return;
         }
-        catch(JsonConversionException e)
+
+        synchronized(outputLock)
         {
-            Main.logger.log(HexmapLogger.ERROR,
-                    "Error converting message for client: " + message + " error: " +
-                            HexmapLogger.getStackTraceString(e));
+            try
+            {
+                new MessageFrame(message, registry).writeTo(output, wireFormat);
+                output.flush();
+            }
+            catch(MessageFormatException e)
+            {
+                Main.logger.log(HexmapLogger.ERROR,
+                        "Error converting message for server: " + message + " error: " +
+                                HexmapLogger.getStackTraceString(e));
+            }
+            catch(IOException e)
+            {
+                //the listener will notice the broken connection and disconnect
+                Main.logger.log(HexmapLogger.ERROR, "Error writing to output stream: " + e.getMessage());
+            }
         }
     }
 
@@ -754,6 +1129,8 @@ public class Client implements ActionListener, MouseListener, KeyListener
             cleanConnections();
         }
         Main.logger.log(HexmapLogger.INFO, "Connection Closed: " + reason);
+        Main.logger.log(HexmapLogger.DEBUG, "Keepalive pings sent: " + keepAlive.getPingsSent()
+                + ", skipped for recent traffic: " + keepAlive.getPingsSkipped());
 
         if(!isClosing)
         {
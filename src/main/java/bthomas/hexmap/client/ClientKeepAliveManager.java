@@ -3,12 +3,21 @@ package bthomas.hexmap.client;
 import bthomas.hexmap.Main;
 import bthomas.hexmap.common.net.PingMessage;
 
+/**
+ Pings the server once it has been silent for a whole interval, and drops the connection if it then stays silent for
+ another. Anything received from the server counts as an answer, so a busy connection is never pinged.
+ */
 public class ClientKeepAliveManager implements Runnable
 {
     private final Client client;
 
     public static final int PING_INTERVAL_MILlIS = 15_000;
 
+    //when the unanswered ping was sent, or 0 if there is none
+    private long pingSent = 0;
+    private volatile long pingsSent = 0;
+    private volatile long pingsSkipped = 0;
+
     public ClientKeepAliveManager(Client client)
     {
         this.client = client;
@@ -17,18 +26,50 @@ public class ClientKeepAliveManager implements Runnable
     @Override
     public void run()
     {
+        long now = System.currentTimeMillis();
+        long next = now + PING_INTERVAL_MILlIS;
         if(client.connected)
         {
-            if(client.lastPingReceived < client.lastPingSent)
+            long lastReceived = client.lastReceived;
+            if(pingSent != 0 && lastReceived < pingSent)
             {
-                client.disconnect("Connection times out");
+                pingSent = 0;
+                client.dropConnection("Connection times out");
             }
-            else
+            else if(now - lastReceived >= PING_INTERVAL_MILlIS)
             {
-                client.lastPingSent = System.currentTimeMillis();
+                pingSent = now;
+                pingsSent++;
                 client.sendMessage(new PingMessage(true));
             }
+            else
+            {
+                //heard from recently, check again once the server has been quiet for a whole interval
+                pingSent = 0;
+                pingsSkipped++;
+                next = lastReceived + PING_INTERVAL_MILlIS;
+            }
+        }
+        else
+        {
+            pingSent = 0;
         }
-        Main.scheduleTask(this, System.currentTimeMillis() + PING_INTERVAL_MILlIS);
+        Main.scheduleTask(this, Math.max(next, now + 1));
+    }
+
+    /**
+     @return The number of pings sent to the server
+     */
+    public long getPingsSent()
+    {
+        return pingsSent;
+    }
+
+    /**
+     @return The number of times a ping was not needed because the server was heard from recently
+     */
+    public long getPingsSkipped()
+    {
+        return pingsSkipped;
     }
 }
@@ -1,16 +1,12 @@
 package bthomas.hexmap.client;
 
-import bthomas.hexmap.common.json.JsonConversionException;
-import bthomas.hexmap.common.util.JsonUtils;
+import bthomas.hexmap.common.net.FrameDecoder;
+import bthomas.hexmap.common.net.MessageFormatException;
 import bthomas.hexmap.logging.HexmapLogger;
 import bthomas.hexmap.Main;
-import bthomas.hexmap.common.net.HexMessage;
-import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonSyntaxException;
 
-import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
 
 /**
  * This class handles incoming data from the connected server
@@ -20,8 +16,11 @@ import java.io.IOException;
  */
 public class ConnectionListener implements Runnable{
 
+    private static final int READ_BUFFER_SIZE = 8192;
+
     private Client parent;
-    private BufferedReader input;
+    private InputStream input;
+    private final FrameDecoder decoder;
 
     /**
      * The standard constructor
@@ -29,56 +28,48 @@ public class ConnectionListener implements Runnable{
      * @param parent The Hexmap client this listener is used for
      * @param input The data input stream to listen to
      */
-    public ConnectionListener(Client parent, BufferedReader input) {
+    public ConnectionListener(Client parent, InputStream input) {
         this.parent = parent;
         this.input = input;
+        decoder = new FrameDecoder(parent::getRegistry);
     }
 
     @Override
     public void run() {
+        byte[] readBuffer = new byte[READ_BUFFER_SIZE];
         while (true) {
             try {
-                String message = input.readLine();
-                if(message != null)
+                int read = input.read(readBuffer);
+                if(read >= 0)
                 {
-                    JsonElement inputMessage = Main.PARSER.parse(message);
-                    if(!(inputMessage instanceof JsonObject))
-                    {
-                        throw new JsonConversionException("Received message not a HexMessage object: " + message);
-                    }
-
-                    JsonObject messageJson = (JsonObject) inputMessage;
-                    long key = JsonUtils.getLong(messageJson, "key");
-                    HexMessage template = parent.getRegisteredMessage(key);
-                    if(template == null)
-                    {
-                        throw new JsonConversionException("Unregistered message key: " + key);
-                    }
-                    HexMessage messageObj = template.fromJson(messageJson);
-
-                    messageObj.applyToClient(parent);
+                    decoder.feed(readBuffer, 0, read, message -> {
+                        parent.messageReceived(message);
+                        message.applyToClient(parent);
+                    });
                 }
                 else
                 {
-                    throw new IOException("Null received from socket input stream");
+                    throw new IOException("End of stream received from socket input stream");
                 }
             }
-            catch(JsonConversionException | JsonSyntaxException e)
+            catch(MessageFormatException e)
             {
                 Main.logger.log(HexmapLogger.ERROR,
                         "Error occurred while parsing input message: " + HexmapLogger.getStackTraceString(e));
-                parent.disconnect("Invalid JSON received from input stream");
+                parent.disconnect("Invalid message received from input stream");
                 break;
             }
             catch (IOException e) {
                 //only a problem if parent is supposed to be connected
                 if(parent.connected) {
                     Main.logger.log(HexmapLogger.SEVERE, "Error reading from input stream: " + HexmapLogger.getStackTraceString(e));
-                    parent.disconnect("Connection error.");
+                    //reconnects instead if the server keeps a session for us
+                    parent.connectionLost("Connection error.");
                 }
                 //something happened to the stream, close the connection
                 break;
             }
         }
+        decoder.close();
     }
 }
@@ -5,6 +5,9 @@ import bthomas.hexmap.common.Unit;
 import javax.swing.*;
 import java.awt.*;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
 
 /*
 This class handles the drawing and rendering of the hexagonal map.
@@ -27,6 +30,7 @@ public class HexMapCanvas extends JPanel{
     private int sizeY;
     private int hexSize;
     private ArrayList<Unit>[][] units;
+    private HashMap<Integer, Unit> unitsByUID = new HashMap<>();
 
     private Hexagon[][] hexgrid;
     private final Color background = new Color(125,125,125);
@@ -81,15 +85,81 @@ public class HexMapCanvas extends JPanel{
 
     /**
      * Adds a new unit to the map and redraws the map
+     * A unit already on the map with the same UID is replaced, so a unit sent again as it comes into view is not doubled
      * This method assumes the unit will fit in the GUI
      *
      * @param chr The unit to add
      */
     public void addUnit(Unit chr) {
-        units[chr.locX][chr.locY].add(chr);
+        placeUnit(chr);
         repaint();
     }
 
+    /**
+     * Adds many new units to the map, redrawing it only once
+     * This method assumes the units will fit in the GUI
+     *
+     * @param chrs The units to add
+     */
+    public void addUnits(Collection<Unit> chrs) {
+        for(Unit chr : chrs) {
+            placeUnit(chr);
+        }
+        repaint();
+    }
+
+    private void placeUnit(Unit chr) {
+        Unit old = unitsByUID.put(chr.UID, chr);
+        if(old != null) {
+            units[old.locX][old.locY].remove(old);
+        }
+        units[chr.locX][chr.locY].add(chr);
+    }
+
+    /**
+     * Gets a unit on the map by its UID
+     *
+     * @param UID The unique identifier of the unit
+     * @return The unit, or null if it is not on the map
+     */
+    public Unit getUnit(int UID) {
+        return unitsByUID.get(UID);
+    }
+
+    /**
+     * Removes a unit from the map and redraws the map
+     *
+     * @param chr The unit to remove
+     */
+    public void removeUnit(Unit chr) {
+        if(unitsByUID.remove(chr.UID, chr)) {
+            units[chr.locX][chr.locY].remove(chr);
+            repaint();
+        }
+    }
+
+    /**
+     * Removes every unit outside a part of the map, redrawing it only once
+     *
+     * @param region The grid locations to keep units in
+     * @return The removed units
+     */
+    public ArrayList<Unit> removeUnitsOutside(Rectangle region) {
+        ArrayList<Unit> removed = new ArrayList<>();
+        for(Iterator<Unit> it = unitsByUID.values().iterator(); it.hasNext(); ) {
+            Unit chr = it.next();
+            if(!region.contains(chr.locX, chr.locY)) {
+                it.remove();
+                units[chr.locX][chr.locY].remove(chr);
+                removed.add(chr);
+            }
+        }
+        if(!removed.isEmpty()) {
+            repaint();
+        }
+        return removed;
+    }
+
     /*
     Moves a unit from its current location to a new one
 
@@ -190,6 +260,23 @@ public class HexMapCanvas extends JPanel{
     overloaded
      */
 
+    /**
+     * Gets the grid locations that are at least partly visible, for when the canvas is in a scroll pane
+     *
+     * @return The smallest rectangle of grid locations holding every visible one
+     */
+    public Rectangle getVisibleLocations() {
+        Rectangle view = getVisibleRect();
+        //matches the layout in Hexagon, odd columns are shifted down half a row
+        int colWidth = (int) (hexSize * 1.5);
+        int rowHeight = (int) (Math.sqrt(3) * hexSize);
+        int minCol = Math.max(0, Math.floorDiv(view.x - 3 - 2 * hexSize, colWidth));
+        int maxCol = Math.min(sizeX - 1, (view.x + view.width - 3) / colWidth);
+        int minRow = Math.max(0, Math.floorDiv(view.y - 3 - rowHeight - rowHeight / 2, rowHeight));
+        int maxRow = Math.min(sizeY - 1, (view.y + view.height - 3) / rowHeight);
+        return new Rectangle(minCol, minRow, maxCol - minCol + 1, maxRow - minRow + 1);
+    }
+
     /**
      * Sets a given grid location to be highlighted or not
      *
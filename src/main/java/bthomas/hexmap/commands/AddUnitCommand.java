@@ -4,7 +4,6 @@ import bthomas.hexmap.logging.HexmapLogger;
 import bthomas.hexmap.Main;
 import bthomas.hexmap.common.Unit;
 import bthomas.hexmap.common.net.ChatMessage;
-import bthomas.hexmap.common.net.NewUnitMessage;
 import bthomas.hexmap.server.ConnectionHandler;
 import bthomas.hexmap.server.Server;
 
@@ -23,6 +22,8 @@ public class AddUnitCommand extends HexCommand {
 	// "alphanumeric-string number number number number number"
 	private static final Pattern pattern = Pattern.compile("\\A([a-zA-Z0-9]+) (?:[0-9]+ ){4}[0-9]+\\Z");
 	private static final String permission = "hexmap.commands.addunit";
+	//looked up on first use, since ids are handed out by the server as permissions are registered
+	private int permissionId = -1;
 
 	@Override
 	public String getName() {
@@ -36,7 +37,10 @@ public class AddUnitCommand extends HexCommand {
 
 	@Override
 	public boolean applyFromClient(Server server, ConnectionHandler client, String command) {
-		if(!client.hasPermission(permission)) {
+		if(permissionId < 0) {
+			permissionId = server.getPermissionId(permission);
+		}
+		if(!client.hasPermission(permissionId)) {
 			respondToNoPermission(client, command);
 			return false;
 		}
@@ -104,6 +108,7 @@ public class AddUnitCommand extends HexCommand {
 					Main.logger.log(HexmapLogger.INFO, client.username + " attempted invalid add command: location not on board.");
 					client.addMessage(new ChatMessage("Cannot add unit, location not on board."));
 				}
+				return false;
 			}
 
 			Unit newUnit = new Unit(parts[0], x, y, new Color(r, g, b));
@@ -119,7 +124,7 @@ public class AddUnitCommand extends HexCommand {
 				client.addMessage(new ChatMessage("Unit added."));
 			}
 
-			server.sendAll(new NewUnitMessage(newUnit));
+			server.sendNewUnit(newUnit);
 			return true;
 		}
 		else {
@@ -0,0 +1,39 @@
+package bthomas.hexmap.commands;
+
+import bthomas.hexmap.Main;
+import bthomas.hexmap.logging.HexmapLogger;
+import bthomas.hexmap.server.ConnectionHandler;
+import bthomas.hexmap.server.Server;
+
+/**
+ * This command prints the server's traffic counters to the console
+ *
+ * @author Brendan Thomas
+ * @since 2019-03-27
+ */
+public class StatsCommand extends HexCommand {
+
+	@Override
+	public boolean applyFromServer(Server server, String command) {
+		Main.logger.log(HexmapLogger.INFO, server.getStats().report(server.getClients()));
+		Main.logger.log(HexmapLogger.INFO, Main.getSchedulerReport());
+		Main.logger.log(HexmapLogger.INFO, Main.logger.report());
+		return true;
+	}
+
+	@Override
+	public boolean applyFromClient(Server server, ConnectionHandler client, String command) {
+		//OP command
+		return false;
+	}
+
+	@Override
+	public String getName() {
+		return "stats";
+	}
+
+	@Override
+	public String getDescription() {
+		return "/stats";
+	}
+}
@@ -3,118 +3,494 @@ package bthomas.hexmap.common.Scheduling;
 import bthomas.hexmap.Main;
 import bthomas.hexmap.logging.HexmapLogger;
 
-import java.util.PriorityQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
- This class allows for tasks to be scheduled for execution at arbitrary times in the future.
+ This class allows for tasks to be scheduled for execution at arbitrary times in the future, once or repeatedly.
+ <p>
+ Tasks wait in a hierarchical timing wheel with a resolution of one tick. Each level has 64 slots, and each slot of a
+ level spans a whole turn of the level below it. A task goes into the lowest level whose turn reaches its due time, and
+ moves down a level each time the level below comes round to it, so scheduling and cancelling a task only ever touch one
+ slot. A single timer thread moves the wheel along, sleeping until the next slot that holds anything, and hands due tasks
+ to a pool of workers so a slow task does not hold up the ones behind it.
+ <p>
+ Tasks never run early, but can run up to a tick late, more if the workers are busy. How late they actually ran is
+ counted, see {@link #report()}.
  */
 public class BasicTaskScheduler
 {
-    private static final class TimerItem implements Comparable<TimerItem>
+    private static final int TICK_MILLIS = 10;
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int LEVELS = 4;
+    //the furthest ahead the wheel reaches, about 46 hours, later tasks wait in the top level and go round again
+    private static final long MAX_TICKS = 1L << (SLOT_BITS * LEVELS);
+    private static final int DEFAULT_WORKERS = 2;
+
+    //upper bounds of the lag histogram's buckets in milliseconds, the last bucket holds everything later
+    private static final long[] LAG_BUCKETS = {1, 10, 100, 1000};
+
+    private volatile boolean cancelled = false;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    //guarded by lock
+    private final ScheduledTask[][] wheel = new ScheduledTask[LEVELS][SLOTS];
+    //one bit per slot of each level that holds any tasks
+    private final long[] occupied = new long[LEVELS];
+    //the last tick the wheel moved through, counted from startMillis
+    private long currentTick = 0;
+    //the tick the timer thread will wake at, so tasks due before it can wake it early
+    private long wakeTick = Long.MAX_VALUE;
+    private final long startMillis = System.currentTimeMillis();
+
+    private final ExecutorService workers;
+
+    private final LongAdder runs = new LongAdder();
+    private final LongAdder totalLag = new LongAdder();
+    private final AtomicLong maxLag = new AtomicLong();
+    private final LongAdder[] lagHistogram = new LongAdder[LAG_BUCKETS.length + 1];
+
+    /**
+     Creates a scheduler with the default number of workers
+     */
+    public BasicTaskScheduler()
     {
-        public final Runnable runner;
-        public final long executionTime;
+        this(DEFAULT_WORKERS);
+    }
 
-        public TimerItem(Runnable task, long executionTime)
+    /**
+     Creates a scheduler and starts its threads
+
+     @param workerCount
+     The number of threads running tasks
+     */
+    public BasicTaskScheduler(int workerCount)
+    {
+        for(int i = 0; i < lagHistogram.length; i++)
         {
-            this.runner = task;
-            this.executionTime = executionTime;
+            lagHistogram[i] = new LongAdder();
         }
 
-        @Override
-        public int compareTo(TimerItem o)
+        AtomicInteger workerNumber = new AtomicInteger();
+        workers = Executors.newFixedThreadPool(workerCount, task -> {
+            Thread worker = new Thread(task, "scheduler-worker-" + workerNumber.incrementAndGet());
+            worker.setDaemon(true);
+            return worker;
+        });
+
+        Thread timerThread = new Thread(this::runTimer, "scheduler-timer");
+        timerThread.setDaemon(true);
+        timerThread.start();
+    }
+
+    /**
+     Stops the scheduler. Tasks that have not started yet never run.
+     */
+    public void cancel()
+    {
+        this.cancelled = true;
+        lock.lock();
+        try
         {
-            return Long.compare(executionTime, o.executionTime);
+            for(int level = 0; level < LEVELS; level++)
+            {
+                for(int slot = 0; slot < SLOTS; slot++)
+                {
+                    wheel[level][slot] = null;
+                }
+                occupied[level] = 0;
+            }
+            changed.signalAll();
         }
+        finally
+        {
+            lock.unlock();
+        }
+        workers.shutdownNow();
     }
 
-    private boolean cancelled = false;
+    /**
+     Schedules a task to run once
 
-    private final PriorityQueue<TimerItem> items = new PriorityQueue<>();
+     @param task
+     The task to run
+     @param executionTime
+     When to run it, in milliseconds since the epoch. A time already past runs the task as soon as possible.
 
-    public BasicTaskScheduler()
+     @return A handle to cancel the task with
+     */
+    public ScheduledTask schedule(Runnable task, long executionTime)
     {
-        Thread workerThread = new Thread(this::runWorker);
-        workerThread.setDaemon(true);
-        workerThread.start();
+        return add(task, executionTime, 0);
     }
 
-    public void cancel()
+    /**
+     Schedules a task to run repeatedly, each run due one period after the one before it was due. If a run is so late
+     that later runs were missed, they are skipped rather than run back to back. Runs never overlap.
+
+     @param task
+     The task to run
+     @param firstTime
+     When to run it the first time, in milliseconds since the epoch
+     @param periodMillis
+     The time between runs
+
+     @return A handle to stop the task with
+     */
+    public ScheduledTask scheduleAtFixedRate(Runnable task, long firstTime, long periodMillis)
     {
-        this.cancelled = true;
-        synchronized(items)
+        if(periodMillis <= 0)
+        {
+            throw new IllegalArgumentException("Attempt to schedule task with period: " + periodMillis);
+        }
+        return add(task, firstTime, periodMillis);
+    }
+
+    /**
+     Schedules a task to run repeatedly, each run due a delay after the one before it finished
+
+     @param task
+     The task to run
+     @param firstTime
+     When to run it the first time, in milliseconds since the epoch
+     @param delayMillis
+     The time between the end of a run and the start of the next
+
+     @return A handle to stop the task with
+     */
+    public ScheduledTask scheduleWithFixedDelay(Runnable task, long firstTime, long delayMillis)
+    {
+        if(delayMillis <= 0)
+        {
+            throw new IllegalArgumentException("Attempt to schedule task with delay: " + delayMillis);
+        }
+        return add(task, firstTime, -delayMillis);
+    }
+
+    /**
+     Builds a readable summary of how late tasks ran
+
+     @return The summary
+     */
+    public String report()
+    {
+        long count = runs.sum();
+        StringBuilder res = new StringBuilder();
+        res.append(String.format("scheduler: tasks run: %d, average lag: %.2f ms, max lag: %d ms",
+                count, count == 0 ? 0.0 : (double) totalLag.sum() / count, maxLag.get()));
+        res.append(String.format("%n  lag:"));
+        for(int i = 0; i < LAG_BUCKETS.length; i++)
         {
-            items.notifyAll();
-            items.clear();
+            res.append(String.format(" <=%d ms: %d", LAG_BUCKETS[i], lagHistogram[i].sum()));
         }
+        res.append(String.format(" more: %d", lagHistogram[LAG_BUCKETS.length].sum()));
+        return res.toString();
     }
 
-    public void schedule(Runnable task, long executionTime)
+    private ScheduledTask add(Runnable task, long executionTime, long period)
     {
         if(task == null)
         {
             throw new NullPointerException("Attempt to schedule null task.");
         }
-        if(executionTime < System.currentTimeMillis())
+
+        ScheduledTask res = new ScheduledTask(this, task, executionTime, period);
+        enqueue(res);
+        return res;
+    }
+
+    private void enqueue(ScheduledTask task)
+    {
+        lock.lock();
+        try
+        {
+            if(cancelled)
+            {
+                return;
+            }
+            insert(task);
+            if(task.level >= 0 && task.deadlineTick < wakeTick)
+            {
+                changed.signal();
+            }
+        }
+        finally
         {
-            throw new IllegalArgumentException("Attempt to schedule task in the past.");
+            lock.unlock();
         }
+    }
+
+    /**
+     Takes a cancelled task out of the wheel, if it is waiting in it
 
-        synchronized(items)
+     @param task
+     The cancelled task
+     */
+    void remove(ScheduledTask task)
+    {
+        lock.lock();
+        try
+        {
+            if(task.level >= 0)
+            {
+                unlink(task);
+            }
+        }
+        finally
         {
-            items.add(new TimerItem(task, executionTime));
-            items.notifyAll();
+            lock.unlock();
         }
     }
 
-    private void runWorker()
+    private void runTimer()
     {
-        while(!cancelled)
+        lock.lock();
+        try
         {
-            TimerItem toExecute = null;
-            synchronized(items)
+            while(!cancelled)
             {
-                while(toExecute == null || toExecute.executionTime > System.currentTimeMillis())
+                long now = System.currentTimeMillis();
+                long nowTick = (now - startMillis) / TICK_MILLIS;
+                while(currentTick < nowTick)
                 {
-                    toExecute = items.peek();
-                    if(toExecute == null)
+                    advance();
+                }
+
+                wakeTick = nextEventTick();
+                try
+                {
+                    if(wakeTick == Long.MAX_VALUE)
                     {
-                        try
-                        {
-                            items.wait();
-                        }
-                        catch(InterruptedException e)
-                        {
-                            cancel();
-                            break;
-                        }
+                        changed.await();
                     }
                     else
                     {
-                        try
-                        {
-                            items.wait(toExecute.executionTime - System.currentTimeMillis());
-                        }
-                        catch(InterruptedException e)
+                        long delay = startMillis + wakeTick * TICK_MILLIS - System.currentTimeMillis();
+                        if(delay > 0)
                         {
-                            cancel();
-                            break;
+                            changed.await(delay, TimeUnit.MILLISECONDS);
                         }
                     }
                 }
-                toExecute = items.poll();
-            }
-            if(toExecute != null && !cancelled)
-            {
-                try
-                {
-                    toExecute.runner.run();
-                }
-                catch(Exception e)
+                catch(InterruptedException e)
                 {
-                    Main.logger.log(HexmapLogger.ERROR, HexmapLogger.getStackTraceString(e));
+                    break;
                 }
             }
         }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     Moves the wheel on by one tick, moving tasks down from the levels that came round and running everything due
+     */
+    private void advance()
+    {
+        currentTick++;
+        for(int level = 1; level < LEVELS; level++)
+        {
+            if((currentTick & ((1L << (SLOT_BITS * level)) - 1)) != 0)
+            {
+                break;
+            }
+            int slot = (int) ((currentTick >>> (SLOT_BITS * level)) & (SLOTS - 1));
+            ScheduledTask task = detach(level, slot);
+            while(task != null)
+            {
+                ScheduledTask next = task.next;
+                task.next = null;
+                insert(task);
+                task = next;
+            }
+        }
+
+        ScheduledTask task = detach(0, (int) (currentTick & (SLOTS - 1)));
+        while(task != null)
+        {
+            ScheduledTask next = task.next;
+            task.next = null;
+            dispatch(task);
+            task = next;
+        }
+    }
+
+    /**
+     @return The next tick anything can happen at, a level 0 slot with tasks in it or the next time the higher levels
+     move down, or Long.MAX_VALUE if the wheel is empty
+     */
+    private long nextEventTick()
+    {
+        long res = Long.MAX_VALUE;
+        if(occupied[0] != 0)
+        {
+            //rotate so the bit of the next tick's slot comes first
+            long ahead = Long.rotateRight(occupied[0], (int) ((currentTick + 1) & (SLOTS - 1)));
+            res = currentTick + 1 + Long.numberOfTrailingZeros(ahead);
+        }
+        for(int level = 1; level < LEVELS; level++)
+        {
+            if(occupied[level] != 0)
+            {
+                res = Math.min(res, ((currentTick >>> SLOT_BITS) + 1) << SLOT_BITS);
+                break;
+            }
+        }
+        return res;
+    }
+
+    /**
+     Puts a task in the wheel, or hands it to the workers if it is already due
+
+     @param task
+     The task, not in the wheel
+     */
+    private void insert(ScheduledTask task)
+    {
+        //round up, so a task never runs before its time
+        task.deadlineTick = Math.floorDiv(task.executionTime - startMillis + TICK_MILLIS - 1, TICK_MILLIS);
+        long delta = task.deadlineTick - currentTick;
+        if(delta <= 0)
+        {
+            dispatch(task);
+            return;
+        }
+
+        delta = Math.min(delta, MAX_TICKS - 1);
+        int level = 0;
+        while(level < LEVELS - 1 && delta >= 1L << (SLOT_BITS * (level + 1)))
+        {
+            level++;
+        }
+        int slot = (int) (((currentTick + delta) >>> (SLOT_BITS * level)) & (SLOTS - 1));
+
+        task.level = level;
+        task.slot = slot;
+        task.prev = null;
+        task.next = wheel[level][slot];
+        if(task.next != null)
+        {
+            task.next.prev = task;
+        }
+        wheel[level][slot] = task;
+        occupied[level] |= 1L << slot;
+    }
+
+    private void unlink(ScheduledTask task)
+    {
+        if(task.prev == null)
+        {
+            wheel[task.level][task.slot] = task.next;
+        }
+        else
+        {
+            task.prev.next = task.next;
+        }
+        if(task.next != null)
+        {
+            task.next.prev = task.prev;
+        }
+        if(wheel[task.level][task.slot] == null)
+        {
+            occupied[task.level] &= ~(1L << task.slot);
+        }
+        task.level = -1;
+        task.prev = null;
+        task.next = null;
+    }
+
+    /**
+     Takes every task out of a slot
+
+     @return The first task of the slot, the rest follow through next
+     */
+    private ScheduledTask detach(int level, int slot)
+    {
+        ScheduledTask res = wheel[level][slot];
+        wheel[level][slot] = null;
+        occupied[level] &= ~(1L << slot);
+        for(ScheduledTask task = res; task != null; task = task.next)
+        {
+            task.level = -1;
+            task.prev = null;
+        }
+        return res;
+    }
+
+    private void dispatch(ScheduledTask task)
+    {
+        try
+        {
+            workers.execute(() -> runTask(task));
+        }
+        catch(RejectedExecutionException e)
+        {
+            //the scheduler was cancelled
+        }
+    }
+
+    private void runTask(ScheduledTask task)
+    {
+        if(task.isCancelled() || cancelled)
+        {
+            return;
+        }
+
+        long start = System.currentTimeMillis();
+        recordLag(start - task.executionTime);
+        try
+        {
+            task.runner.run();
+        }
+        catch(Exception e)
+        {
+            Main.logger.log(HexmapLogger.ERROR, HexmapLogger.getStackTraceString(e));
+        }
+
+        //repeating tasks are only scheduled again once they finish, so runs never overlap
+        if(task.period == 0 || task.isCancelled())
+        {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if(task.period > 0)
+        {
+            long next = task.executionTime + task.period;
+            if(next <= now)
+            {
+                next += ((now - next) / task.period + 1) * task.period;
+            }
+            task.executionTime = next;
+        }
+        else
+        {
+            task.executionTime = now - task.period;
+        }
+        enqueue(task);
+    }
+
+    private void recordLag(long lagMillis)
+    {
+        lagMillis = Math.max(0, lagMillis);
+        runs.increment();
+        totalLag.add(lagMillis);
+        maxLag.accumulateAndGet(lagMillis, Math::max);
+        int bucket = 0;
+        while(bucket < LAG_BUCKETS.length && lagMillis > LAG_BUCKETS[bucket])
+        {
+            bucket++;
+        }
+        lagHistogram[bucket].increment();
     }
 }
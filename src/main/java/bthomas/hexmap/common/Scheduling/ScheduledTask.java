@@ -0,0 +1,63 @@
+package bthomas.hexmap.common.Scheduling;
+
+/**
+ A task scheduled with a {@link BasicTaskScheduler}. It can be cancelled until it runs, and a repeating task can be
+ cancelled at any time to stop the runs after the current one.
+ */
+public final class ScheduledTask
+{
+    private final BasicTaskScheduler scheduler;
+    final Runnable runner;
+    //0 for a task that runs once, above 0 for a fixed rate, below 0 for a fixed delay
+    final long period;
+
+    //when the next run is due, in milliseconds since the epoch
+    long executionTime;
+    //where the task is in the scheduler's wheel, guarded by the scheduler, level is -1 while it is not in the wheel
+    long deadlineTick;
+    int level = -1;
+    int slot;
+    ScheduledTask prev, next;
+
+    private volatile boolean cancelled = false;
+
+    ScheduledTask(BasicTaskScheduler scheduler, Runnable runner, long executionTime, long period)
+    {
+        this.scheduler = scheduler;
+        this.runner = runner;
+        this.executionTime = executionTime;
+        this.period = period;
+    }
+
+    /**
+     Stops the task from running again. A run that already started is not interrupted.
+
+     @return True if the task was cancelled, false if it was cancelled already
+     */
+    public boolean cancel()
+    {
+        if(cancelled)
+        {
+            return false;
+        }
+        cancelled = true;
+        scheduler.remove(this);
+        return true;
+    }
+
+    /**
+     @return True if the task was cancelled
+     */
+    public boolean isCancelled()
+    {
+        return cancelled;
+    }
+
+    /**
+     @return True if the task runs repeatedly until cancelled
+     */
+    public boolean isPeriodic()
+    {
+        return period != 0;
+    }
+}
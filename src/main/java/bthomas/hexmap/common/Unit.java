@@ -1,11 +1,18 @@
 package bthomas.hexmap.common;
 
+import bthomas.hexmap.common.binary.BinarySerializable;
 import bthomas.hexmap.common.json.JsonConversionException;
 import bthomas.hexmap.common.json.JsonSerializable;
+import bthomas.hexmap.common.util.BinaryUtils;
 import bthomas.hexmap.common.util.JsonUtils;
 import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 
 import java.awt.Color;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.HashSet;
 
@@ -15,7 +22,7 @@ import java.util.HashSet;
  * @author Brendan Thomas
  * @since 2017-10-28
  */
-public class Unit implements Serializable, JsonSerializable
+public class Unit implements Serializable, JsonSerializable, BinarySerializable
 {
     private static final long serialVersionUID = 8755948938950476613L;
     private static int UIDTracker = 0;
@@ -51,6 +58,17 @@ public class Unit implements Serializable, JsonSerializable
         }
     }
 
+    /**
+     * Makes sure units created from now on get a higher UID than a given one, such as one loaded from a saved board
+     *
+     * @param uid The UID that must not be handed out again
+     */
+    public static synchronized void reserveUID(int uid) {
+        if (UIDTracker <= uid) {
+            UIDTracker = uid + 1;
+        }
+    }
+
     /**
      Client-Side constructor
 
@@ -86,6 +104,74 @@ public class Unit implements Serializable, JsonSerializable
         UID = JsonUtils.getInt(root, UidKey);
     }
 
+    /**
+     Constructs an object from a JSON stream
+
+     @param reader
+     The reader to take the object from, positioned before it
+
+     @throws IOException
+     If the stream could not be read or is not valid JSON
+     @throws JsonConversionException
+     If a required field is missing
+     */
+    public Unit(JsonReader reader) throws IOException, JsonConversionException
+    {
+        int seen = 0;
+        reader.beginObject();
+        while(reader.hasNext())
+        {
+            switch(reader.nextName())
+            {
+                case nameKey:
+                    name = JsonUtils.nextString(reader);
+                    seen |= 1;
+                    break;
+                case colorKey:
+                    color = new Color(reader.nextInt(), true);
+                    seen |= 2;
+                    break;
+                case xKey:
+                    locX = reader.nextInt();
+                    seen |= 4;
+                    break;
+                case yKey:
+                    locY = reader.nextInt();
+                    seen |= 8;
+                    break;
+                case UidKey:
+                    UID = reader.nextInt();
+                    seen |= 16;
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+        if(seen != 31)
+        {
+            throw JsonUtils.missingField(seen, nameKey, colorKey, xKey, yKey, UidKey);
+        }
+    }
+
+    /**
+     Constructs an object from binary representation
+
+     @param input
+     The data for this object, as written by {@link #writeBinary(DataOutput)}
+
+     @throws IOException
+     If the data is truncated or malformed
+     */
+    public Unit(DataInput input) throws IOException
+    {
+        name = BinaryUtils.readString(input);
+        color = new Color(input.readInt(), true);
+        locX = BinaryUtils.readVarInt(input);
+        locY = BinaryUtils.readVarInt(input);
+        UID = BinaryUtils.readVarInt(input);
+    }
+
     @Override
     public void buildJson(JsonObject root, HashSet<Object> loopDetector)
     {
@@ -96,4 +182,36 @@ public class Unit implements Serializable, JsonSerializable
         root.addProperty(yKey, locY);
         root.addProperty(UidKey, UID);
     }
+
+    /**
+     Writes this unit to a JSON stream as an object, without building a JSON tree
+
+     @param writer
+     The writer to write to
+
+     @throws IOException
+     If the stream could not be written to
+     */
+    public void writeJson(JsonWriter writer) throws IOException
+    {
+        writer.beginObject();
+        writer.name(nameKey).value(name);
+        //actually writes RGBA
+        writer.name(colorKey).value(color.getRGB());
+        writer.name(xKey).value(locX);
+        writer.name(yKey).value(locY);
+        writer.name(UidKey).value(UID);
+        writer.endObject();
+    }
+
+    @Override
+    public void writeBinary(DataOutput output) throws IOException
+    {
+        BinaryUtils.writeString(output, name);
+        //actually writes RGBA
+        output.writeInt(color.getRGB());
+        BinaryUtils.writeVarInt(output, locX);
+        BinaryUtils.writeVarInt(output, locY);
+        BinaryUtils.writeVarInt(output, UID);
+    }
 }
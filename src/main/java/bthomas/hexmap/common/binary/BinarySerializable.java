@@ -0,0 +1,43 @@
+package bthomas.hexmap.common.binary;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ Interface for converting an object to and from a compact binary representation.
+ <p>
+ Classes implementing this interface should declare a constructor for creating an object from its binary
+ representation. Fields must be read back in exactly the order they were written.
+ */
+public interface BinarySerializable
+{
+    /**
+     Creates an instance of this class from a binary representation.
+     <p>
+     Class should either override this method or provide a constructor that takes in a {@link DataInput DataInput}
+
+     @param input
+     The data to read the object from
+
+     @return The constructed object
+
+     @throws IOException
+     If the data is truncated or malformed
+     */
+    default BinarySerializable fromBinary(DataInput input) throws IOException
+    {
+        throw new UnsupportedOperationException("Default BinarySerializable implementation invoked");
+    }
+
+    /**
+     Writes the information required to rebuild this object.
+
+     @param output
+     The data stream to write to
+
+     @throws IOException
+     If the stream could not be written to
+     */
+    void writeBinary(DataOutput output) throws IOException;
+}
@@ -0,0 +1,304 @@
+package bthomas.hexmap.common.net;
+
+import bthomas.hexmap.client.Client;
+import bthomas.hexmap.common.Unit;
+import bthomas.hexmap.common.json.JsonConversionException;
+import bthomas.hexmap.common.util.BinaryUtils;
+import bthomas.hexmap.common.util.JsonUtils;
+import bthomas.hexmap.server.ConnectionHandler;
+import bthomas.hexmap.server.Server;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * This message carries every change to the board a client can see from one server tick
+ * <p>
+ * Moves are sent as plain numbers so a busy tick stays small. Units the client may not know yet, because they were just
+ * added or came into its view, are sent whole and replace any copy the client has.
+ *
+ * @author Brendan Thomas
+ * @since 2019-04-02
+ */
+public class BoardDiffMessage extends HexMessage{
+	private static final long serialVersionUID = -3793940720133209636L;
+
+	//the numbers stored for each move: unit UID, to X, to Y, from X, from Y
+	public static final int MOVE_FIELDS = 5;
+
+	public final int[] moves;
+	private static final String movesKey = "moves";
+	public final List<Unit> units;
+	private static final String unitsKey = "units";
+
+	/**
+	 * Standard constructor
+	 *
+	 * @param moves The moved units, {@link #MOVE_FIELDS} numbers per move
+	 * @param units The units sent whole
+	 */
+	public BoardDiffMessage(int[] moves, List<Unit> units) {
+		if(moves.length % MOVE_FIELDS != 0) {
+			throw new IllegalArgumentException("Incomplete move in board diff");
+		}
+		this.moves = moves;
+		this.units = units;
+	}
+
+	/**
+	 * Dummy constructor to use with JSON serialization
+	 */
+	public BoardDiffMessage()
+	{
+		this(new int[0], Collections.emptyList());
+	}
+
+	/**
+	 * Checks if this diff has anything in it
+	 *
+	 * @return True if there are no moves and no units
+	 */
+	public boolean isEmpty() {
+		return moves.length == 0 && units.isEmpty();
+	}
+
+	/**
+	 Constructs an object from JSON representation
+
+	 @param root
+	 The JsonObject containing the data for this object.
+
+	 @throws JsonConversionException
+	 If there is not proper data stored in the JsonObject
+	 */
+	public BoardDiffMessage(JsonObject root) throws JsonConversionException
+	{
+		JsonArray movesJson = JsonUtils.getJsonArray(root, movesKey);
+		JsonArray unitsJson = JsonUtils.getJsonArray(root, unitsKey);
+		if(movesJson == null || unitsJson == null)
+		{
+			throw new JsonConversionException("No field \"" + (movesJson == null ? movesKey : unitsKey)
+					+ "\" defined in Json");
+		}
+		if(movesJson.size() % MOVE_FIELDS != 0)
+		{
+			throw new JsonConversionException("Incomplete move in board diff");
+		}
+
+		moves = new int[movesJson.size()];
+		for(int i = 0; i < moves.length; i++)
+		{
+			try
+			{
+				moves[i] = movesJson.get(i).getAsInt();
+			}
+			catch(ClassCastException | IllegalStateException | NumberFormatException e)
+			{
+				throw new JsonConversionException("Invalid move in board diff: " + movesJson.get(i));
+			}
+		}
+
+		units = new ArrayList<>(unitsJson.size());
+		for(JsonElement unit : unitsJson)
+		{
+			if(!unit.isJsonObject())
+			{
+				throw new JsonConversionException("Invalid unit in board diff");
+			}
+			units.add(new Unit(unit.getAsJsonObject()));
+		}
+	}
+
+	@Override
+	public BoardDiffMessage fromJson(JsonObject root) throws JsonConversionException
+	{
+		return new BoardDiffMessage(root);
+	}
+
+	/**
+	 Constructs an object from a JSON stream, with the reader positioned just after the message key
+
+	 @param reader
+	 The reader to take the rest of the message's fields from
+
+	 @throws IOException
+	 If the stream could not be read or is not valid JSON
+	 @throws JsonConversionException
+	 If a required field is missing
+	 */
+	public BoardDiffMessage(JsonReader reader) throws IOException, JsonConversionException
+	{
+		int[] moves = null;
+		List<Unit> units = null;
+		int seen = 0;
+		while(reader.hasNext())
+		{
+			switch(reader.nextName())
+			{
+				case movesKey:
+					moves = new int[MOVE_FIELDS * 16];
+					int count = 0;
+					reader.beginArray();
+					while(reader.hasNext())
+					{
+						if(count == moves.length)
+						{
+							moves = Arrays.copyOf(moves, count * 2);
+						}
+						moves[count++] = reader.nextInt();
+					}
+					reader.endArray();
+					if(count % MOVE_FIELDS != 0)
+					{
+						throw new JsonConversionException("Incomplete move in board diff");
+					}
+					moves = Arrays.copyOf(moves, count);
+					seen |= 1;
+					break;
+				case unitsKey:
+					units = new ArrayList<>();
+					reader.beginArray();
+					while(reader.hasNext())
+					{
+						units.add(new Unit(reader));
+					}
+					reader.endArray();
+					seen |= 2;
+					break;
+				default:
+					reader.skipValue();
+			}
+		}
+		if(seen != 3)
+		{
+			throw JsonUtils.missingField(seen, movesKey, unitsKey);
+		}
+
+		this.moves = moves;
+		this.units = units;
+	}
+
+	@Override
+	public BoardDiffMessage readJson(JsonReader reader) throws IOException, JsonConversionException
+	{
+		return new BoardDiffMessage(reader);
+	}
+
+	@Override
+	protected void writeJsonFields(JsonWriter writer) throws IOException
+	{
+		writer.name(movesKey).beginArray();
+		for(int value : moves)
+		{
+			writer.value(value);
+		}
+		writer.endArray();
+		writer.name(unitsKey).beginArray();
+		for(Unit unit : units)
+		{
+			unit.writeJson(writer);
+		}
+		writer.endArray();
+	}
+
+	/**
+	 Constructs an object from binary representation
+
+	 @param input
+	 The data for this object, as written by {@link #writeBinary(DataOutput)}
+
+	 @throws IOException
+	 If the data is truncated or malformed
+	 */
+	public BoardDiffMessage(DataInput input) throws IOException
+	{
+		int moveCount = BinaryUtils.readUnsignedVarInt(input);
+		if(moveCount < 0 || moveCount > Integer.MAX_VALUE / MOVE_FIELDS)
+		{
+			throw new IOException("Too many moves in board diff: " + moveCount);
+		}
+		//the counts come from the network, so only trust them as far as a typical tick
+		int[] moves = new int[Math.min(moveCount, 256) * MOVE_FIELDS];
+		for(int i = 0; i < moveCount * MOVE_FIELDS; i++)
+		{
+			if(i == moves.length)
+			{
+				moves = Arrays.copyOf(moves, Math.min(moves.length * 2, moveCount * MOVE_FIELDS));
+			}
+			moves[i] = BinaryUtils.readVarInt(input);
+		}
+		this.moves = moves;
+
+		int unitCount = BinaryUtils.readUnsignedVarInt(input);
+		units = new ArrayList<>(Math.min(unitCount, 256));
+		for(int i = 0; i < unitCount; i++)
+		{
+			units.add(new Unit(input));
+		}
+	}
+
+	@Override
+	public BoardDiffMessage fromBinary(DataInput input) throws IOException
+	{
+		return new BoardDiffMessage(input);
+	}
+
+	@Override
+	public void writeBinary(DataOutput output) throws IOException
+	{
+		BinaryUtils.writeUnsignedVarInt(output, moves.length / MOVE_FIELDS);
+		for(int value : moves)
+		{
+			BinaryUtils.writeVarInt(output, value);
+		}
+		BinaryUtils.writeUnsignedVarInt(output, units.size());
+		for(Unit unit : units)
+		{
+			unit.writeBinary(output);
+		}
+	}
+
+	@Override
+	public void buildJson(JsonObject root, HashSet<Object> loopDetector) throws JsonConversionException
+	{
+		super.buildJson(root, loopDetector);
+		JsonArray movesJson = new JsonArray();
+		for(int value : moves)
+		{
+			movesJson.add(value);
+		}
+		root.add(movesKey, movesJson);
+		JsonArray unitsJson = new JsonArray();
+		for(Unit unit : units)
+		{
+			unitsJson.add(unit.toJson(loopDetector));
+		}
+		root.add(unitsKey, unitsJson);
+	}
+
+	@Override
+	public void applyToClient(Client client) {
+		client.receiveBoardDiff(this);
+	}
+
+	@Override
+	public void applyToServer(Server server, ConnectionHandler source) {
+		//board state only flows from the server to clients
+	}
+
+	@Override
+	public long getKey() {
+		return serialVersionUID;
+	}
+}
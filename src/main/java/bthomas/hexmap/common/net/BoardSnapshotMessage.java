@@ -0,0 +1,269 @@
+package bthomas.hexmap.common.net;
+
+import bthomas.hexmap.client.Client;
+import bthomas.hexmap.common.Unit;
+import bthomas.hexmap.common.json.JsonConversionException;
+import bthomas.hexmap.common.util.BinaryUtils;
+import bthomas.hexmap.common.util.JsonUtils;
+import bthomas.hexmap.server.ConnectionHandler;
+import bthomas.hexmap.server.Server;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * This message carries part of the board's state to a client that has just joined
+ * <p>
+ * A snapshot is split into chunks so no single frame grows with the size of the board. The client collects chunks in
+ * order and applies the whole snapshot at once when the last one arrives.
+ *
+ * @author Brendan Thomas
+ * @since 2019-03-29
+ */
+public class BoardSnapshotMessage extends HexMessage{
+	private static final long serialVersionUID = -3920412876633152771L;
+
+	//the most units sent in one chunk
+	public static final int CHUNK_UNITS = 256;
+
+	public final int chunk;
+	private static final String chunkKey = "chunk";
+	public final int chunkCount;
+	private static final String chunkCountKey = "chunks";
+	public final List<Unit> units;
+	private static final String unitsKey = "units";
+
+	/**
+	 * Standard constructor
+	 *
+	 * @param chunk The position of this chunk in the snapshot, starting at 0
+	 * @param chunkCount The number of chunks in the snapshot
+	 * @param units The units in this chunk
+	 */
+	public BoardSnapshotMessage(int chunk, int chunkCount, List<Unit> units) {
+		this.chunk = chunk;
+		this.chunkCount = chunkCount;
+		this.units = units;
+	}
+
+	/**
+	 * Dummy constructor to use with JSON serialization
+	 */
+	public BoardSnapshotMessage()
+	{
+		this(0, 1, Collections.emptyList());
+	}
+
+	/**
+	 * Splits the board's units into the chunks of a snapshot
+	 *
+	 * @param units The units to send, which must not be changed by anyone else while the chunks are in use
+	 * @return The chunks in the order they must be sent, always at least one
+	 */
+	public static List<BoardSnapshotMessage> split(List<Unit> units) {
+		int chunkCount = Math.max(1, (units.size() + CHUNK_UNITS - 1) / CHUNK_UNITS);
+		List<BoardSnapshotMessage> res = new ArrayList<>(chunkCount);
+		for(int i = 0; i < chunkCount; i++) {
+			int start = i * CHUNK_UNITS;
+			int end = Math.min(units.size(), start + CHUNK_UNITS);
+			res.add(new BoardSnapshotMessage(i, chunkCount, units.subList(start, end)));
+		}
+		return res;
+	}
+
+	/**
+	 * Checks if this is the final chunk of its snapshot
+	 *
+	 * @return True if no more chunks follow this one
+	 */
+	public boolean isLast() {
+		return chunk == chunkCount - 1;
+	}
+
+	/**
+	 Constructs an object from JSON representation
+
+	 @param root
+	 The JsonObject containing the data for this object.
+
+	 @throws JsonConversionException
+	 If there is not proper data stored in the JsonObject
+	 */
+	public BoardSnapshotMessage(JsonObject root) throws JsonConversionException
+	{
+		chunk = JsonUtils.getInt(root, chunkKey);
+		chunkCount = JsonUtils.getInt(root, chunkCountKey);
+		JsonArray unitsJson = JsonUtils.getJsonArray(root, unitsKey);
+		if(unitsJson == null)
+		{
+			throw new JsonConversionException("No field \"" + unitsKey + "\" defined in Json");
+		}
+
+		units = new ArrayList<>(unitsJson.size());
+		for(JsonElement unit : unitsJson)
+		{
+			if(!unit.isJsonObject())
+			{
+				throw new JsonConversionException("Invalid unit in board snapshot");
+			}
+			units.add(new Unit(unit.getAsJsonObject()));
+		}
+	}
+
+	@Override
+	public BoardSnapshotMessage fromJson(JsonObject root) throws JsonConversionException
+	{
+		return new BoardSnapshotMessage(root);
+	}
+
+	/**
+	 Constructs an object from a JSON stream, with the reader positioned just after the message key
+
+	 @param reader
+	 The reader to take the rest of the message's fields from
+
+	 @throws IOException
+	 If the stream could not be read or is not valid JSON
+	 @throws JsonConversionException
+	 If a required field is missing
+	 */
+	public BoardSnapshotMessage(JsonReader reader) throws IOException, JsonConversionException
+	{
+		int chunk = 0;
+		int chunkCount = 0;
+		List<Unit> units = null;
+		int seen = 0;
+		while(reader.hasNext())
+		{
+			switch(reader.nextName())
+			{
+				case chunkKey:
+					chunk = reader.nextInt();
+					seen |= 1;
+					break;
+				case chunkCountKey:
+					chunkCount = reader.nextInt();
+					seen |= 2;
+					break;
+				case unitsKey:
+					units = new ArrayList<>();
+					reader.beginArray();
+					while(reader.hasNext())
+					{
+						units.add(new Unit(reader));
+					}
+					reader.endArray();
+					seen |= 4;
+					break;
+				default:
+					reader.skipValue();
+			}
+		}
+		if(seen != 7)
+		{
+			throw JsonUtils.missingField(seen, chunkKey, chunkCountKey, unitsKey);
+		}
+
+		this.chunk = chunk;
+		this.chunkCount = chunkCount;
+		this.units = units;
+	}
+
+	@Override
+	public BoardSnapshotMessage readJson(JsonReader reader) throws IOException, JsonConversionException
+	{
+		return new BoardSnapshotMessage(reader);
+	}
+
+	@Override
+	protected void writeJsonFields(JsonWriter writer) throws IOException
+	{
+		writer.name(chunkKey).value(chunk);
+		writer.name(chunkCountKey).value(chunkCount);
+		writer.name(unitsKey).beginArray();
+		for(Unit unit : units)
+		{
+			unit.writeJson(writer);
+		}
+		writer.endArray();
+	}
+
+	/**
+	 Constructs an object from binary representation
+
+	 @param input
+	 The data for this object, as written by {@link #writeBinary(DataOutput)}
+
+	 @throws IOException
+	 If the data is truncated or malformed
+	 */
+	public BoardSnapshotMessage(DataInput input) throws IOException
+	{
+		chunk = BinaryUtils.readUnsignedVarInt(input);
+		chunkCount = BinaryUtils.readUnsignedVarInt(input);
+		int count = BinaryUtils.readUnsignedVarInt(input);
+		//the count comes from the network, so only trust it as far as one chunk
+		units = new ArrayList<>(Math.min(count, CHUNK_UNITS));
+		for(int i = 0; i < count; i++)
+		{
+			units.add(new Unit(input));
+		}
+	}
+
+	@Override
+	public BoardSnapshotMessage fromBinary(DataInput input) throws IOException
+	{
+		return new BoardSnapshotMessage(input);
+	}
+
+	@Override
+	public void writeBinary(DataOutput output) throws IOException
+	{
+		BinaryUtils.writeUnsignedVarInt(output, chunk);
+		BinaryUtils.writeUnsignedVarInt(output, chunkCount);
+		BinaryUtils.writeUnsignedVarInt(output, units.size());
+		for(Unit unit : units)
+		{
+			unit.writeBinary(output);
+		}
+	}
+
+	@Override
+	public void buildJson(JsonObject root, HashSet<Object> loopDetector) throws JsonConversionException
+	{
+		super.buildJson(root, loopDetector);
+		root.addProperty(chunkKey, chunk);
+		root.addProperty(chunkCountKey, chunkCount);
+		JsonArray unitsJson = new JsonArray();
+		for(Unit unit : units)
+		{
+			unitsJson.add(unit.toJson(loopDetector));
+		}
+		root.add(unitsKey, unitsJson);
+	}
+
+	@Override
+	public void applyToClient(Client client) {
+		client.receiveSnapshot(this);
+	}
+
+	@Override
+	public void applyToServer(Server server, ConnectionHandler source) {
+		//board state only flows from the server to clients
+	}
+
+	@Override
+	public long getKey() {
+		return serialVersionUID;
+	}
+}
@@ -1,6 +1,7 @@
 package bthomas.hexmap.common.net;
 
 import bthomas.hexmap.common.json.JsonConversionException;
+import bthomas.hexmap.common.util.BinaryUtils;
 import bthomas.hexmap.common.util.JsonUtils;
 import bthomas.hexmap.logging.HexmapLogger;
 import bthomas.hexmap.Main;
@@ -8,8 +9,13 @@ import bthomas.hexmap.client.Client;
 import bthomas.hexmap.server.ConnectionHandler;
 import bthomas.hexmap.server.Server;
 import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 
 import javax.swing.*;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.HashSet;
 
 /**
@@ -63,6 +69,79 @@ public class ChatMessage extends HexMessage
         return new ChatMessage(root);
     }
 
+    /**
+     Constructs an object from a JSON stream, with the reader positioned just after the message key
+
+     @param reader
+     The reader to take the rest of the message's fields from
+
+     @throws IOException
+     If the stream could not be read or is not valid JSON
+     @throws JsonConversionException
+     If a required field is missing
+     */
+    public ChatMessage(JsonReader reader) throws IOException, JsonConversionException
+    {
+        String text = null;
+        int seen = 0;
+        while(reader.hasNext())
+        {
+            switch(reader.nextName())
+            {
+                case textKey:
+                    text = JsonUtils.nextString(reader);
+                    seen |= 1;
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        if(seen != 1)
+        {
+            throw JsonUtils.missingField(seen, textKey);
+        }
+
+        this.text = text;
+    }
+
+    @Override
+    public ChatMessage readJson(JsonReader reader) throws IOException, JsonConversionException
+    {
+        return new ChatMessage(reader);
+    }
+
+    @Override
+    protected void writeJsonFields(JsonWriter writer) throws IOException
+    {
+        writer.name(textKey).value(text);
+    }
+
+    /**
+     Constructs an object from binary representation
+
+     @param input
+     The data for this object, as written by {@link #writeBinary(DataOutput)}
+
+     @throws IOException
+     If the data is truncated or malformed
+     */
+    public ChatMessage(DataInput input) throws IOException
+    {
+        text = BinaryUtils.readString(input);
+    }
+
+    @Override
+    public ChatMessage fromBinary(DataInput input) throws IOException
+    {
+        return new ChatMessage(input);
+    }
+
+    @Override
+    public void writeBinary(DataOutput output) throws IOException
+    {
+        BinaryUtils.writeString(output, text);
+    }
+
     @Override
     public void buildJson(JsonObject root, HashSet<Object> loopDetector) throws JsonConversionException
     {
@@ -86,6 +165,13 @@ public class ChatMessage extends HexMessage
         server.sendAll(new ChatMessage(newText));
     }
 
+    @Override
+    public boolean isDroppable()
+    {
+        //chat is not part of the board
+        return true;
+    }
+
     @Override
     public long getKey()
     {
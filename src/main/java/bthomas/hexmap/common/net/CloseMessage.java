@@ -2,11 +2,17 @@ package bthomas.hexmap.common.net;
 
 import bthomas.hexmap.client.Client;
 import bthomas.hexmap.common.json.JsonConversionException;
+import bthomas.hexmap.common.util.BinaryUtils;
 import bthomas.hexmap.common.util.JsonUtils;
 import bthomas.hexmap.server.ConnectionHandler;
 import bthomas.hexmap.server.Server;
 import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.HashSet;
 
 /**
@@ -54,6 +60,79 @@ public class CloseMessage extends HexMessage {
 		return new CloseMessage(root);
 	}
 
+	/**
+	 Constructs an object from a JSON stream, with the reader positioned just after the message key
+
+	 @param reader
+	 The reader to take the rest of the message's fields from
+
+	 @throws IOException
+	 If the stream could not be read or is not valid JSON
+	 @throws JsonConversionException
+	 If a required field is missing
+	 */
+	public CloseMessage(JsonReader reader) throws IOException, JsonConversionException
+	{
+		String reason = null;
+		int seen = 0;
+		while(reader.hasNext())
+		{
+			switch(reader.nextName())
+			{
+				case reasonKey:
+					reason = JsonUtils.nextString(reader);
+					seen |= 1;
+					break;
+				default:
+					reader.skipValue();
+			}
+		}
+		if(seen != 1)
+		{
+			throw JsonUtils.missingField(seen, reasonKey);
+		}
+
+		this.reason = reason;
+	}
+
+	@Override
+	public CloseMessage readJson(JsonReader reader) throws IOException, JsonConversionException
+	{
+		return new CloseMessage(reader);
+	}
+
+	@Override
+	protected void writeJsonFields(JsonWriter writer) throws IOException
+	{
+		writer.name(reasonKey).value(reason);
+	}
+
+	/**
+	 Constructs an object from binary representation
+
+	 @param input
+	 The data for this object, as written by {@link #writeBinary(DataOutput)}
+
+	 @throws IOException
+	 If the data is truncated or malformed
+	 */
+	public CloseMessage(DataInput input) throws IOException
+	{
+		reason = BinaryUtils.readString(input);
+	}
+
+	@Override
+	public CloseMessage fromBinary(DataInput input) throws IOException
+	{
+		return new CloseMessage(input);
+	}
+
+	@Override
+	public void writeBinary(DataOutput output) throws IOException
+	{
+		BinaryUtils.writeString(output, reason);
+	}
+
 	@Override
 	public void buildJson(JsonObject root, HashSet<Object> loopDetector) throws JsonConversionException
 	{
@@ -1,6 +1,7 @@
 package bthomas.hexmap.common.net;
 
 import bthomas.hexmap.common.json.JsonConversionException;
+import bthomas.hexmap.common.util.BinaryUtils;
 import bthomas.hexmap.common.util.JsonUtils;
 import bthomas.hexmap.logging.HexmapLogger;
 import bthomas.hexmap.Main;
@@ -9,7 +10,12 @@ import bthomas.hexmap.commands.HexCommand;
 import bthomas.hexmap.server.ConnectionHandler;
 import bthomas.hexmap.server.Server;
 import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.HashSet;
 
 /**
@@ -68,6 +74,88 @@ public class CommandMessage extends HexMessage {
 		return new CommandMessage(root);
 	}
 
+	/**
+	 Constructs an object from a JSON stream, with the reader positioned just after the message key
+
+	 @param reader
+	 The reader to take the rest of the message's fields from
+
+	 @throws IOException
+	 If the stream could not be read or is not valid JSON
+	 @throws JsonConversionException
+	 If a required field is missing
+	 */
+	public CommandMessage(JsonReader reader) throws IOException, JsonConversionException
+	{
+		String name = null;
+		String command = null;
+		int seen = 0;
+		while(reader.hasNext())
+		{
+			switch(reader.nextName())
+			{
+				case nameKey:
+					name = JsonUtils.nextString(reader);
+					seen |= 1;
+					break;
+				case commandKey:
+					command = JsonUtils.nextString(reader);
+					seen |= 2;
+					break;
+				default:
+					reader.skipValue();
+			}
+		}
+		if(seen != 3)
+		{
+			throw JsonUtils.missingField(seen, nameKey, commandKey);
+		}
+
+		this.name = name;
+		this.command = command;
+	}
+
+	@Override
+	public CommandMessage readJson(JsonReader reader) throws IOException, JsonConversionException
+	{
+		return new CommandMessage(reader);
+	}
+
+	@Override
+	protected void writeJsonFields(JsonWriter writer) throws IOException
+	{
+		writer.name(nameKey).value(name);
+		writer.name(commandKey).value(command);
+	}
+
+	/**
+	 Constructs an object from binary representation
+
+	 @param input
+	 The data for this object, as written by {@link #writeBinary(DataOutput)}
+
+	 @throws IOException
+	 If the data is truncated or malformed
+	 */
+	public CommandMessage(DataInput input) throws IOException
+	{
+		name = BinaryUtils.readString(input);
+		command = BinaryUtils.readString(input);
+	}
+
+	@Override
+	public CommandMessage fromBinary(DataInput input) throws IOException
+	{
+		return new CommandMessage(input);
+	}
+
+	@Override
+	public void writeBinary(DataOutput output) throws IOException
+	{
+		BinaryUtils.writeString(output, name);
+		BinaryUtils.writeString(output, command);
+	}
+
 	@Override
 	public void buildJson(JsonObject root, HashSet<Object> loopDetector) throws JsonConversionException
 	{
@@ -0,0 +1,134 @@
+package bthomas.hexmap.common.net;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+/**
+ Compresses batches of frames sent on one connection into DEFLATE blocks.
+ <p>
+ Every block continues the same DEFLATE stream and ends with a sync flush, so the receiver can decode it as soon as it
+ arrives while later blocks still benefit from what earlier ones contained. Batches smaller than the threshold are not
+ worth the effort and should be sent as they are, which does not disturb the stream.
+ <p>
+ A compressor holds native memory until {@link #close()} is called. It is not thread safe.
+
+ @author Brendan Thomas
+ @since 2019-03-30 */
+public final class FrameCompressor
+{
+    //room for the marker and the longest varint length in front of the compressed bytes
+    private static final int HEADER_SPACE = 6;
+
+    private final Deflater deflater;
+    private final int threshold;
+    private byte[] output = new byte[8192];
+
+    /**
+     Standard constructor
+
+     @param level
+     The DEFLATE compression level, from 1 (fastest) to 9 (smallest)
+     @param threshold
+     The smallest batch, in bytes, that should be compressed
+     */
+    public FrameCompressor(int level, int threshold)
+    {
+        //raw DEFLATE, the block framing already says where each block ends
+        deflater = new Deflater(level, true);
+        this.threshold = threshold;
+    }
+
+    /**
+     Checks if a batch is large enough to compress
+
+     @param bytes
+     The uncompressed size of the batch
+
+     @return True if the batch should be passed to {@link #compress}
+     */
+    public boolean shouldCompress(int bytes)
+    {
+        return bytes >= threshold;
+    }
+
+    /**
+     Compresses a batch of frames into one block
+
+     @param frames
+     The frames of the batch
+     @param start
+     The first frame to compress
+     @param end
+     One past the last frame to compress
+     @param format
+     The format to encode the frames in
+
+     @return The block, ready to send. It is only valid until the next call.
+
+     @throws MessageFormatException
+     If a frame could not be converted
+     */
+    public ByteBuffer compress(MessageFrame[] frames, int start, int end, WireFormat format)
+            throws MessageFormatException
+    {
+        int length = HEADER_SPACE;
+        for(int i = start; i < end; i++)
+        {
+            deflater.setInput(frames[i].getBytes(format));
+            while(!deflater.needsInput())
+            {
+                length = deflate(length, Deflater.NO_FLUSH);
+            }
+        }
+        //a full output buffer may still hold back flushed data, so go until the deflater leaves some space free
+        do
+        {
+            length = deflate(length, Deflater.SYNC_FLUSH);
+        }
+        while(length == output.length);
+
+        //write the header right before the compressed bytes so the block is one contiguous range
+        int compressed = length - HEADER_SPACE;
+        int headerStart = HEADER_SPACE - 1 - varIntSize(compressed);
+        output[headerStart] = WireFormat.COMPRESSED_MARKER;
+        int pos = headerStart + 1;
+        int value = compressed;
+        while((value & ~0x7F) != 0)
+        {
+            output[pos++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        output[pos] = (byte) value;
+
+        return ByteBuffer.wrap(output, headerStart, length - headerStart);
+    }
+
+    /**
+     Releases the native memory used by this compressor. It can not be used afterwards.
+     */
+    public void close()
+    {
+        deflater.end();
+    }
+
+    private int deflate(int length, int flush)
+    {
+        if(length == output.length)
+        {
+            output = Arrays.copyOf(output, output.length * 2);
+        }
+        return length + deflater.deflate(output, length, output.length - length, flush);
+    }
+
+    private static int varIntSize(int value)
+    {
+        int size = 1;
+        while((value & ~0x7F) != 0)
+        {
+            size++;
+            value >>>= 7;
+        }
+        return size;
+    }
+}
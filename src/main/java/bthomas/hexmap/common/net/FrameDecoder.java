@@ -0,0 +1,398 @@
+package bthomas.hexmap.common.net;
+
+import bthomas.hexmap.Main;
+import bthomas.hexmap.common.json.JsonConversionException;
+import bthomas.hexmap.common.util.BinaryUtils;
+import bthomas.hexmap.common.util.JsonUtils;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ Turns the raw bytes received on a connection back into messages.
+ <p>
+ Bytes are pushed in as they arrive, in pieces of any size, and every message they complete is handed to a callback.
+ Each frame is checked for its format on its own, so a connection can switch from {@link WireFormat#JSON} to {@link
+ WireFormat#BINARY} part way through. Blocks written by a {@link FrameCompressor} are inflated and the frames inside
+ them decoded the same way.
+ <p>
+ A decoder keeps the partial frame between calls, so each connection needs its own. It is not thread safe, and holds
+ native memory once it has seen a compressed block until {@link #close()} is called.
+
+ @author Brendan Thomas
+ @since 2019-03-24 */
+public class FrameDecoder
+{
+    //the largest frame that will be accepted, anything bigger is treated as a broken connection
+    public static final int MAX_FRAME_BYTES = 1 << 20;
+    //the most data one compressed block may inflate to, a batch can be a little larger than its limit
+    private static final int MAX_INFLATED_BYTES = 4 * MAX_FRAME_BYTES;
+    private static final int INITIAL_BUFFER_SIZE = 8192;
+
+    private final Supplier<MessageRegistry> registry;
+    private final JsonCodec.Decoder jsonDecoder = new JsonCodec.Decoder();
+    //whether this decoder reads the contents of compressed blocks, which can not hold further blocks
+    private final boolean nested;
+    //created on the first compressed block, which continues the stream of all blocks before it
+    private Inflater inflater = null;
+    private FrameDecoder inflatedFrames = null;
+    private byte[] inflateBuffer = null;
+
+    private byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+    //unconsumed bytes are buffer[start, end)
+    private int start = 0;
+    private int end = 0;
+    //how far into the current JSON line has already been searched for a newline
+    private int scanned = 0;
+
+    /**
+     Standard constructor
+
+     @param registry
+     Gives the message types to decode with, checked for every frame since the ids in use can change after the
+     handshake
+     */
+    public FrameDecoder(Supplier<MessageRegistry> registry)
+    {
+        this(registry, false);
+    }
+
+    private FrameDecoder(Supplier<MessageRegistry> registry, boolean nested)
+    {
+        this.registry = registry;
+        this.nested = nested;
+    }
+
+    /**
+     Releases the native memory used to inflate compressed blocks. The decoder can not be used afterwards.
+     */
+    public void close()
+    {
+        if(inflater != null)
+        {
+            inflater.end();
+        }
+    }
+
+    /**
+     Adds received bytes and decodes any messages they complete
+
+     @param data
+     The array holding the received bytes
+     @param offset
+     Where the received bytes start in the array
+     @param length
+     The number of bytes received
+     @param output
+     Called with each complete message, in the order they were received
+
+     @throws MessageFormatException
+     If a frame is malformed, too large, or for an unregistered message. The connection can not be read further.
+     */
+    public void feed(byte[] data, int offset, int length, Consumer<HexMessage> output) throws MessageFormatException
+    {
+        ensureSpace(length);
+        System.arraycopy(data, offset, buffer, end, length);
+        end += length;
+        decodeAvailable(output);
+    }
+
+    /**
+     Adds received bytes and decodes any messages they complete
+
+     @param data
+     The received bytes, all remaining bytes are consumed
+     @param output
+     Called with each complete message, in the order they were received
+
+     @throws MessageFormatException
+     If a frame is malformed, too large, or for an unregistered message. The connection can not be read further.
+     */
+    public void feed(ByteBuffer data, Consumer<HexMessage> output) throws MessageFormatException
+    {
+        int length = data.remaining();
+        ensureSpace(length);
+        data.get(buffer, end, length);
+        end += length;
+        decodeAvailable(output);
+    }
+
+    /**
+     Makes room at the end of the buffer for new bytes
+
+     @param length
+     The number of bytes that will be added
+     */
+    private void ensureSpace(int length)
+    {
+        if(buffer.length - end >= length)
+        {
+            return;
+        }
+
+        //move the partial frame to the front first, it is usually small
+        int pending = end - start;
+        if(start > 0)
+        {
+            System.arraycopy(buffer, start, buffer, 0, pending);
+            scanned -= start;
+            start = 0;
+            end = pending;
+        }
+        if(buffer.length - end < length)
+        {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, end + length));
+        }
+    }
+
+    private void decodeAvailable(Consumer<HexMessage> output) throws MessageFormatException
+    {
+        while(start < end)
+        {
+            if(buffer[start] == WireFormat.COMPRESSED_MARKER)
+            {
+                if(!nextCompressed(output))
+                {
+                    break;
+                }
+                continue;
+            }
+
+            HexMessage message = buffer[start] == WireFormat.BINARY_MARKER ? nextBinary() : nextJson();
+            if(message == null)
+            {
+                break;
+            }
+            output.accept(message);
+        }
+
+        if(start == end)
+        {
+            start = 0;
+            end = 0;
+            scanned = 0;
+        }
+    }
+
+    /**
+     Finds the payload of the length prefixed frame at the start of the buffer, and moves past the frame if it has
+     fully arrived
+
+     @param maxLength
+     The largest payload to accept
+
+     @return Where the payload starts, or -1 if the whole frame has not arrived yet. The payload ends at the new start
+     of the buffer.
+     */
+    private int payloadStart(int maxLength) throws MessageFormatException
+    {
+        //read the varint length by hand since it may not have fully arrived
+        int pos = start + 1;
+        int length = 0;
+        for(int shift = 0; ; shift += 7)
+        {
+            if(pos >= end)
+            {
+                return -1;
+            }
+            if(shift > 28)
+            {
+                throw new MessageFormatException("Malformed frame length");
+            }
+            int b = buffer[pos++] & 0xFF;
+            length |= (b & 0x7F) << shift;
+            if((b & 0x80) == 0)
+            {
+                break;
+            }
+        }
+        if(length < 0 || length > maxLength)
+        {
+            throw new MessageFormatException("Frame too large: " + Integer.toUnsignedString(length) + " bytes");
+        }
+        if(end - pos < length)
+        {
+            return -1;
+        }
+
+        start = pos + length;
+        scanned = start;
+        return pos;
+    }
+
+    /**
+     Inflates the compressed block at the start of the buffer and decodes the frames inside it
+
+     @param output
+     Called with each message in the block
+
+     @return True if the block was decoded, false if the whole block has not arrived yet
+     */
+    private boolean nextCompressed(Consumer<HexMessage> output) throws MessageFormatException
+    {
+        if(nested)
+        {
+            throw new MessageFormatException("Compressed block inside a compressed block");
+        }
+        //incompressible data grows a little, so a block may be larger than the frames in it
+        int pos = payloadStart(MAX_INFLATED_BYTES);
+        if(pos < 0)
+        {
+            return false;
+        }
+
+        if(inflater == null)
+        {
+            inflater = new Inflater(true);
+            inflatedFrames = new FrameDecoder(registry, true);
+            inflateBuffer = new byte[INITIAL_BUFFER_SIZE];
+        }
+
+        inflater.setInput(buffer, pos, start - pos);
+        int total = 0;
+        try
+        {
+            while(true)
+            {
+                int inflated = inflater.inflate(inflateBuffer);
+                if(inflated == 0)
+                {
+                    if(inflater.needsInput() || inflater.finished())
+                    {
+                        break;
+                    }
+                    throw new MessageFormatException("Compressed block needs a preset dictionary");
+                }
+
+                total += inflated;
+                if(total > MAX_INFLATED_BYTES)
+                {
+                    throw new MessageFormatException("Compressed block too large: over " + total + " bytes");
+                }
+                inflatedFrames.feed(inflateBuffer, 0, inflated, output);
+            }
+        }
+        catch(DataFormatException e)
+        {
+            throw new MessageFormatException("Malformed compressed block", e);
+        }
+        return true;
+    }
+
+    /**
+     Decodes the binary frame at the start of the buffer
+
+     @return The decoded message, or null if the whole frame has not arrived yet
+     */
+    private HexMessage nextBinary() throws MessageFormatException
+    {
+        int pos = payloadStart(MAX_FRAME_BYTES);
+        if(pos < 0)
+        {
+            return null;
+        }
+        int length = start - pos;
+
+        DataInputStream payload = new DataInputStream(new ByteArrayInputStream(buffer, pos, length));
+        try
+        {
+            int id = BinaryUtils.readUnsignedVarInt(payload);
+            HexMessage template = registry.get().getById(id);
+            if(template == null)
+            {
+                throw new MessageFormatException("Unregistered message id: " + id);
+            }
+            //any bytes left over are fields from a newer version, and are skipped
+            return template.fromBinary(payload);
+        }
+        catch(IOException | RuntimeException e)
+        {
+            throw new MessageFormatException("Malformed binary message", e);
+        }
+    }
+
+    /**
+     Decodes the JSON line at the start of the buffer
+
+     @return The decoded message, or null if the whole line has not arrived yet
+     */
+    private HexMessage nextJson() throws MessageFormatException
+    {
+        int newline = -1;
+        for(int i = Math.max(scanned, start); i < end; i++)
+        {
+            if(buffer[i] == '\n')
+            {
+                newline = i;
+                break;
+            }
+        }
+        if(newline < 0)
+        {
+            scanned = end;
+            if(end - start > MAX_FRAME_BYTES)
+            {
+                throw new MessageFormatException("Frame too large: " + (end - start) + " bytes");
+            }
+            return null;
+        }
+
+        int lineStart = start;
+        start = newline + 1;
+        scanned = start;
+
+        //lines written by this version can be streamed, anything else goes through a JSON tree
+        if(JsonCodec.Decoder.isKeyFirst(buffer, lineStart, newline - lineStart))
+        {
+            return jsonDecoder.decode(buffer, lineStart, newline - lineStart, registry.get());
+        }
+        return decodeJson(new String(buffer, lineStart, newline - lineStart, StandardCharsets.UTF_8));
+    }
+
+    /**
+     Converts a line of JSON into a message
+
+     @param line
+     The line, without the terminating newline
+
+     @return The decoded message
+
+     @throws MessageFormatException
+     If the line is not a valid registered message
+     */
+    private HexMessage decodeJson(String line) throws MessageFormatException
+    {
+        try
+        {
+            JsonElement inputMessage = Main.PARSER.parse(line);
+            if(!(inputMessage instanceof JsonObject))
+            {
+                throw new MessageFormatException("Received message not a HexMessage object: " + line);
+            }
+
+            JsonObject messageJson = (JsonObject) inputMessage;
+            long key = JsonUtils.getLong(messageJson, "key");
+            HexMessage template = registry.get().get(key);
+            if(template == null)
+            {
+                throw new MessageFormatException("Unregistered message key: " + key);
+            }
+            return template.fromJson(messageJson);
+        }
+        catch(JsonConversionException | JsonParseException e)
+        {
+            throw new MessageFormatException("Invalid JSON message: " + line, e);
+        }
+    }
+}
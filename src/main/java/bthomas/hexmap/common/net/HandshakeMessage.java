@@ -1,21 +1,32 @@
 package bthomas.hexmap.common.net;
 
 import bthomas.hexmap.common.json.JsonConversionException;
+import bthomas.hexmap.common.util.BinaryUtils;
 import bthomas.hexmap.common.util.JsonUtils;
 import bthomas.hexmap.logging.HexmapLogger;
 import bthomas.hexmap.Main;
 import bthomas.hexmap.client.Client;
 import bthomas.hexmap.server.ConnectionHandler;
 import bthomas.hexmap.server.Server;
+import bthomas.hexmap.server.ServerConfig;
+import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.HashSet;
 
 /**
  This message is used to initialize the connection between client and server, and make sure they are running compatible
  versions.
  <p>
- Do not change this class, that will cause crashes when clients try to connect with the wrong version.
+ Do not remove or change the meaning of fields in this class, that will cause crashes when clients try to connect with
+ the wrong version. New fields must be optional in JSON so older versions can still be told they are out of date.
+ Handshakes are always sent as JSON, since neither side knows what the other understands yet.
 
  @author Brendan Thomas
  @since 2019-02-15 */
@@ -24,16 +35,60 @@ public class HandshakeMessage extends HexMessage
     private static final long serialVersionUID = 8682067740878305603L;
     public final String version;
     private static final String versionKey = "version";
+    //from a client, if it can receive binary messages. From a server, if it will send them.
+    public final boolean binary;
+    private static final String binaryKey = "binary";
+    //from a client, if it can receive compressed blocks. From a server, if it will send them.
+    public final boolean compressed;
+    private static final String compressedKey = "compressed";
+    //from a server that will send binary, the key of each message type indexed by the id binary frames use for it
+    public final long[] types;
+    private static final String typesKey = "types";
 
     /**
      Standard constructor
 
      @param version
      The version of the client
+     @param binary
+     If the binary wire format is offered by a client or accepted by a server
+     @param compressed
+     If compression is offered by a client or accepted by a server
+     @param types
+     The server's message keys indexed by id, or null if binary is not used
      */
-    public HandshakeMessage(String version)
+    public HandshakeMessage(String version, boolean binary, boolean compressed, long[] types)
     {
         this.version = version;
+        this.binary = binary;
+        this.compressed = compressed;
+        this.types = types;
+    }
+
+    /**
+     Constructor for a client's handshake, which has no id table
+
+     @param version
+     The version of the client
+     @param binary
+     If the binary wire format is offered
+     @param compressed
+     If compression is offered
+     */
+    public HandshakeMessage(String version, boolean binary, boolean compressed)
+    {
+        this(version, binary, compressed, null);
+    }
+
+    /**
+     Constructor for a handshake that only uses JSON
+
+     @param version
+     The version of the client
+     */
+    public HandshakeMessage(String version)
+    {
+        this(version, false, false);
     }
 
     /**
@@ -56,6 +111,28 @@ public class HandshakeMessage extends HexMessage
     public HandshakeMessage(JsonObject root) throws JsonConversionException
     {
         version = JsonUtils.getString(root, versionKey);
+        binary = JsonUtils.getBoolean(root, binaryKey, false);
+        compressed = JsonUtils.getBoolean(root, compressedKey, false);
+        if(root.has(typesKey))
+        {
+            JsonArray array = JsonUtils.getJsonArray(root, typesKey);
+            types = new long[array.size()];
+            for(int i = 0; i < types.length; i++)
+            {
+                try
+                {
+                    types[i] = array.get(i).getAsLong();
+                }
+                catch(ClassCastException | IllegalStateException | NumberFormatException e)
+                {
+                    throw new JsonConversionException("Invalid message type in handshake: " + array.get(i));
+                }
+            }
+        }
+        else
+        {
+            types = null;
+        }
     }
 
     @Override
@@ -64,10 +141,167 @@ public class HandshakeMessage extends HexMessage
         return new HandshakeMessage(root);
     }
 
+    /**
+     Constructs an object from a JSON stream, with the reader positioned just after the message key
+
+     @param reader
+     The reader to take the rest of the message's fields from
+
+     @throws IOException
+     If the stream could not be read or is not valid JSON
+     @throws JsonConversionException
+     If a required field is missing
+     */
+    public HandshakeMessage(JsonReader reader) throws IOException, JsonConversionException
+    {
+        String version = null;
+        boolean binary = false;
+        boolean compressed = false;
+        long[] types = null;
+        int seen = 0;
+        while(reader.hasNext())
+        {
+            switch(reader.nextName())
+            {
+                case versionKey:
+                    version = JsonUtils.nextString(reader);
+                    seen |= 1;
+                    break;
+                case binaryKey:
+                    binary = reader.nextBoolean();
+                    break;
+                case compressedKey:
+                    compressed = reader.nextBoolean();
+                    break;
+                case typesKey:
+                    types = readTypes(reader);
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        if(seen != 1)
+        {
+            throw JsonUtils.missingField(seen, versionKey);
+        }
+
+        this.version = version;
+        this.binary = binary;
+        this.compressed = compressed;
+        this.types = types;
+    }
+
+    private static long[] readTypes(JsonReader reader) throws IOException
+    {
+        long[] res = new long[16];
+        int count = 0;
+        reader.beginArray();
+        while(reader.hasNext())
+        {
+            if(count == res.length)
+            {
+                res = Arrays.copyOf(res, count * 2);
+            }
+            res[count++] = reader.nextLong();
+        }
+        reader.endArray();
+        return Arrays.copyOf(res, count);
+    }
+
+    @Override
+    public HandshakeMessage readJson(JsonReader reader) throws IOException, JsonConversionException
+    {
+        return new HandshakeMessage(reader);
+    }
+
+    @Override
+    protected void writeJsonFields(JsonWriter writer) throws IOException
+    {
+        writer.name(versionKey).value(version);
+        writer.name(binaryKey).value(binary);
+        writer.name(compressedKey).value(compressed);
+        if(types != null)
+        {
+            writer.name(typesKey).beginArray();
+            for(long type : types)
+            {
+                writer.value(type);
+            }
+            writer.endArray();
+        }
+    }
+
+    /**
+     Constructs an object from binary representation
+
+     @param input
+     The data for this object, as written by {@link #writeBinary(DataOutput)}
+
+     @throws IOException
+     If the data is truncated or malformed
+     */
+    public HandshakeMessage(DataInput input) throws IOException
+    {
+        version = BinaryUtils.readString(input);
+        binary = input.readBoolean();
+        compressed = input.readBoolean();
+        //a count of zero means there is no id table
+        int count = BinaryUtils.readUnsignedVarInt(input);
+        if(count == 0)
+        {
+            types = null;
+        }
+        else
+        {
+            types = new long[count - 1];
+            for(int i = 0; i < types.length; i++)
+            {
+                types[i] = BinaryUtils.readVarLong(input);
+            }
+        }
+    }
+
+    @Override
+    public HandshakeMessage fromBinary(DataInput input) throws IOException
+    {
+        return new HandshakeMessage(input);
+    }
+
+    @Override
+    public void writeBinary(DataOutput output) throws IOException
+    {
+        BinaryUtils.writeString(output, version);
+        output.writeBoolean(binary);
+        output.writeBoolean(compressed);
+        if(types == null)
+        {
+            BinaryUtils.writeUnsignedVarInt(output, 0);
+        }
+        else
+        {
+            BinaryUtils.writeUnsignedVarInt(output, types.length + 1);
+            for(long type : types)
+            {
+                BinaryUtils.writeVarLong(output, type);
+            }
+        }
+    }
+
     @Override
     public void buildJson(JsonObject root, HashSet<Object> loopDetector) throws JsonConversionException
     {
         root.addProperty(versionKey, version);
+        root.addProperty(binaryKey, binary);
+        root.addProperty(compressedKey, compressed);
+        if(types != null)
+        {
+            JsonArray array = new JsonArray();
+            for(long type : types)
+            {
+                array.add(type);
+            }
+            root.add(typesKey, array);
+        }
         super.buildJson(root, loopDetector);
     }
 
@@ -75,19 +309,35 @@ public class HandshakeMessage extends HexMessage
     public void applyToClient(Client client)
     {
         Main.logger.log(HexmapLogger.INFO, "Received handshake from server.");
-        client.respondToHandshake();
+        client.respondToHandshake(binary, compressed, types);
     }
 
     @Override
     public void applyToServer(Server server, ConnectionHandler source)
     {
+        ServerConfig config = server.getConfig();
+        boolean useBinary = binary && config.binaryWire;
+        boolean useCompression = compressed && config.compression;
         if(!version.equals(Main.version))
         {
             String reason = "wrong version: " + version + ".";
             Main.logger.log(HexmapLogger.INFO, "Rejected connection for: " + reason);
             source.addMessage(new CloseMessage(reason));
+            useBinary = false;
+            useCompression = false;
+        }
+
+        //the reply is pinned to JSON, everything queued after it may be binary and use the ids it lists
+        MessageRegistry registry = server.getRegistry();
+        HandshakeMessage reply = new HandshakeMessage(Main.version, useBinary, useCompression,
+                useBinary ? registry.getKeys() : null);
+        source.addFrame(new MessageFrame(reply, registry, WireFormat.JSON));
+        source.agreeFormat(useBinary ? WireFormat.BINARY : WireFormat.JSON);
+        //a client that offered compression can read it at any time, even if the reply itself ends up compressed
+        if(useCompression)
+        {
+            source.setCompressor(new FrameCompressor(config.compressionLevel, config.compressionThreshold));
         }
-        source.addMessage(new HandshakeMessage(Main.version));
     }
 
     @Override
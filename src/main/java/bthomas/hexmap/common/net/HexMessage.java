@@ -1,12 +1,17 @@
 package bthomas.hexmap.common.net;
 
 import bthomas.hexmap.client.Client;
+import bthomas.hexmap.common.binary.BinarySerializable;
 import bthomas.hexmap.common.json.JsonConversionException;
 import bthomas.hexmap.common.json.JsonSerializable;
 import bthomas.hexmap.server.ConnectionHandler;
 import bthomas.hexmap.server.Server;
 import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 
+import java.io.DataInput;
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.HashSet;
 
@@ -17,14 +22,15 @@ import java.util.HashSet;
  * @author Brendan Thomas
  * @since 2019-02-15
  */
-public abstract class HexMessage implements Serializable, JsonSerializable
+public abstract class HexMessage implements Serializable, JsonSerializable, BinarySerializable
 {
     private static final long serialVersionUID = 7376065318780735728L;
+    public static final String KEY_FIELD = "key";
 
     @Override
     public void buildJson(JsonObject root, HashSet<Object> loopDetector) throws JsonConversionException
     {
-        root.addProperty("key", getKey());
+        root.addProperty(KEY_FIELD, getKey());
     }
 
     @Override
@@ -33,6 +39,48 @@ public abstract class HexMessage implements Serializable, JsonSerializable
         throw new UnsupportedOperationException("Base HexMessage fromJson: " + this.getClass());
     }
 
+    /**
+     * Reads the rest of a message of this type from a JSON stream. The reader is positioned inside the message's
+     * object just after the key, and is left before the end of the object.
+     *
+     * @param reader The reader to take the message's fields from
+     * @return The read message
+     * @throws IOException If the stream could not be read or is not valid JSON
+     * @throws JsonConversionException If the message's fields are not valid
+     */
+    public HexMessage readJson(JsonReader reader) throws IOException, JsonConversionException
+    {
+        throw new UnsupportedOperationException("Base HexMessage readJson: " + this.getClass());
+    }
+
+    /**
+     * Writes this message to a JSON stream as an object with the key as its first field, without building a JSON tree
+     *
+     * @param writer The writer to write to
+     * @throws IOException If the stream could not be written to
+     */
+    public void writeJson(JsonWriter writer) throws IOException
+    {
+        writer.beginObject();
+        writer.name(KEY_FIELD).value(getKey());
+        writeJsonFields(writer);
+        writer.endObject();
+    }
+
+    /**
+     * Writes the fields of this message other than the key to a JSON stream
+     *
+     * @param writer The writer to write to, positioned inside the message's object
+     * @throws IOException If the stream could not be written to
+     */
+    protected abstract void writeJsonFields(JsonWriter writer) throws IOException;
+
+    @Override
+    public HexMessage fromBinary(DataInput input) throws IOException
+    {
+        throw new UnsupportedOperationException("Base HexMessage fromBinary: " + this.getClass());
+    }
+
     /**
      * Apply this message to a server
      *
@@ -54,4 +102,14 @@ public abstract class HexMessage implements Serializable, JsonSerializable
      * @return the Id
      */
     public abstract long getKey();
+
+    /**
+     * Checks if this message can be thrown away instead of sent to a client that is too far behind
+     *
+     * @return True if skipping this message leaves the client's board correct
+     */
+    public boolean isDroppable()
+    {
+        return false;
+    }
 }
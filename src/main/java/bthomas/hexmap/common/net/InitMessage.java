@@ -2,12 +2,18 @@ package bthomas.hexmap.common.net;
 
 import bthomas.hexmap.client.Client;
 import bthomas.hexmap.common.json.JsonConversionException;
+import bthomas.hexmap.common.util.BinaryUtils;
 import bthomas.hexmap.common.util.JsonUtils;
 import bthomas.hexmap.server.ConnectionHandler;
 import bthomas.hexmap.server.Server;
 import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 
 import javax.swing.*;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.HashSet;
 
 /**
@@ -21,16 +27,21 @@ public class InitMessage extends HexMessage{
 	private final int x, y;
 	private static final String xKey = "x";
 	private static final String yKey = "y";
+	//token the client resumes its session with if the connection is lost, or null if it can't
+	private final String session;
+	private static final String sessionKey = "session";
 
 	/**
 	 * Standard constructor
 	 *
 	 * @param width The number of columns in the map
 	 * @param height The number of rows in the map
+	 * @param session The token to resume the session with, or null if the client can't resume
 	 */
-	public InitMessage(int width, int height) {
+	public InitMessage(int width, int height, String session) {
 		this.x = width;
 		this.y = height;
+		this.session = session;
 	}
 
 	/**
@@ -38,7 +49,7 @@ public class InitMessage extends HexMessage{
 	 */
 	public InitMessage()
 	{
-		this(-1, -1);
+		this(-1, -1, null);
 	}
 
 	/**
@@ -54,6 +65,7 @@ public class InitMessage extends HexMessage{
 	{
 		x = JsonUtils.getInt(root, xKey);
 		y = JsonUtils.getInt(root, yKey);
+		session = root.has(sessionKey) ? JsonUtils.getString(root, sessionKey) : null;
 	}
 
 	@Override
@@ -62,18 +74,115 @@ public class InitMessage extends HexMessage{
 		return new InitMessage(root);
 	}
 
+	/**
+	 Constructs an object from a JSON stream, with the reader positioned just after the message key
+
+	 @param reader
+	 The reader to take the rest of the message's fields from
+
+	 @throws IOException
+	 If the stream could not be read or is not valid JSON
+	 @throws JsonConversionException
+	 If a required field is missing
+	 */
+	public InitMessage(JsonReader reader) throws IOException, JsonConversionException
+	{
+		int x = 0;
+		int y = 0;
+		String session = null;
+		int seen = 0;
+		while(reader.hasNext())
+		{
+			switch(reader.nextName())
+			{
+				case xKey:
+					x = reader.nextInt();
+					seen |= 1;
+					break;
+				case yKey:
+					y = reader.nextInt();
+					seen |= 2;
+					break;
+				case sessionKey:
+					session = JsonUtils.nextString(reader);
+					break;
+				default:
+					reader.skipValue();
+			}
+		}
+		if(seen != 3)
+		{
+			throw JsonUtils.missingField(seen, xKey, yKey);
+		}
+
+		this.x = x;
+		this.y = y;
+		this.session = session;
+	}
+
+	@Override
+	public InitMessage readJson(JsonReader reader) throws IOException, JsonConversionException
+	{
+		return new InitMessage(reader);
+	}
+
+	@Override
+	protected void writeJsonFields(JsonWriter writer) throws IOException
+	{
+		writer.name(xKey).value(x);
+		writer.name(yKey).value(y);
+		if(session != null)
+		{
+			writer.name(sessionKey).value(session);
+		}
+	}
+
+	/**
+	 Constructs an object from binary representation
+
+	 @param input
+	 The data for this object, as written by {@link #writeBinary(DataOutput)}
+
+	 @throws IOException
+	 If the data is truncated or malformed
+	 */
+	public InitMessage(DataInput input) throws IOException
+	{
+		x = BinaryUtils.readVarInt(input);
+		y = BinaryUtils.readVarInt(input);
+		session = BinaryUtils.readString(input);
+	}
+
+	@Override
+	public InitMessage fromBinary(DataInput input) throws IOException
+	{
+		return new InitMessage(input);
+	}
+
+	@Override
+	public void writeBinary(DataOutput output) throws IOException
+	{
+		BinaryUtils.writeVarInt(output, x);
+		BinaryUtils.writeVarInt(output, y);
+		BinaryUtils.writeString(output, session);
+	}
+
 	@Override
 	public void buildJson(JsonObject root, HashSet<Object> loopDetector) throws JsonConversionException
 	{
 		root.addProperty(xKey, x);
 		root.addProperty(yKey, y);
+		if(session != null)
+		{
+			root.addProperty(sessionKey, session);
+		}
 		super.buildJson(root, loopDetector);
 	}
 
 	@Override
 	public void applyToClient(Client client) {
 		//use the swing worker thread since the GUI will be changing
-		client.lastPingReceived = System.currentTimeMillis();
+		client.setSessionToken(session);
 		SwingUtilities.invokeLater(() -> client.initConnection(x, y));
 	}
 
@@ -0,0 +1,265 @@
+package bthomas.hexmap.common.net;
+
+import bthomas.hexmap.common.json.JsonConversionException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.CharArrayWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ Streams messages to and from the JSON wire format without building a {@link com.google.gson.JsonObject} tree.
+ <p>
+ The JSON produced is the same as converting the message's tree with {@link bthomas.hexmap.Main#GSON}, except that the
+ message key always comes first. Readers rely on that to pick the message type before reading any other fields.
+ <p>
+ Encoders and decoders keep their buffers between messages, so each instance must only be used by one thread.
+
+ @author Brendan Thomas
+ @since 2019-03-26 */
+final class JsonCodec
+{
+    private static final ThreadLocal<Encoder> ENCODERS = ThreadLocal.withInitial(Encoder::new);
+
+    private JsonCodec()
+    {
+    }
+
+    /**
+     Encodes a message as a line of JSON
+
+     @param message
+     The message to encode
+
+     @return The UTF-8 bytes of the message, ending in a newline
+
+     @throws MessageFormatException
+     If the message could not be written
+     */
+    static byte[] encode(HexMessage message) throws MessageFormatException
+    {
+        Encoder encoder = ENCODERS.get();
+        try
+        {
+            return encoder.encode(message);
+        }
+        catch(IOException | RuntimeException e)
+        {
+            //the writer is left part way through an object, start over with a new one
+            ENCODERS.remove();
+            throw new MessageFormatException("Error converting message to JSON: " + message, e);
+        }
+    }
+
+    /**
+     A character buffer that can be reused and read without copying out its contents
+     */
+    private static final class FrameChars extends CharArrayWriter
+    {
+        FrameChars()
+        {
+            super(256);
+        }
+
+        char[] array()
+        {
+            return buf;
+        }
+
+        int length()
+        {
+            return count;
+        }
+    }
+
+    /**
+     Writes messages through one long lived JsonWriter
+     */
+    private static final class Encoder
+    {
+        private final FrameChars chars = new FrameChars();
+        private final JsonWriter writer = new JsonWriter(chars);
+        private final CharsetEncoder utf8 = StandardCharsets.UTF_8.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        private ByteBuffer bytes = ByteBuffer.allocate(256);
+
+        Encoder()
+        {
+            //lenient allows many top level objects on one writer, the rest matches Main.GSON
+            writer.setLenient(true);
+            writer.setHtmlSafe(true);
+            writer.setSerializeNulls(true);
+        }
+
+        byte[] encode(HexMessage message) throws IOException
+        {
+            chars.reset();
+            message.writeJson(writer);
+            chars.write('\n');
+
+            //the writer goes straight to a char array, so encoding to UTF-8 is the only copy
+            CharBuffer input = CharBuffer.wrap(chars.array(), 0, chars.length());
+            utf8.reset();
+            bytes.clear();
+            while(utf8.encode(input, bytes, true).isOverflow())
+            {
+                ByteBuffer larger = ByteBuffer.allocate(bytes.capacity() * 2);
+                bytes.flip();
+                larger.put(bytes);
+                bytes = larger;
+            }
+            utf8.flush(bytes);
+            return Arrays.copyOf(bytes.array(), bytes.position());
+        }
+    }
+
+    /**
+     Reads messages from lines of JSON through one long lived JsonReader
+     */
+    static final class Decoder
+    {
+        private static final byte[] KEY_PREFIX = ("{\"" + HexMessage.KEY_FIELD + "\":").getBytes(StandardCharsets.UTF_8);
+
+        private final LineReader line = new LineReader();
+        private final JsonReader reader = new JsonReader(line);
+
+        Decoder()
+        {
+            //lenient allows one reader to take many top level objects
+            reader.setLenient(true);
+        }
+
+        /**
+         Checks if a line can be read by {@link #decode}, which needs the message key to be the first field
+
+         @param buffer
+         The array holding the line
+         @param offset
+         Where the line starts
+         @param length
+         The length of the line
+
+         @return True if the line starts with the key field
+         */
+        static boolean isKeyFirst(byte[] buffer, int offset, int length)
+        {
+            if(length < KEY_PREFIX.length)
+            {
+                return false;
+            }
+            for(int i = 0; i < KEY_PREFIX.length; i++)
+            {
+                if(buffer[offset + i] != KEY_PREFIX[i])
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         Reads a message from a line of JSON that starts with its key
+
+         @param buffer
+         The array holding the line
+         @param offset
+         Where the line starts
+         @param length
+         The length of the line, without the newline
+         @param registry
+         The message types to look the key up in
+
+         @return The decoded message
+
+         @throws MessageFormatException
+         If the line is not a valid registered message. The decoder can not be used again after this.
+         */
+        HexMessage decode(byte[] buffer, int offset, int length, MessageRegistry registry)
+                throws MessageFormatException
+        {
+            try
+            {
+                line.reset(buffer, offset, length);
+                reader.beginObject();
+                //checked by isKeyFirst
+                reader.nextName();
+                long key = reader.nextLong();
+                HexMessage template = registry.get(key);
+                if(template == null)
+                {
+                    throw new MessageFormatException("Unregistered message key: " + key);
+                }
+                HexMessage message = template.readJson(reader);
+                reader.endObject();
+                return message;
+            }
+            catch(IOException | JsonConversionException | IllegalStateException | NumberFormatException e)
+            {
+                throw new MessageFormatException("Invalid JSON message", e);
+            }
+        }
+    }
+
+    /**
+     A Reader over one line of UTF-8 bytes at a time. Reports the end of the stream when the line is used up, which the
+     JsonReader only sees if the line is not a complete object.
+     */
+    private static final class LineReader extends Reader
+    {
+        private final CharsetDecoder utf8 = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        private byte[] source = null;
+        private ByteBuffer bytes = null;
+        private CharBuffer chars = CharBuffer.allocate(1024);
+
+        void reset(byte[] buffer, int offset, int length)
+        {
+            //the decoder's buffer is only replaced when it grows, so the wrapper can usually be kept
+            if(buffer != source)
+            {
+                source = buffer;
+                bytes = ByteBuffer.wrap(buffer);
+            }
+            bytes.limit(offset + length).position(offset);
+
+            utf8.reset();
+            chars.clear();
+            while(utf8.decode(bytes, chars, true).isOverflow())
+            {
+                CharBuffer larger = CharBuffer.allocate(chars.capacity() * 2);
+                chars.flip();
+                larger.put(chars);
+                chars = larger;
+            }
+            //UTF-8 keeps no state to flush once the input is complete
+            chars.flip();
+        }
+
+        @Override
+        public int read(char[] cbuf, int off, int len)
+        {
+            if(!chars.hasRemaining())
+            {
+                return -1;
+            }
+            int count = Math.min(len, chars.remaining());
+            chars.get(cbuf, off, count);
+            return count;
+        }
+
+        @Override
+        public void close()
+        {
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package bthomas.hexmap.common.net;
+
+/**
+ Indicates a message could not be converted to or from its wire format.
+
+ @author Brendan Thomas
+ @since 2019-03-24 */
+public class MessageFormatException extends Exception
+{
+    private static final long serialVersionUID = -2271849390316582237L;
+
+    public MessageFormatException(String message)
+    {
+        super(message);
+    }
+
+    public MessageFormatException(String message, Throwable cause)
+    {
+        super(message, cause);
+    }
+
+    public MessageFormatException(Throwable cause)
+    {
+        super(cause);
+    }
+}
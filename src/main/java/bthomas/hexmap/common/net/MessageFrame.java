@@ -0,0 +1,244 @@
+package bthomas.hexmap.common.net;
+
+import bthomas.hexmap.common.util.BinaryUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ A message together with its encoded form on the wire.
+ <p>
+ A frame is encoded at most once per {@link WireFormat}, no matter how many connections it is sent on, so a broadcast
+ only pays for conversion a single time. After encoding the frame's bytes never change, so it can be shared between
+ threads. Binary frames name their type by its id in the registry the frame was created with, which must be the one the
+ receiving side was sent the id table of.
+
+ @author Brendan Thomas
+ @since 2019-03-22 */
+public final class MessageFrame
+{
+    public final HexMessage message;
+    private final MessageRegistry registry;
+    //if set, the frame is always sent in this format no matter what the connection uses
+    private final WireFormat pinnedFormat;
+    private volatile byte[] json = null;
+    private volatile byte[] binary = null;
+
+    /**
+     Creates a frame that will be encoded the first time it is sent
+
+     @param message
+     The message to send
+     @param registry
+     The registry giving the ids of binary frames
+     */
+    public MessageFrame(HexMessage message, MessageRegistry registry)
+    {
+        this(message, registry, null);
+    }
+
+    /**
+     Creates a frame that is always sent in one format, for messages that must be understood before the connection's
+     format is agreed on
+
+     @param message
+     The message to send
+     @param registry
+     The registry giving the ids of binary frames
+     @param pinnedFormat
+     The format to always send the message in, or null to use the connection's format
+     */
+    public MessageFrame(HexMessage message, MessageRegistry registry, WireFormat pinnedFormat)
+    {
+        this.message = message;
+        this.registry = registry;
+        this.pinnedFormat = pinnedFormat;
+    }
+
+    /**
+     Creates a frame for another message that is encoded the same way as this one
+
+     @param message
+     The message to send
+
+     @return The new frame
+     */
+    public MessageFrame withMessage(HexMessage message)
+    {
+        return new MessageFrame(message, registry, pinnedFormat);
+    }
+
+    /**
+     Gets a frame for the same message that is always sent in one format, sharing anything already encoded
+
+     @param format
+     The format to always send the message in
+
+     @return This frame if it is already pinned, otherwise the pinned copy
+     */
+    public MessageFrame pinnedTo(WireFormat format)
+    {
+        if(pinnedFormat != null)
+        {
+            return this;
+        }
+        MessageFrame res = new MessageFrame(message, registry, format);
+        res.json = json;
+        res.binary = binary;
+        return res;
+    }
+
+    /**
+     Creates a frame and encodes it immediately, for sharing between many connections
+
+     @param message
+     The message to send
+     @param registry
+     The registry giving the ids of binary frames
+     @param format
+     The format to encode the frame in up front, other formats are encoded when first needed
+
+     @return The encoded frame
+
+     @throws MessageFormatException
+     If the message could not be converted
+     */
+    public static MessageFrame encode(HexMessage message, MessageRegistry registry, WireFormat format)
+            throws MessageFormatException
+    {
+        MessageFrame frame = new MessageFrame(message, registry);
+        frame.getBytes(format);
+        return frame;
+    }
+
+    /**
+     Gets the encoded bytes of this frame, encoding it if that has not happened yet
+
+     @param format
+     The format to get the bytes in, unless this frame is pinned to another
+
+     @return The bytes of this frame, which must not be modified
+
+     @throws MessageFormatException
+     If the message could not be converted
+     */
+    byte[] getBytes(WireFormat format) throws MessageFormatException
+    {
+        if(pinnedFormat != null)
+        {
+            format = pinnedFormat;
+        }
+
+        if(format == WireFormat.BINARY)
+        {
+            byte[] res = binary;
+            if(res == null)
+            {
+                res = encodeBinary(message, registry);
+                binary = res;
+            }
+            return res;
+        }
+        else
+        {
+            byte[] res = json;
+            if(res == null)
+            {
+                res = JsonCodec.encode(message);
+                json = res;
+            }
+            return res;
+        }
+    }
+
+    /**
+     Gets the size of the encoded frame, encoding it if that has not happened yet
+
+     @param format
+     The format to measure the frame in
+
+     @return The number of bytes the frame takes on the wire
+
+     @throws MessageFormatException
+     If the message could not be converted
+     */
+    public int size(WireFormat format) throws MessageFormatException
+    {
+        return getBytes(format).length;
+    }
+
+    /**
+     Writes the encoded frame to a stream
+
+     @param output
+     The stream to write to
+     @param format
+     The format to write the frame in
+
+     @return The number of bytes written
+
+     @throws MessageFormatException
+     If the message could not be converted
+     @throws IOException
+     If the stream could not be written to
+     */
+    public int writeTo(OutputStream output, WireFormat format) throws MessageFormatException, IOException
+    {
+        byte[] bytes = getBytes(format);
+        output.write(bytes);
+        return bytes.length;
+    }
+
+    /**
+     Gets a read-only view of the encoded frame for writing to a channel
+
+     @param format
+     The format to get the frame in
+
+     @return A new buffer over the encoded bytes
+
+     @throws MessageFormatException
+     If the message could not be converted
+     */
+    public ByteBuffer toByteBuffer(WireFormat format) throws MessageFormatException
+    {
+        return ByteBuffer.wrap(getBytes(format)).asReadOnlyBuffer();
+    }
+
+    private static byte[] encodeBinary(HexMessage message, MessageRegistry registry) throws MessageFormatException
+    {
+        int id = registry == null ? -1 : registry.getId(message.getKey());
+        if(id < 0)
+        {
+            throw new MessageFormatException("Message type has no id on this connection: " + message);
+        }
+
+        try
+        {
+            ByteArrayOutputStream payload = new ByteArrayOutputStream(32);
+            DataOutputStream payloadData = new DataOutputStream(payload);
+            BinaryUtils.writeUnsignedVarInt(payloadData, id);
+            message.writeBinary(payloadData);
+
+            ByteArrayOutputStream frame = new ByteArrayOutputStream(payload.size() + 6);
+            DataOutputStream frameData = new DataOutputStream(frame);
+            frameData.writeByte(WireFormat.BINARY_MARKER);
+            BinaryUtils.writeUnsignedVarInt(frameData, payload.size());
+            payload.writeTo(frame);
+            return frame.toByteArray();
+        }
+        catch(IOException | RuntimeException e)
+        {
+            throw new MessageFormatException("Error converting message to binary: " + message, e);
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.valueOf(message);
+    }
+}
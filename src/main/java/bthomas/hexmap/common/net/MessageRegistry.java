@@ -0,0 +1,141 @@
+package bthomas.hexmap.common.net;
+
+import bthomas.hexmap.common.util.LongIntMap;
+
+import java.util.Arrays;
+
+/**
+ The message types one side of a connection understands.
+ <p>
+ Each type is registered with a template instance, which decodes received messages of that type. Types are found by
+ their {@link HexMessage#getKey() key} in JSON, and by a small id in the binary format. Ids are given out in the order
+ types are registered, so they only mean something to a peer that has been sent the id table with {@link #getKeys()}.
+ <p>
+ Registration is not thread safe and must be finished before the registry is shared. Lookups can then be made from any
+ thread.
+
+ @author Brendan Thomas
+ @since 2019-03-31 */
+public class MessageRegistry
+{
+    //templates by id, a null entry is a type the other side knows but this side does not
+    private HexMessage[] templates;
+    private long[] keys;
+    private int size = 0;
+    private final LongIntMap ids;
+
+    /**
+     Creates an empty registry
+     */
+    public MessageRegistry()
+    {
+        this(16);
+    }
+
+    private MessageRegistry(int capacity)
+    {
+        templates = new HexMessage[capacity];
+        keys = new long[capacity];
+        ids = new LongIntMap(capacity);
+    }
+
+    /**
+     Registers a message type, giving it the next free id
+
+     @param template
+     An instance of the message to register
+
+     @return True if the type was registered, false if its key is already taken
+     */
+    public boolean register(HexMessage template)
+    {
+        if(ids.get(template.getKey()) >= 0)
+        {
+            return false;
+        }
+        add(template.getKey(), template);
+        return true;
+    }
+
+    /**
+     Creates a registry that uses another side's ids for the types this registry knows
+
+     @param remoteKeys
+     The other side's message keys, indexed by their ids
+
+     @return A registry with the other side's ids and this registry's templates. Types this side does not know keep
+     their id, but can not be decoded.
+     */
+    public MessageRegistry withIds(long[] remoteKeys)
+    {
+        MessageRegistry res = new MessageRegistry(Math.max(remoteKeys.length, 1));
+        for(long key : remoteKeys)
+        {
+            res.add(key, get(key));
+        }
+        return res;
+    }
+
+    /**
+     Gets the template for a message key
+
+     @param key
+     The key of the message type
+
+     @return The template, or null if the type is not registered
+     */
+    public HexMessage get(long key)
+    {
+        int id = ids.get(key);
+        return id < 0 ? null : templates[id];
+    }
+
+    /**
+     Gets the template for a message id
+
+     @param id
+     The id of the message type
+
+     @return The template, or null if the type is not registered
+     */
+    public HexMessage getById(int id)
+    {
+        return id >= 0 && id < size ? templates[id] : null;
+    }
+
+    /**
+     Gets the id for a message key
+
+     @param key
+     The key of the message type
+
+     @return The id, or -1 if the type is not registered
+     */
+    public int getId(long key)
+    {
+        return ids.get(key);
+    }
+
+    /**
+     Gets the id table to send to the other side of a connection
+
+     @return The key of every registered type, indexed by its id
+     */
+    public long[] getKeys()
+    {
+        return Arrays.copyOf(keys, size);
+    }
+
+    private void add(long key, HexMessage template)
+    {
+        if(size == templates.length)
+        {
+            templates = Arrays.copyOf(templates, size * 2);
+            keys = Arrays.copyOf(keys, size * 2);
+        }
+        templates[size] = template;
+        keys[size] = key;
+        ids.put(key, size);
+        size++;
+    }
+}
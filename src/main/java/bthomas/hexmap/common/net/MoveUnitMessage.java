@@ -2,12 +2,18 @@ package bthomas.hexmap.common.net;
 
 import bthomas.hexmap.client.Client;
 import bthomas.hexmap.common.json.JsonConversionException;
+import bthomas.hexmap.common.util.BinaryUtils;
 import bthomas.hexmap.common.util.JsonUtils;
 import bthomas.hexmap.server.ConnectionHandler;
 import bthomas.hexmap.server.Server;
 import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 
 import javax.swing.*;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.HashSet;
 
 /**
@@ -74,6 +80,115 @@ public class MoveUnitMessage extends HexMessage {
 		return new MoveUnitMessage(root);
 	}
 
+	/**
+	 Constructs an object from a JSON stream, with the reader positioned just after the message key
+
+	 @param reader
+	 The reader to take the rest of the message's fields from
+
+	 @throws IOException
+	 If the stream could not be read or is not valid JSON
+	 @throws JsonConversionException
+	 If a required field is missing
+	 */
+	public MoveUnitMessage(JsonReader reader) throws IOException, JsonConversionException
+	{
+		int unitUID = 0;
+		int toX = 0;
+		int toY = 0;
+		int fromX = 0;
+		int fromY = 0;
+		int seen = 0;
+		while(reader.hasNext())
+		{
+			switch(reader.nextName())
+			{
+				case uidKey:
+					unitUID = reader.nextInt();
+					seen |= 1;
+					break;
+				case toXKey:
+					toX = reader.nextInt();
+					seen |= 2;
+					break;
+				case toYKey:
+					toY = reader.nextInt();
+					seen |= 4;
+					break;
+				case fromXKey:
+					fromX = reader.nextInt();
+					seen |= 8;
+					break;
+				case fromYKey:
+					fromY = reader.nextInt();
+					seen |= 16;
+					break;
+				default:
+					reader.skipValue();
+			}
+		}
+		if(seen != 31)
+		{
+			throw JsonUtils.missingField(seen, uidKey, toXKey, toYKey, fromXKey, fromYKey);
+		}
+
+		this.unitUID = unitUID;
+		this.toX = toX;
+		this.toY = toY;
+		this.fromX = fromX;
+		this.fromY = fromY;
+	}
+
+	@Override
+	public MoveUnitMessage readJson(JsonReader reader) throws IOException, JsonConversionException
+	{
+		return new MoveUnitMessage(reader);
+	}
+
+	@Override
+	protected void writeJsonFields(JsonWriter writer) throws IOException
+	{
+		writer.name(uidKey).value(unitUID);
+		writer.name(toXKey).value(toX);
+		writer.name(toYKey).value(toY);
+		writer.name(fromXKey).value(fromX);
+		writer.name(fromYKey).value(fromY);
+	}
+
+	/**
+	 Constructs an object from binary representation
+
+	 @param input
+	 The data for this object, as written by {@link #writeBinary(DataOutput)}
+
+	 @throws IOException
+	 If the data is truncated or malformed
+	 */
+	public MoveUnitMessage(DataInput input) throws IOException
+	{
+		unitUID = BinaryUtils.readVarInt(input);
+		toX = BinaryUtils.readVarInt(input);
+		toY = BinaryUtils.readVarInt(input);
+		fromX = BinaryUtils.readVarInt(input);
+		fromY = BinaryUtils.readVarInt(input);
+	}
+
+	@Override
+	public MoveUnitMessage fromBinary(DataInput input) throws IOException
+	{
+		return new MoveUnitMessage(input);
+	}
+
+	@Override
+	public void writeBinary(DataOutput output) throws IOException
+	{
+		BinaryUtils.writeVarInt(output, unitUID);
+		BinaryUtils.writeVarInt(output, toX);
+		BinaryUtils.writeVarInt(output, toY);
+		BinaryUtils.writeVarInt(output, fromX);
+		BinaryUtils.writeVarInt(output, fromY);
+	}
+
 	@Override
 	public void buildJson(JsonObject root, HashSet<Object> loopDetector) throws JsonConversionException
 	{
@@ -10,8 +10,13 @@ import bthomas.hexmap.client.Client;
 import bthomas.hexmap.server.ConnectionHandler;
 import bthomas.hexmap.server.Server;
 import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 
 import javax.swing.*;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.HashSet;
 
 /**
@@ -63,6 +68,91 @@ public class NewUnitMessage extends HexMessage{
 		return new NewUnitMessage(root);
 	}
 
+	/**
+	 Constructs an object from a JSON stream, with the reader positioned just after the message key
+
+	 @param reader
+	 The reader to take the rest of the message's fields from
+
+	 @throws IOException
+	 If the stream could not be read or is not valid JSON
+	 @throws JsonConversionException
+	 If a required field is missing
+	 */
+	public NewUnitMessage(JsonReader reader) throws IOException, JsonConversionException
+	{
+		Unit unit = null;
+		int seen = 0;
+		while(reader.hasNext())
+		{
+			switch(reader.nextName())
+			{
+				case unitKey:
+					unit = JsonUtils.nextIsNull(reader) ? null : new Unit(reader);
+					seen |= 1;
+					break;
+				default:
+					reader.skipValue();
+			}
+		}
+		if(seen != 1)
+		{
+			throw JsonUtils.missingField(seen, unitKey);
+		}
+
+		this.unit = unit;
+	}
+
+	@Override
+	public NewUnitMessage readJson(JsonReader reader) throws IOException, JsonConversionException
+	{
+		return new NewUnitMessage(reader);
+	}
+
+	@Override
+	protected void writeJsonFields(JsonWriter writer) throws IOException
+	{
+		writer.name(unitKey);
+		if(unit == null)
+		{
+			writer.nullValue();
+		}
+		else
+		{
+			unit.writeJson(writer);
+		}
+	}
+
+	/**
+	 Constructs an object from binary representation
+
+	 @param input
+	 The data for this object, as written by {@link #writeBinary(DataOutput)}
+
+	 @throws IOException
+	 If the data is truncated or malformed
+	 */
+	public NewUnitMessage(DataInput input) throws IOException
+	{
+		unit = input.readBoolean() ? new Unit(input) : null;
+	}
+
+	@Override
+	public NewUnitMessage fromBinary(DataInput input) throws IOException
+	{
+		return new NewUnitMessage(input);
+	}
+
+	@Override
+	public void writeBinary(DataOutput output) throws IOException
+	{
+		output.writeBoolean(unit != null);
+		if(unit != null)
+		{
+			unit.writeBinary(output);
+		}
+	}
+
 	@Override
 	public void buildJson(JsonObject root, HashSet<Object> loopDetector) throws JsonConversionException
 	{
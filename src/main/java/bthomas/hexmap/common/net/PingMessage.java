@@ -6,7 +6,12 @@ import bthomas.hexmap.common.util.JsonUtils;
 import bthomas.hexmap.server.ConnectionHandler;
 import bthomas.hexmap.server.Server;
 import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.HashSet;
 
 public class PingMessage extends HexMessage
@@ -51,29 +56,30 @@ public class PingMessage extends HexMessage
     @Override
     public void applyToServer(Server server, ConnectionHandler source)
     {
+        //an answer to the server's ping only shows the client is alive, which receiving anything already records
         if(fromClient)
         {
             source.addMessage(this);
         }
-        else
-        {
-            source.lastPingReceived = System.currentTimeMillis();
-        }
     }
 
     @Override
     public void applyToClient(Client client)
     {
-        if(fromClient)
-        {
-            client.lastPingReceived = System.currentTimeMillis();
-        }
-        else
+        //an answer to the client's ping only shows the server is alive, which receiving anything already records
+        if(!fromClient)
         {
             client.sendMessage(this);
         }
     }
 
+    @Override
+    public boolean isDroppable()
+    {
+        //a newer ping will follow
+        return true;
+    }
+
     @Override
     public long getKey()
     {
@@ -92,4 +98,77 @@ public class PingMessage extends HexMessage
     {
         return new PingMessage(root);
     }
+
+    /**
+     Constructs an object from a JSON stream, with the reader positioned just after the message key
+
+     @param reader
+     The reader to take the rest of the message's fields from
+
+     @throws IOException
+     If the stream could not be read or is not valid JSON
+     @throws JsonConversionException
+     If a required field is missing
+     */
+    public PingMessage(JsonReader reader) throws IOException, JsonConversionException
+    {
+        boolean fromClient = false;
+        int seen = 0;
+        while(reader.hasNext())
+        {
+            switch(reader.nextName())
+            {
+                case fromClientKey:
+                    fromClient = reader.nextBoolean();
+                    seen |= 1;
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        if(seen != 1)
+        {
+            throw JsonUtils.missingField(seen, fromClientKey);
+        }
+
+        this.fromClient = fromClient;
+    }
+
+    @Override
+    public PingMessage readJson(JsonReader reader) throws IOException, JsonConversionException
+    {
+        return new PingMessage(reader);
+    }
+
+    @Override
+    protected void writeJsonFields(JsonWriter writer) throws IOException
+    {
+        writer.name(fromClientKey).value(fromClient);
+    }
+
+    /**
+     Constructs an object from binary representation
+
+     @param input
+     The data for this object, as written by {@link #writeBinary(DataOutput)}
+
+     @throws IOException
+     If the data is truncated or malformed
+     */
+    public PingMessage(DataInput input) throws IOException
+    {
+        fromClient = input.readBoolean();
+    }
+
+    @Override
+    public PingMessage fromBinary(DataInput input) throws IOException
+    {
+        return new PingMessage(input);
+    }
+
+    @Override
+    public void writeBinary(DataOutput output) throws IOException
+    {
+        output.writeBoolean(fromClient);
+    }
 }
@@ -0,0 +1,185 @@
+package bthomas.hexmap.common.net;
+
+import bthomas.hexmap.client.Client;
+import bthomas.hexmap.common.json.JsonConversionException;
+import bthomas.hexmap.common.util.BinaryUtils;
+import bthomas.hexmap.common.util.JsonUtils;
+import bthomas.hexmap.server.ConnectionHandler;
+import bthomas.hexmap.server.Server;
+import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.HashSet;
+
+/**
+ Sent by a client that lost its connection instead of logging in again, to pick its session up on a new connection. The
+ server answers with the same message, followed by every message the client missed, or with no token if the session
+ can't be resumed. See Handshake process.txt.
+
+ @author Brendan Thomas
+ @since 2019-04-03 */
+public class ResumeMessage extends HexMessage
+{
+    private static final long serialVersionUID = -6418297302715864031L;
+    //the session's token, or null in an answer refusing the resume
+    public final String token;
+    //number of messages the client received in the session before its connection was lost
+    public final long received;
+    private static final String tokenKey = "session";
+    private static final String receivedKey = "received";
+
+    /**
+     Standard constructor
+
+     @param token
+     The token of the session to resume, or null to refuse
+     @param received
+     The number of messages the client received in the session
+     */
+    public ResumeMessage(String token, long received)
+    {
+        this.token = token;
+        this.received = received;
+    }
+
+    /**
+     Dummy constructor to use with JSON serialization
+     */
+    public ResumeMessage()
+    {
+        this(null, 0);
+    }
+
+    /**
+     Constructs an object from JSON representation
+
+     @param root
+     The JsonObject containing the data for this object.
+
+     @throws JsonConversionException
+     If there is not proper data stored in the JsonObject
+     */
+    public ResumeMessage(JsonObject root) throws JsonConversionException
+    {
+        token = JsonUtils.getString(root, tokenKey);
+        received = JsonUtils.getLong(root, receivedKey);
+    }
+
+    @Override
+    public ResumeMessage fromJson(JsonObject root) throws JsonConversionException
+    {
+        return new ResumeMessage(root);
+    }
+
+    /**
+     Constructs an object from a JSON stream, with the reader positioned just after the message key
+
+     @param reader
+     The reader to take the rest of the message's fields from
+
+     @throws IOException
+     If the stream could not be read or is not valid JSON
+     @throws JsonConversionException
+     If a required field is missing
+     */
+    public ResumeMessage(JsonReader reader) throws IOException, JsonConversionException
+    {
+        String token = null;
+        long received = 0;
+        int seen = 0;
+        while(reader.hasNext())
+        {
+            switch(reader.nextName())
+            {
+                case tokenKey:
+                    token = JsonUtils.nextString(reader);
+                    seen |= 1;
+                    break;
+                case receivedKey:
+                    received = reader.nextLong();
+                    seen |= 2;
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        if(seen != 3)
+        {
+            throw JsonUtils.missingField(seen, tokenKey, receivedKey);
+        }
+
+        this.token = token;
+        this.received = received;
+    }
+
+    @Override
+    public ResumeMessage readJson(JsonReader reader) throws IOException, JsonConversionException
+    {
+        return new ResumeMessage(reader);
+    }
+
+    @Override
+    protected void writeJsonFields(JsonWriter writer) throws IOException
+    {
+        writer.name(tokenKey).value(token);
+        writer.name(receivedKey).value(received);
+    }
+
+    /**
+     Constructs an object from binary representation
+
+     @param input
+     The data for this object, as written by {@link #writeBinary(DataOutput)}
+
+     @throws IOException
+     If the data is truncated or malformed
+     */
+    public ResumeMessage(DataInput input) throws IOException
+    {
+        token = BinaryUtils.readString(input);
+        received = BinaryUtils.readVarLong(input);
+    }
+
+    @Override
+    public ResumeMessage fromBinary(DataInput input) throws IOException
+    {
+        return new ResumeMessage(input);
+    }
+
+    @Override
+    public void writeBinary(DataOutput output) throws IOException
+    {
+        BinaryUtils.writeString(output, token);
+        BinaryUtils.writeVarLong(output, received);
+    }
+
+    @Override
+    public void buildJson(JsonObject root, HashSet<Object> loopDetector) throws JsonConversionException
+    {
+        root.addProperty(tokenKey, token);
+        root.addProperty(receivedKey, received);
+        super.buildJson(root, loopDetector);
+    }
+
+    @Override
+    public void applyToServer(Server server, ConnectionHandler source)
+    {
+        server.resumeSession(source, token, received);
+    }
+
+    @Override
+    public void applyToClient(Client client)
+    {
+        client.resumeAnswered(token != null);
+    }
+
+    @Override
+    public long getKey()
+    {
+        return serialVersionUID;
+    }
+}
@@ -3,12 +3,18 @@ package bthomas.hexmap.common.net;
 import bthomas.hexmap.Main;
 import bthomas.hexmap.client.Client;
 import bthomas.hexmap.common.json.JsonConversionException;
+import bthomas.hexmap.common.util.BinaryUtils;
 import bthomas.hexmap.common.util.JsonUtils;
 import bthomas.hexmap.logging.HexmapLogger;
 import bthomas.hexmap.server.ConnectionHandler;
 import bthomas.hexmap.server.Server;
 import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.HashSet;
 
 
@@ -62,6 +68,88 @@ public class ValidationMessage extends HexMessage
         return new ValidationMessage(root);
     }
 
+    /**
+     Constructs an object from a JSON stream, with the reader positioned just after the message key
+
+     @param reader
+     The reader to take the rest of the message's fields from
+
+     @throws IOException
+     If the stream could not be read or is not valid JSON
+     @throws JsonConversionException
+     If a required field is missing
+     */
+    public ValidationMessage(JsonReader reader) throws IOException, JsonConversionException
+    {
+        String username = null;
+        String password = null;
+        int seen = 0;
+        while(reader.hasNext())
+        {
+            switch(reader.nextName())
+            {
+                case usernameKey:
+                    username = JsonUtils.nextString(reader);
+                    seen |= 1;
+                    break;
+                case passwordKey:
+                    password = JsonUtils.nextString(reader);
+                    seen |= 2;
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        if(seen != 3)
+        {
+            throw JsonUtils.missingField(seen, usernameKey, passwordKey);
+        }
+
+        this.username = username;
+        this.password = password;
+    }
+
+    @Override
+    public ValidationMessage readJson(JsonReader reader) throws IOException, JsonConversionException
+    {
+        return new ValidationMessage(reader);
+    }
+
+    @Override
+    protected void writeJsonFields(JsonWriter writer) throws IOException
+    {
+        writer.name(usernameKey).value(username);
+        writer.name(passwordKey).value(password);
+    }
+
+    /**
+     Constructs an object from binary representation
+
+     @param input
+     The data for this object, as written by {@link #writeBinary(DataOutput)}
+
+     @throws IOException
+     If the data is truncated or malformed
+     */
+    public ValidationMessage(DataInput input) throws IOException
+    {
+        username = BinaryUtils.readString(input);
+        password = BinaryUtils.readString(input);
+    }
+
+    @Override
+    public ValidationMessage fromBinary(DataInput input) throws IOException
+    {
+        return new ValidationMessage(input);
+    }
+
+    @Override
+    public void writeBinary(DataOutput output) throws IOException
+    {
+        BinaryUtils.writeString(output, username);
+        BinaryUtils.writeString(output, password);
+    }
+
     @Override
     public void applyToServer(Server server, ConnectionHandler source)
     {
@@ -73,6 +161,7 @@ public class ValidationMessage extends HexMessage
             String reason = "invalid username";
             Main.logger.log(HexmapLogger.INFO, "Rejected new connection for: " + reason);
             server.closeListener(source, reason);
+            return;
         }
 
         //reject duplicate logins
@@ -81,6 +170,7 @@ public class ValidationMessage extends HexMessage
             String reason = "requested duplicate username: " + username;
             Main.logger.log(HexmapLogger.INFO, "Rejected new connection for: " + reason);
             server.closeListener(source, reason);
+            return;
         }
 
         //validate username/password
@@ -0,0 +1,204 @@
+package bthomas.hexmap.common.net;
+
+import bthomas.hexmap.client.Client;
+import bthomas.hexmap.common.json.JsonConversionException;
+import bthomas.hexmap.common.util.BinaryUtils;
+import bthomas.hexmap.common.util.JsonUtils;
+import bthomas.hexmap.server.ConnectionHandler;
+import bthomas.hexmap.server.Server;
+import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import java.awt.Rectangle;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.HashSet;
+
+/**
+ Tells the server which part of the board a client can see, so it is only sent unit events for that part. Units that
+ come into view are sent to the client as new units.
+
+ @author Brendan Thomas
+ @since 2019-04-01 */
+public class ViewportMessage extends HexMessage
+{
+    private static final long serialVersionUID = 3185096521803957412L;
+    //the visible board locations, as the smallest rectangle holding them all
+    public final int x, y, width, height;
+    private static final String xKey = "x";
+    private static final String yKey = "y";
+    private static final String widthKey = "width";
+    private static final String heightKey = "height";
+
+    /**
+     Standard constructor
+
+     @param region
+     The board locations the client can see
+     */
+    public ViewportMessage(Rectangle region)
+    {
+        x = region.x;
+        y = region.y;
+        width = region.width;
+        height = region.height;
+    }
+
+    /**
+     Dummy constructor to use with JSON serialization
+     */
+    public ViewportMessage()
+    {
+        this(new Rectangle());
+    }
+
+    /**
+     Constructs an object from JSON representation
+
+     @param root
+     The JsonObject containing the data for this object.
+
+     @throws JsonConversionException
+     If there is not proper data stored in the JsonObject
+     */
+    public ViewportMessage(JsonObject root) throws JsonConversionException
+    {
+        x = JsonUtils.getInt(root, xKey);
+        y = JsonUtils.getInt(root, yKey);
+        width = JsonUtils.getInt(root, widthKey);
+        height = JsonUtils.getInt(root, heightKey);
+    }
+
+    @Override
+    public ViewportMessage fromJson(JsonObject root) throws JsonConversionException
+    {
+        return new ViewportMessage(root);
+    }
+
+    /**
+     Constructs an object from a JSON stream, with the reader positioned just after the message key
+
+     @param reader
+     The reader to take the rest of the message's fields from
+
+     @throws IOException
+     If the stream could not be read or is not valid JSON
+     @throws JsonConversionException
+     If a required field is missing
+     */
+    public ViewportMessage(JsonReader reader) throws IOException, JsonConversionException
+    {
+        int x = 0, y = 0, width = 0, height = 0;
+        int seen = 0;
+        while(reader.hasNext())
+        {
+            switch(reader.nextName())
+            {
+                case xKey:
+                    x = reader.nextInt();
+                    seen |= 1;
+                    break;
+                case yKey:
+                    y = reader.nextInt();
+                    seen |= 2;
+                    break;
+                case widthKey:
+                    width = reader.nextInt();
+                    seen |= 4;
+                    break;
+                case heightKey:
+                    height = reader.nextInt();
+                    seen |= 8;
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        if(seen != 15)
+        {
+            throw JsonUtils.missingField(seen, xKey, yKey, widthKey, heightKey);
+        }
+
+        this.x = x;
+        this.y = y;
+        this.width = width;
+        this.height = height;
+    }
+
+    @Override
+    public ViewportMessage readJson(JsonReader reader) throws IOException, JsonConversionException
+    {
+        return new ViewportMessage(reader);
+    }
+
+    @Override
+    protected void writeJsonFields(JsonWriter writer) throws IOException
+    {
+        writer.name(xKey).value(x);
+        writer.name(yKey).value(y);
+        writer.name(widthKey).value(width);
+        writer.name(heightKey).value(height);
+    }
+
+    /**
+     Constructs an object from binary representation
+
+     @param input
+     The data for this object, as written by {@link #writeBinary(DataOutput)}
+
+     @throws IOException
+     If the data is truncated or malformed
+     */
+    public ViewportMessage(DataInput input) throws IOException
+    {
+        x = BinaryUtils.readVarInt(input);
+        y = BinaryUtils.readVarInt(input);
+        width = BinaryUtils.readVarInt(input);
+        height = BinaryUtils.readVarInt(input);
+    }
+
+    @Override
+    public ViewportMessage fromBinary(DataInput input) throws IOException
+    {
+        return new ViewportMessage(input);
+    }
+
+    @Override
+    public void writeBinary(DataOutput output) throws IOException
+    {
+        BinaryUtils.writeVarInt(output, x);
+        BinaryUtils.writeVarInt(output, y);
+        BinaryUtils.writeVarInt(output, width);
+        BinaryUtils.writeVarInt(output, height);
+    }
+
+    @Override
+    public void buildJson(JsonObject root, HashSet<Object> loopDetector) throws JsonConversionException
+    {
+        root.addProperty(xKey, x);
+        root.addProperty(yKey, y);
+        root.addProperty(widthKey, width);
+        root.addProperty(heightKey, height);
+        super.buildJson(root, loopDetector);
+    }
+
+    @Override
+    public void applyToServer(Server server, ConnectionHandler source)
+    {
+        server.setViewport(source, new Rectangle(x, y, width, height));
+    }
+
+    @Override
+    public void applyToClient(Client client)
+    {
+        //clients only send viewports
+    }
+
+    @Override
+    public long getKey()
+    {
+        return serialVersionUID;
+    }
+}
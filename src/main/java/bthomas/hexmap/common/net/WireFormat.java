@@ -0,0 +1,24 @@
+package bthomas.hexmap.common.net;
+
+/**
+ The encodings a {@link HexMessage} can be sent in.
+ <p>
+ Both formats can be read at any time, the first byte of a frame tells them apart. A side only sends {@link #BINARY}
+ once the other side has said it understands it during the handshake.
+ <p>
+ Frames of either format may also arrive inside a compressed block, see {@link FrameCompressor}.
+
+ @author Brendan Thomas
+ @since 2019-03-24 */
+public enum WireFormat
+{
+    //one JSON object per line, understood by every version
+    JSON,
+    //a marker byte, a varint length, then a varint message id and the message's binary fields
+    BINARY;
+
+    //JSON frames always start with '{' so these can never be mistaken for one
+    public static final byte BINARY_MARKER = 0x01;
+    //starts a block of DEFLATE compressed frames, a varint length, then the compressed bytes
+    public static final byte COMPRESSED_MARKER = 0x02;
+}
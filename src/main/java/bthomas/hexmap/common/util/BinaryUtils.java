@@ -0,0 +1,199 @@
+package bthomas.hexmap.common.util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ Helpers for the variable length fields used by the binary wire format.
+ <p>
+ Varints store 7 bits per byte, low bits first, with the high bit set on every byte but the last. Signed values are
+ zigzag encoded first so small negative numbers stay small.
+ */
+public class BinaryUtils
+{
+    //the longest string that will be accepted from the wire
+    private static final int MAX_STRING_BYTES = 1 << 20;
+
+    /**
+     Writes a non-negative int as a varint.
+
+     @param output
+     The stream to write to
+     @param value
+     The value to write, treated as unsigned
+
+     @throws IOException
+     If the stream could not be written to
+     */
+    public static void writeUnsignedVarInt(DataOutput output, int value) throws IOException
+    {
+        while((value & ~0x7F) != 0)
+        {
+            output.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        output.writeByte(value);
+    }
+
+    /**
+     Reads an int written by {@link #writeUnsignedVarInt(DataOutput, int)}.
+
+     @param input
+     The stream to read from
+
+     @return The value read
+
+     @throws IOException
+     If the stream ends early or the varint is too long
+     */
+    public static int readUnsignedVarInt(DataInput input) throws IOException
+    {
+        int res = 0;
+        for(int shift = 0; shift < 35; shift += 7)
+        {
+            int b = input.readUnsignedByte();
+            res |= (b & 0x7F) << shift;
+            if((b & 0x80) == 0)
+            {
+                return res;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    /**
+     Writes a signed int as a zigzag varint.
+
+     @param output
+     The stream to write to
+     @param value
+     The value to write
+
+     @throws IOException
+     If the stream could not be written to
+     */
+    public static void writeVarInt(DataOutput output, int value) throws IOException
+    {
+        writeUnsignedVarInt(output, (value << 1) ^ (value >> 31));
+    }
+
+    /**
+     Reads an int written by {@link #writeVarInt(DataOutput, int)}.
+
+     @param input
+     The stream to read from
+
+     @return The value read
+
+     @throws IOException
+     If the stream ends early or the varint is too long
+     */
+    public static int readVarInt(DataInput input) throws IOException
+    {
+        int raw = readUnsignedVarInt(input);
+        return (raw >>> 1) ^ -(raw & 1);
+    }
+
+    /**
+     Writes a signed long as a zigzag varint.
+
+     @param output
+     The stream to write to
+     @param value
+     The value to write
+
+     @throws IOException
+     If the stream could not be written to
+     */
+    public static void writeVarLong(DataOutput output, long value) throws IOException
+    {
+        long raw = (value << 1) ^ (value >> 63);
+        while((raw & ~0x7FL) != 0)
+        {
+            output.writeByte((int) ((raw & 0x7F) | 0x80));
+            raw >>>= 7;
+        }
+        output.writeByte((int) raw);
+    }
+
+    /**
+     Reads a long written by {@link #writeVarLong(DataOutput, long)}.
+
+     @param input
+     The stream to read from
+
+     @return The value read
+
+     @throws IOException
+     If the stream ends early or the varint is too long
+     */
+    public static long readVarLong(DataInput input) throws IOException
+    {
+        long raw = 0;
+        for(int shift = 0; shift < 70; shift += 7)
+        {
+            int b = input.readUnsignedByte();
+            raw |= (long) (b & 0x7F) << shift;
+            if((b & 0x80) == 0)
+            {
+                return (raw >>> 1) ^ -(raw & 1);
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    /**
+     Writes a possibly null String as a length prefixed UTF-8 string.
+
+     @param output
+     The stream to write to
+     @param value
+     The string to write, may be null
+
+     @throws IOException
+     If the stream could not be written to
+     */
+    public static void writeString(DataOutput output, String value) throws IOException
+    {
+        if(value == null)
+        {
+            writeUnsignedVarInt(output, 0);
+            return;
+        }
+
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        //length is offset by one so 0 can mean null
+        writeUnsignedVarInt(output, bytes.length + 1);
+        output.write(bytes);
+    }
+
+    /**
+     Reads a String written by {@link #writeString(DataOutput, String)}.
+
+     @param input
+     The stream to read from
+
+     @return The string read, may be null
+
+     @throws IOException
+     If the stream ends early or the string is too long
+     */
+    public static String readString(DataInput input) throws IOException
+    {
+        int length = readUnsignedVarInt(input);
+        if(length == 0)
+        {
+            return null;
+        }
+        if(length - 1 > MAX_STRING_BYTES || length < 0)
+        {
+            throw new IOException("String too long: " + (length - 1));
+        }
+
+        byte[] bytes = new byte[length - 1];
+        input.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -1,10 +1,15 @@
 package bthomas.hexmap.common.util;
 
 import bthomas.hexmap.common.json.JsonConversionException;
+import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonNull;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonPrimitive;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.IOException;
 
 public class JsonUtils
 {
@@ -68,6 +73,36 @@ public class JsonUtils
         }
     }
 
+    /**
+     Gets a JsonArray from a JsonObject if it is present.
+
+     @param root
+     The JsonObject to get the data from.
+     @param tag
+     The name of the field to retrieve
+
+     @return The array stored in the JSON
+
+     @throws JsonConversionException
+     If the field is not present or is not of array type
+     */
+    public static JsonArray getJsonArray(JsonObject root, String tag) throws JsonConversionException
+    {
+        JsonElement obj = root.get(tag);
+        if(obj instanceof JsonNull)
+        {
+            return null;
+        }
+        else if(obj instanceof JsonArray)
+        {
+            return (JsonArray) obj;
+        }
+        else
+        {
+            throw new JsonConversionException("No field \"" + tag + "\" defined in Json");
+        }
+    }
+
     /**
      Gets an int from a JsonObject if it is present.
 
@@ -188,4 +223,98 @@ public class JsonUtils
             throw new JsonConversionException("No field \"" + tag + "\" defined in Json");
         }
     }
+
+    /**
+     Gets a boolean from a JsonObject, or a default value if the field is not present. Used for fields that were added
+     after older versions were released.
+
+     @param root
+     The JsonObject to get the data from.
+     @param tag
+     The name of the field to retrieve
+     @param defaultValue
+     The value to use if the field is not present
+
+     @return The boolean stored in the JSON, or the default
+
+     @throws JsonConversionException
+     If the field is present but is not of boolean type
+     */
+    public static boolean getBoolean(JsonObject root, String tag, boolean defaultValue) throws JsonConversionException
+    {
+        if(!root.has(tag))
+        {
+            return defaultValue;
+        }
+        return getBoolean(root, tag);
+    }
+
+    /**
+     Reads a String value from a JSON stream, allowing null. Like {@link #getString(JsonObject, String)}, any primitive
+     is accepted.
+
+     @param reader
+     The reader, positioned before the value
+
+     @return The String read, or null
+
+     @throws IOException
+     If the stream could not be read or the value is not a primitive
+     */
+    public static String nextString(JsonReader reader) throws IOException
+    {
+        if(nextIsNull(reader))
+        {
+            return null;
+        }
+        JsonToken token = reader.peek();
+        if(token == JsonToken.BOOLEAN)
+        {
+            return Boolean.toString(reader.nextBoolean());
+        }
+        return reader.nextString();
+    }
+
+    /**
+     Consumes the next value of a JSON stream if it is null
+
+     @param reader
+     The reader, positioned before the value
+
+     @return True if the value was null and has been consumed, false if the reader was left as is
+
+     @throws IOException
+     If the stream could not be read
+     */
+    public static boolean nextIsNull(JsonReader reader) throws IOException
+    {
+        if(reader.peek() == JsonToken.NULL)
+        {
+            reader.nextNull();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     Builds the error for an object read from a JSON stream that was missing required fields
+
+     @param seen
+     Bit flags of the fields that were read, bit i being set for keys[i]
+     @param keys
+     The names of the required fields
+
+     @return An exception naming the first missing field
+     */
+    public static JsonConversionException missingField(int seen, String... keys)
+    {
+        for(int i = 0; i < keys.length; i++)
+        {
+            if((seen & (1 << i)) == 0)
+            {
+                return new JsonConversionException("No field \"" + keys[i] + "\" defined in Json");
+            }
+        }
+        return new JsonConversionException("Missing field in Json");
+    }
 }
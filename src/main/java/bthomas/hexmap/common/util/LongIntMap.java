@@ -0,0 +1,149 @@
+package bthomas.hexmap.common.util;
+
+import java.util.Arrays;
+
+/**
+ A hash map from long keys to non-negative int values that stores both as primitives, so lookups never box.
+ <p>
+ Uses open addressing with linear probing and is kept at most half full. Entries can only be removed all at once. Not
+ thread safe, but can be read from many threads once it is no longer being changed.
+ */
+public class LongIntMap
+{
+    private static final int MISSING = -1;
+
+    private long[] keys;
+    private int[] values;
+    private int size = 0;
+
+    /**
+     Standard constructor
+
+     @param expectedSize
+     The number of entries expected, so the map does not have to grow while they are added
+     */
+    public LongIntMap(int expectedSize)
+    {
+        int capacity = 4;
+        while(capacity < expectedSize * 2)
+        {
+            capacity *= 2;
+        }
+        allocate(capacity);
+    }
+
+    /**
+     Gets the value for a key
+
+     @param key
+     The key to look up
+
+     @return The value, or -1 if the key is not in the map
+     */
+    public int get(long key)
+    {
+        int mask = keys.length - 1;
+        for(int i = slot(key, mask); ; i = (i + 1) & mask)
+        {
+            if(values[i] == MISSING)
+            {
+                return MISSING;
+            }
+            if(keys[i] == key)
+            {
+                return values[i];
+            }
+        }
+    }
+
+    /**
+     Sets the value for a key, replacing any value it already had
+
+     @param key
+     The key to set
+     @param value
+     The value to store, which must not be negative
+     */
+    public void put(long key, int value)
+    {
+        if(value < 0)
+        {
+            throw new IllegalArgumentException("Negative value: " + value);
+        }
+        if((size + 1) * 2 > keys.length)
+        {
+            grow();
+        }
+        if(insert(key, value))
+        {
+            size++;
+        }
+    }
+
+    /**
+     Removes every entry, keeping the map's capacity
+     */
+    public void clear()
+    {
+        if(size > 0)
+        {
+            Arrays.fill(values, MISSING);
+            size = 0;
+        }
+    }
+
+    /**
+     @return The number of keys in the map
+     */
+    public int size()
+    {
+        return size;
+    }
+
+    private boolean insert(long key, int value)
+    {
+        int mask = keys.length - 1;
+        for(int i = slot(key, mask); ; i = (i + 1) & mask)
+        {
+            if(values[i] == MISSING)
+            {
+                keys[i] = key;
+                values[i] = value;
+                return true;
+            }
+            if(keys[i] == key)
+            {
+                values[i] = value;
+                return false;
+            }
+        }
+    }
+
+    private void grow()
+    {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        allocate(keys.length * 2);
+        for(int i = 0; i < oldKeys.length; i++)
+        {
+            if(oldValues[i] != MISSING)
+            {
+                insert(oldKeys[i], oldValues[i]);
+            }
+        }
+    }
+
+    private void allocate(int capacity)
+    {
+        keys = new long[capacity];
+        values = new int[capacity];
+        Arrays.fill(values, MISSING);
+    }
+
+    private static int slot(long key, int mask)
+    {
+        //keys may differ only in their high bits, so mix every bit into the low ones used for the slot
+        long hash = key * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32)) & mask;
+    }
+}
@@ -1,5 +1,6 @@
 package bthomas.hexmap.permissions;
 
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.regex.Pattern;
 
@@ -65,15 +66,30 @@ public class PermissionMulti extends PermissionBase {
 	 * Registers a permission in this manager
 	 *
 	 * @param permission The permission key to register
+	 * @param id The id to give the permission
 	 * @return True if the permission was correctly registered, false otherwise
 	 */
-	public boolean registerPermission(String permission) {
+	public boolean registerPermission(String permission, int id) {
 		//reject duplicate permissions
 		if(permissions.get(permission) != null) {
 			return false;
 		}
 
-		permissions.put(permission, new PermissionSingle());
+		permissions.put(permission, new PermissionSingle(id));
 		return true;
 	}
+
+	/**
+	 * Sets the id of every permission in this manager and all of its sub-managers, expanding a "*" permission
+	 *
+	 * @param res The set to add the ids to
+	 */
+	public void collectIds(BitSet res) {
+		for(PermissionSingle permission : permissions.values()) {
+			res.set(permission.id);
+		}
+		for(PermissionMulti sub : subMultis.values()) {
+			sub.collectIds(res);
+		}
+	}
 }
@@ -10,4 +10,16 @@ package bthomas.hexmap.permissions;
  * @since 2019-03-14
  */
 public class PermissionSingle extends PermissionBase {
+
+	//dense id handed out by the server as permissions are registered, a user's permissions are a bitset of these
+	public final int id;
+
+	/**
+	 * Standard constructor
+	 *
+	 * @param id The id of this permission
+	 */
+	public PermissionSingle(int id) {
+		this.id = id;
+	}
 }
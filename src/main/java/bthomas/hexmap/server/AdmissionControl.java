@@ -0,0 +1,183 @@
+package bthomas.hexmap.server;
+
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ Decides whether the server takes on a newly accepted connection, before any threads or buffers are set up for it.
+ <p>
+ A connection is refused if the server already has as many connections as it allows, if too many accepted clients
+ have not logged in yet, or if its address is connecting faster than its rate allows. Each address has a bucket of
+ tokens that refills at the allowed rate up to the burst size, and each accepted connection takes one. When many
+ clients reconnect at once, such as after a restart, the ones that are refused simply retry a little later instead of
+ all being set up together.
+ <p>
+ Connections that are refused never count towards either limit. Each admitted connection must be released exactly once
+ when it goes away, and must finish its handshake at most once.
+
+ @author Brendan Thomas
+ @since 2019-04-08 */
+public class AdmissionControl
+{
+    /**
+     Why a connection was refused
+     */
+    public enum Refusal
+    {
+        CONNECTIONS,
+        HANDSHAKES,
+        RATE
+    }
+
+    //buckets are only pruned once there are this many, most servers never get there
+    private static final int PRUNE_SIZE = 4096;
+
+    private static final class Bucket
+    {
+        double tokens;
+        long updated;
+
+        Bucket(double tokens, long updated)
+        {
+            this.tokens = tokens;
+            this.updated = updated;
+        }
+    }
+
+    private final int maxConnections;
+    private final int maxHandshakes;
+    //tokens added per millisecond, or 0 to not limit the rate
+    private final double refillPerMilli;
+    private final int burst;
+
+    //guarded by this
+    private final HashMap<InetAddress, Bucket> buckets = new HashMap<>();
+    private int connections = 0;
+    private int handshakes = 0;
+    //grows with the buckets still in use after a prune, so pruning stays rare while many addresses are connecting
+    private int pruneAt = PRUNE_SIZE;
+
+    /**
+     Standard constructor
+
+     @param config
+     The settings giving the limits
+     */
+    public AdmissionControl(ServerConfig config)
+    {
+        maxConnections = config.admissionMaxConnections;
+        maxHandshakes = config.admissionMaxHandshakes;
+        refillPerMilli = config.admissionIpRate / 1000.0;
+        burst = config.admissionIpBurst;
+    }
+
+    /**
+     Checks if a new connection can be taken on, and counts it as connected and handshaking if it can
+
+     @param address
+     The address the connection came from
+
+     @return Null if the connection is admitted, otherwise why it was refused
+     */
+    public synchronized Refusal admit(InetAddress address)
+    {
+        if(connections >= maxConnections)
+        {
+            return Refusal.CONNECTIONS;
+        }
+        if(handshakes >= maxHandshakes)
+        {
+            return Refusal.HANDSHAKES;
+        }
+        if(refillPerMilli > 0 && address != null && !takeToken(address, System.currentTimeMillis()))
+        {
+            return Refusal.RATE;
+        }
+        connections++;
+        handshakes++;
+        return null;
+    }
+
+    /**
+     Records that an admitted connection logged in or resumed a session
+     */
+    public synchronized void handshakeFinished()
+    {
+        handshakes--;
+    }
+
+    /**
+     Records that an admitted connection went away
+
+     @param handshaking
+     True if the connection never finished its handshake
+     */
+    public synchronized void release(boolean handshaking)
+    {
+        connections--;
+        if(handshaking)
+        {
+            handshakes--;
+        }
+    }
+
+    /**
+     @return The number of admitted connections that have not gone away
+     */
+    public synchronized int getConnections()
+    {
+        return connections;
+    }
+
+    /**
+     @return The number of admitted connections that have not logged in yet
+     */
+    public synchronized int getHandshakes()
+    {
+        return handshakes;
+    }
+
+    private boolean takeToken(InetAddress address, long now)
+    {
+        Bucket bucket = buckets.get(address);
+        if(bucket == null)
+        {
+            if(buckets.size() >= pruneAt)
+            {
+                prune(now);
+                pruneAt = Math.max(PRUNE_SIZE, buckets.size() * 2);
+            }
+            bucket = new Bucket(burst, now);
+            buckets.put(address, bucket);
+        }
+        else
+        {
+            bucket.tokens = Math.min(burst, bucket.tokens + (now - bucket.updated) * refillPerMilli);
+            bucket.updated = now;
+        }
+
+        if(bucket.tokens < 1)
+        {
+            return false;
+        }
+        bucket.tokens--;
+        return true;
+    }
+
+    /**
+     Forgets every address whose bucket has refilled, since a new bucket for it would be the same
+     */
+    private void prune(long now)
+    {
+        Iterator<Bucket> it = buckets.values().iterator();
+        while(it.hasNext())
+        {
+            Bucket bucket = it.next();
+            if(bucket.tokens + (now - bucket.updated) * refillPerMilli >= burst)
+            {
+                it.remove();
+            }
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package bthomas.hexmap.server;
+
+import bthomas.hexmap.Main;
+import bthomas.hexmap.common.net.FrameCompressor;
+import bthomas.hexmap.common.net.MessageFormatException;
+import bthomas.hexmap.common.net.MessageFrame;
+import bthomas.hexmap.common.net.WireFormat;
+import bthomas.hexmap.logging.HexmapLogger;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ A connection to a single client that uses a blocking socket, with one thread sending messages to the client and
+ another ({@link ConnectionHandlerListener}) reading messages from it.
+
+ @author Brendan Thomas
+ @since 2017-10-28 */
+public class BlockingConnectionHandler extends ConnectionHandler implements Runnable
+{
+    private Socket service;
+    private volatile ConnectionHandlerListener listener;
+    private boolean broken = false;
+
+    /**
+     Standard constructor
+
+     @param parent
+     The server this connection belongs to and should report to
+     @param service
+     The actual data connection to use
+     */
+    public BlockingConnectionHandler(Server parent, Socket service)
+    {
+        super(parent);
+        this.service = service;
+    }
+
+    @Override
+    public void start()
+    {
+        new Thread(this).start();
+    }
+
+    @Override
+    protected void abort()
+    {
+        //closing the socket breaks a write stuck on a full socket, the sender then drains the closed queue and exits
+        ConnectionHandlerListener listener = this.listener;
+        if(listener != null)
+        {
+            listener.stopped = true;
+        }
+        try
+        {
+            service.close();
+        }
+        catch(IOException e)
+        {
+            Main.logger.log(HexmapLogger.ERROR, "Error closing connection to: " + username + ": "
+                    + HexmapLogger.getStackTraceString(e));
+        }
+    }
+
+    public void run()
+    {
+        //set up connection stuff
+        //if there's an error, mark as broken
+        try(Socket service = this.service)
+        {
+            //these are automatically closed by the close() of the parent socket
+            //the buffer holds a whole batch so it is only written to the socket on flush
+            ServerConfig config = parent.getConfig();
+            OutputStream output = new BufferedOutputStream(service.getOutputStream(), config.batchMaxBytes);
+            InputStream input = service.getInputStream();
+
+            //start listener
+            listener = new ConnectionHandlerListener(this, input);
+            new Thread(listener).start();
+
+            //send messages to client until handler is closed and its queue is empty
+            MessageFrame[] batch = new MessageFrame[config.batchMaxMessages];
+            try
+            {
+                long lingerNanos = TimeUnit.MICROSECONDS.toNanos(config.batchLingerMicros);
+                MessageFrame frame = takeFrame();
+                while(frame != null)
+                {
+                    //gather everything already queued, up to the batch limits, then write and flush once
+                    WireFormat format = wireFormat;
+                    int batchMessages = 0;
+                    int batchBytes = 0;
+                    long lingerEnd = System.nanoTime() + lingerNanos;
+                    while(frame != null)
+                    {
+                        int size = measure(frame, format);
+                        if(size >= 0)
+                        {
+                            batch[batchMessages++] = frame;
+                            batchBytes += size;
+                        }
+                        if(batchMessages >= config.batchMaxMessages || batchBytes >= config.batchMaxBytes)
+                        {
+                            break;
+                        }
+
+                        frame = pollFrame();
+                        if(frame == null && lingerNanos > 0)
+                        {
+                            frame = pollFrame(lingerEnd - System.nanoTime());
+                        }
+                    }
+
+                    writeBatch(output, batch, batchMessages, batchBytes, format);
+                    Arrays.fill(batch, 0, batchMessages, null);
+                    frame = takeFrame();
+                }
+            }
+            catch(InterruptedException e)
+            {
+                Main.logger.log(HexmapLogger.ERROR, "Interrupted while sending to client: " + username);
+            }
+
+            listener.stopped = true;
+        }
+        catch(IOException e)
+        {
+            Main.logger.log(HexmapLogger.SEVERE,
+                    "Error creating streams for internet communication: " + HexmapLogger.getStackTraceString(e));
+        }
+        markClosed();
+    }
+
+    /**
+     Encodes a frame for the client, if it has not been already
+
+     @param frame
+     The frame to encode
+     @param format
+     The format to encode it in
+
+     @return The size of the frame, or -1 if it could not be encoded and should be skipped
+     */
+    private int measure(MessageFrame frame, WireFormat format)
+    {
+        try
+        {
+            return frame.size(format);
+        }
+        catch(MessageFormatException e)
+        {
+            Main.logger.log(HexmapLogger.ERROR,
+                    "Error converting message for client: " + frame + " error: " +
+                            HexmapLogger.getStackTraceString(e));
+            return -1;
+        }
+    }
+
+    /**
+     Sends a batch of frames to the client with a single flush, compressed if it is large enough and the client asked
+     for compression
+
+     @param output
+     The connection to write the batch to
+     @param batch
+     The frames to send
+     @param count
+     The number of frames in the batch
+     @param bytes
+     The total size of the frames
+     @param format
+     The format the frames were encoded in
+     */
+    private void writeBatch(OutputStream output, MessageFrame[] batch, int count, int bytes, WireFormat format)
+    {
+        //after a write error, keep draining the queue until the listener notices and the server closes us
+        if(broken || count == 0)
+        {
+            return;
+        }
+
+        FrameCompressor compressor = getCompressor();
+        try
+        {
+            if(compressor != null && compressor.shouldCompress(bytes))
+            {
+                ByteBuffer block = compressor.compress(batch, 0, count, format);
+                output.write(block.array(), block.arrayOffset() + block.position(), block.remaining());
+                parent.getStats().recordCompression(bytes, block.remaining());
+            }
+            else
+            {
+                for(int i = 0; i < count; i++)
+                {
+                    batch[i].writeTo(output, format);
+                }
+            }
+            output.flush();
+            parent.getStats().recordBatch(count, bytes);
+        }
+        catch(MessageFormatException e)
+        {
+            //frames were already encoded when they were measured
+            Main.logger.log(HexmapLogger.ERROR,
+                    "Error converting message for client: " + HexmapLogger.getStackTraceString(e));
+        }
+        catch(IOException e)
+        {
+            writeFailed(e);
+        }
+    }
+
+    private void writeFailed(IOException e)
+    {
+        broken = true;
+        if(!toClose)
+        {
+            Main.logger.log(HexmapLogger.SEVERE,
+                    "Error writing to output stream: " + HexmapLogger.getStackTraceString(e));
+        }
+    }
+}
@@ -0,0 +1,587 @@
+package bthomas.hexmap.server;
+
+import bthomas.hexmap.Main;
+import bthomas.hexmap.common.Unit;
+import bthomas.hexmap.common.util.BinaryUtils;
+import bthomas.hexmap.logging.HexmapLogger;
+
+import java.awt.Color;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ Keeps the board on disk, so it survives a restart.
+ <p>
+ The board is saved as a snapshot plus a log of every change made since. Changes are handed to a writer thread through a
+ queue, so the thread changing the board never waits for the disk. The writer takes everything queued at once, writes
+ it as one checksummed block and forces it to disk, so a burst of changes costs one sync. Once enough changes have been
+ logged, the writer asks the server for a copy of the board, starts a new log file and writes the copy as the new
+ snapshot, after which the older logs are deleted.
+ <p>
+ On startup the snapshot is loaded and the logs written after it are replayed. A block cut short by a crash, or with a
+ bad checksum, ends the replay of its log, since nothing in it was ever confirmed written.
+
+ @author Brendan Thomas
+ @since 2019-04-09 */
+public class BoardStore implements Runnable
+{
+    private static final int SNAPSHOT_MAGIC = 0x48584253;
+    private static final int SNAPSHOT_VERSION = 1;
+    private static final String SNAPSHOT_FILE = "snapshot.dat";
+    private static final String LOG_PREFIX = "log-";
+    private static final String LOG_SUFFIX = ".wal";
+
+    //the most records gathered into one block
+    private static final int MAX_GROUP = 4096;
+
+    private static final byte ADD = 1;
+    private static final byte MOVE = 2;
+    private static final byte SIZE = 3;
+    private static final byte SNAPSHOT = 4;
+    private static final byte STOP = 5;
+
+    /**
+     A board loaded from disk
+     */
+    public static final class Board
+    {
+        public final int width;
+        public final int height;
+        public final List<Unit> units;
+
+        Board(int width, int height, List<Unit> units)
+        {
+            this.width = width;
+            this.height = height;
+            this.units = units;
+        }
+    }
+
+    /**
+     One queued change, or an instruction for the writer. Units are copied, since the board keeps changing them.
+     */
+    private static final class Record
+    {
+        final byte type;
+        final int uid;
+        final int x;
+        final int y;
+        final String name;
+        final int rgb;
+        final List<Unit> units;
+
+        Record(byte type, int uid, int x, int y, String name, int rgb, List<Unit> units)
+        {
+            this.type = type;
+            this.uid = uid;
+            this.x = x;
+            this.y = y;
+            this.name = name;
+            this.rgb = rgb;
+            this.units = units;
+        }
+    }
+
+    private final ServerStats stats;
+    //asks the owner of the board for a copy of it, which it hands back through logSnapshot
+    private final Runnable requestSnapshot;
+    private final Path directory;
+    private final int snapshotRecords;
+    private final LinkedBlockingQueue<Record> queue = new LinkedBlockingQueue<>();
+    private Thread writer;
+
+    //only used by the writer once it is started
+    private long generation = 0;
+    private FileChannel log;
+    private int loggedSinceSnapshot = 0;
+    private boolean snapshotRequested = false;
+    private final ByteArrayOutputStream block = new ByteArrayOutputStream(64 * 1024);
+    private final DataOutputStream blockOutput = new DataOutputStream(block);
+    private final CRC32 crc = new CRC32();
+    //set after a write fails, everything queued afterwards is thrown away
+    private volatile boolean failed = false;
+
+    /**
+     Standard constructor
+
+     @param stats
+     The counters to report commits and snapshots to
+     @param requestSnapshot
+     Called on the writer thread when a new snapshot is due, should pass a copy of the board to {@link #logSnapshot}
+     @param directory
+     The directory to keep the snapshot and logs in
+     @param snapshotRecords
+     How many changes are logged before a new snapshot is taken
+     */
+    public BoardStore(ServerStats stats, Runnable requestSnapshot, Path directory, int snapshotRecords)
+    {
+        this.stats = stats;
+        this.requestSnapshot = requestSnapshot;
+        this.directory = directory;
+        this.snapshotRecords = snapshotRecords;
+    }
+
+    /**
+     Loads the saved board, and compacts it into a new snapshot if any changes had to be replayed. Must be called once,
+     before {@link #start()}.
+
+     @return The saved board, or null if there is none
+
+     @throws IOException
+     If the saved board exists but could not be read
+     */
+    public Board load() throws IOException
+    {
+        Files.createDirectories(directory);
+
+        int width = -1;
+        int height = -1;
+        LinkedHashMap<Integer, Unit> units = new LinkedHashMap<>();
+        Path snapshotFile = directory.resolve(SNAPSHOT_FILE);
+        if(Files.exists(snapshotFile))
+        {
+            DataInputStream input = openChecked(Files.readAllBytes(snapshotFile));
+            if(input == null || input.readInt() != SNAPSHOT_MAGIC || input.readInt() != SNAPSHOT_VERSION)
+            {
+                throw new IOException("Board snapshot is damaged: " + snapshotFile);
+            }
+            generation = input.readLong();
+            width = input.readInt();
+            height = input.readInt();
+            int count = input.readInt();
+            for(int i = 0; i < count; i++)
+            {
+                Unit u = new Unit(input);
+                units.put(u.UID, u);
+            }
+        }
+
+        //only logs from the snapshot's generation on hold changes it does not have
+        long latest = generation;
+        int replayed = 0;
+        for(Map.Entry<Long, Path> entry : findLogs().entrySet())
+        {
+            latest = Math.max(latest, entry.getKey());
+            if(entry.getKey() < generation)
+            {
+                continue;
+            }
+            byte[] data = Files.readAllBytes(entry.getValue());
+            if(data.length == 0)
+            {
+                //left by a run that changed nothing
+                Files.delete(entry.getValue());
+                continue;
+            }
+            DataInputStream input = new DataInputStream(new ByteArrayInputStream(data));
+            int position = 0;
+            while(position < data.length)
+            {
+                DataInputStream records = readBlock(data, input);
+                if(records == null)
+                {
+                    Main.logger.log(HexmapLogger.INFO, "Ignoring unfinished end of board log " + entry.getValue()
+                            + " after " + position + " of " + data.length + " bytes");
+                    break;
+                }
+                position = data.length - input.available();
+                while(records.available() > 0)
+                {
+                    byte type = records.readByte();
+                    switch(type)
+                    {
+                        case ADD:
+                            Unit u = new Unit(records);
+                            units.put(u.UID, u);
+                            break;
+                        case MOVE:
+                            Unit moved = units.get(BinaryUtils.readVarInt(records));
+                            int x = BinaryUtils.readVarInt(records);
+                            int y = BinaryUtils.readVarInt(records);
+                            if(moved != null)
+                            {
+                                moved.locX = x;
+                                moved.locY = y;
+                            }
+                            break;
+                        case SIZE:
+                            width = BinaryUtils.readVarInt(records);
+                            height = BinaryUtils.readVarInt(records);
+                            break;
+                        default:
+                            throw new IOException("Unknown record type " + type + " in board log " + entry.getValue());
+                    }
+                    replayed++;
+                }
+            }
+        }
+
+        //start a log no earlier one can be mistaken for
+        generation = latest + 1;
+        if(replayed > 0)
+        {
+            ArrayList<Unit> copy = new ArrayList<>(units.values());
+            writeSnapshot(copy, width, height);
+            Main.logger.log(HexmapLogger.INFO, "Replayed " + replayed + " board changes into a new snapshot");
+        }
+        if(width < 0 && units.isEmpty())
+        {
+            return null;
+        }
+        return new Board(width, height, new ArrayList<>(units.values()));
+    }
+
+    /**
+     Starts the writer thread
+     */
+    public void start()
+    {
+        writer = new Thread(this, "Hexmap board writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     Logs a unit added to the board. Called while holding the board lock, so changes are logged in the order they are
+     made.
+
+     @param u
+     The unit added
+     */
+    public void logAdd(Unit u)
+    {
+        offer(new Record(ADD, u.UID, u.locX, u.locY, u.name, u.color.getRGB(), null));
+    }
+
+    /**
+     Logs a unit moved on the board. Called while holding the board lock.
+
+     @param uid
+     The UID of the unit moved
+     @param x
+     Where it moved to
+     @param y
+     Where it moved to
+     */
+    public void logMove(int uid, int x, int y)
+    {
+        offer(new Record(MOVE, uid, x, y, null, 0, null));
+    }
+
+    /**
+     Logs a change of the board's size. Called while holding the board lock.
+
+     @param width
+     The new width
+     @param height
+     The new height
+     */
+    public void logSize(int width, int height)
+    {
+        offer(new Record(SIZE, 0, width, height, null, 0, null));
+    }
+
+    /**
+     Has a copy of the board written as the new snapshot. Called while holding the board lock, so the copy holds exactly
+     the changes logged before it.
+
+     @param units
+     Copies of every unit on the board
+     @param width
+     The board's width
+     @param height
+     The board's height
+     */
+    public void logSnapshot(List<Unit> units, int width, int height)
+    {
+        offer(new Record(SNAPSHOT, 0, width, height, null, 0, units));
+    }
+
+    /**
+     Writes out everything queued and stops the writer, waiting a few seconds at most
+     */
+    public void close()
+    {
+        queue.add(new Record(STOP, 0, 0, 0, null, 0, null));
+        Thread writer = this.writer;
+        if(writer == null)
+        {
+            return;
+        }
+        try
+        {
+            writer.join(TimeUnit.SECONDS.toMillis(5));
+        }
+        catch(InterruptedException e)
+        {
+            Main.logger.log(HexmapLogger.ERROR, "Interrupted waiting for the board to be saved: "
+                    + HexmapLogger.getStackTraceString(e));
+        }
+    }
+
+    private void offer(Record record)
+    {
+        if(!failed)
+        {
+            queue.add(record);
+        }
+    }
+
+    @Override
+    public void run()
+    {
+        ArrayList<Record> group = new ArrayList<>(MAX_GROUP);
+        try
+        {
+            log = openLog(generation);
+            while(true)
+            {
+                group.add(queue.take());
+                queue.drainTo(group, MAX_GROUP - 1);
+                for(Record record : group)
+                {
+                    switch(record.type)
+                    {
+                        case SNAPSHOT:
+                            commit();
+                            //changes made after the copy go to a new log, so the older ones can be deleted
+                            log.close();
+                            generation++;
+                            log = openLog(generation);
+                            writeSnapshot(record.units, record.x, record.y);
+                            loggedSinceSnapshot = 0;
+                            snapshotRequested = false;
+                            break;
+                        case STOP:
+                            commit();
+                            log.close();
+                            return;
+                        default:
+                            append(record);
+                    }
+                }
+                group.clear();
+                commit();
+
+                if(loggedSinceSnapshot >= snapshotRecords && !snapshotRequested)
+                {
+                    snapshotRequested = true;
+                    requestSnapshot.run();
+                }
+            }
+        }
+        catch(IOException e)
+        {
+            failed = true;
+            queue.clear();
+            Main.logger.log(HexmapLogger.SEVERE, "Error saving the board, changes are no longer saved: "
+                    + HexmapLogger.getStackTraceString(e));
+        }
+        catch(InterruptedException e)
+        {
+            Main.logger.log(HexmapLogger.ERROR, "Board writer interrupted: " + HexmapLogger.getStackTraceString(e));
+        }
+    }
+
+    /**
+     Adds a change to the block being built
+     */
+    private void append(Record record) throws IOException
+    {
+        blockOutput.writeByte(record.type);
+        switch(record.type)
+        {
+            case ADD:
+                new Unit(record.name, record.x, record.y, record.uid, new Color(record.rgb, true))
+                        .writeBinary(blockOutput);
+                break;
+            case MOVE:
+                BinaryUtils.writeVarInt(blockOutput, record.uid);
+                BinaryUtils.writeVarInt(blockOutput, record.x);
+                BinaryUtils.writeVarInt(blockOutput, record.y);
+                break;
+            case SIZE:
+                BinaryUtils.writeVarInt(blockOutput, record.x);
+                BinaryUtils.writeVarInt(blockOutput, record.y);
+                break;
+        }
+        loggedSinceSnapshot++;
+    }
+
+    /**
+     Writes the block being built to the log as its length, its records and a checksum, and forces it to disk
+     */
+    private void commit() throws IOException
+    {
+        if(block.size() == 0)
+        {
+            return;
+        }
+        byte[] records = block.toByteArray();
+        block.reset();
+        crc.reset();
+        crc.update(records, 0, records.length);
+
+        ByteArrayOutputStream framed = new ByteArrayOutputStream(records.length + 9);
+        DataOutputStream output = new DataOutputStream(framed);
+        BinaryUtils.writeUnsignedVarInt(output, records.length);
+        output.write(records);
+        output.writeInt((int) crc.getValue());
+
+        ByteBuffer buffer = ByteBuffer.wrap(framed.toByteArray());
+        while(buffer.hasRemaining())
+        {
+            log.write(buffer);
+        }
+        log.force(false);
+        stats.recordBoardCommit(records.length);
+    }
+
+    /**
+     Reads the next block of a log
+
+     @return The block's records, or null if the block is cut short or its checksum is wrong
+     */
+    private DataInputStream readBlock(byte[] data, DataInputStream input)
+    {
+        try
+        {
+            int length = BinaryUtils.readUnsignedVarInt(input);
+            int start = data.length - input.available();
+            if(length < 0 || length > input.available() - 4)
+            {
+                return null;
+            }
+            input.skipBytes(length);
+            crc.reset();
+            crc.update(data, start, length);
+            if(input.readInt() != (int) crc.getValue())
+            {
+                return null;
+            }
+            return new DataInputStream(new ByteArrayInputStream(data, start, length));
+        }
+        catch(IOException e)
+        {
+            return null;
+        }
+    }
+
+    /**
+     Writes a snapshot of the current generation, replacing the old one only once it is safely on disk, then deletes
+     the logs it makes unnecessary
+     */
+    private void writeSnapshot(List<Unit> units, int width, int height) throws IOException
+    {
+        long start = System.currentTimeMillis();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + units.size() * 24);
+        DataOutputStream output = new DataOutputStream(bytes);
+        output.writeInt(SNAPSHOT_MAGIC);
+        output.writeInt(SNAPSHOT_VERSION);
+        output.writeLong(generation);
+        output.writeInt(width);
+        output.writeInt(height);
+        output.writeInt(units.size());
+        for(Unit u : units)
+        {
+            u.writeBinary(output);
+        }
+        crc.reset();
+        crc.update(bytes.toByteArray(), 0, bytes.size());
+        output.writeInt((int) crc.getValue());
+
+        Path temp = directory.resolve(SNAPSHOT_FILE + ".tmp");
+        try(FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING))
+        {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+            while(buffer.hasRemaining())
+            {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        Files.move(temp, directory.resolve(SNAPSHOT_FILE), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+
+        for(Map.Entry<Long, Path> entry : findLogs().entrySet())
+        {
+            if(entry.getKey() < generation)
+            {
+                Files.deleteIfExists(entry.getValue());
+            }
+        }
+        stats.recordBoardSnapshot(units.size(), System.currentTimeMillis() - start);
+    }
+
+    /**
+     Checks the checksum at the end of a whole file
+
+     @return A stream over the data before the checksum, or null if it does not match
+     */
+    private DataInputStream openChecked(byte[] data)
+    {
+        if(data.length < 4)
+        {
+            return null;
+        }
+        int length = data.length - 4;
+        crc.reset();
+        crc.update(data, 0, length);
+        int expected = ByteBuffer.wrap(data, length, 4).getInt();
+        if(expected != (int) crc.getValue())
+        {
+            return null;
+        }
+        return new DataInputStream(new ByteArrayInputStream(data, 0, length));
+    }
+
+    private FileChannel openLog(long generation) throws IOException
+    {
+        return FileChannel.open(directory.resolve(LOG_PREFIX + generation + LOG_SUFFIX), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    /**
+     @return Every log in the directory, by generation
+     */
+    private TreeMap<Long, Path> findLogs() throws IOException
+    {
+        TreeMap<Long, Path> res = new TreeMap<>();
+        try(DirectoryStream<Path> files = Files.newDirectoryStream(directory, LOG_PREFIX + "*" + LOG_SUFFIX))
+        {
+            for(Path file : files)
+            {
+                String name = file.getFileName().toString();
+                try
+                {
+                    res.put(Long.parseLong(name.substring(LOG_PREFIX.length(), name.length() - LOG_SUFFIX.length())),
+                            file);
+                }
+                catch(NumberFormatException e)
+                {
+                    //not one of ours
+                }
+            }
+        }
+        return res;
+    }
+}
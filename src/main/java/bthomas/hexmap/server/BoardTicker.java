@@ -0,0 +1,56 @@
+package bthomas.hexmap.server;
+
+import bthomas.hexmap.Main;
+import bthomas.hexmap.common.Scheduling.ScheduledTask;
+
+/**
+ Runs the server's tick, sending the board changes made since the last tick at a fixed rate.
+ <p>
+ Ticks are scheduled at a fixed rate, so the rate does not drift. If the server falls behind, the missed ticks are
+ skipped instead of being run back to back.
+
+ @author Brendan Thomas
+ @since 2019-04-02 */
+public class BoardTicker implements Runnable
+{
+    private final Server server;
+    private final long periodMillis;
+    private volatile ScheduledTask task;
+
+    /**
+     Standard constructor
+
+     @param server
+     The server to run ticks for
+     @param rate
+     The number of ticks per second
+     */
+    public BoardTicker(Server server, int rate)
+    {
+        this.server = server;
+        periodMillis = Math.max(1, 1000 / rate);
+    }
+
+    /**
+     Starts running ticks
+     */
+    public void start()
+    {
+        task = Main.scheduleAtFixedRate(this, System.currentTimeMillis() + periodMillis, periodMillis);
+    }
+
+    @Override
+    public void run()
+    {
+        if(server.isClosing())
+        {
+            ScheduledTask task = this.task;
+            if(task != null)
+            {
+                task.cancel();
+            }
+            return;
+        }
+        server.flushTick();
+    }
+}
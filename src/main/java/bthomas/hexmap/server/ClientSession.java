@@ -0,0 +1,147 @@
+package bthomas.hexmap.server;
+
+import bthomas.hexmap.common.net.MessageFrame;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ The part of a joined client that outlives its connection, so a client that briefly loses its connection can resume
+ where it left off instead of joining again.
+ <p>
+ Every frame sent to the client from its init message on is numbered, starting at 1, and the most recent ones are kept
+ in a bounded replay buffer. The client counts the messages it receives the same way, so when it comes back with a count
+ the server knows exactly which frames it missed. The answer to a resume is not numbered by either side.
+ <p>
+ Thread safe.
+
+ @author Brendan Thomas
+ @since 2019-04-03 */
+public class ClientSession
+{
+    private static final SecureRandom random = new SecureRandom();
+
+    //secret the client resumes with, anyone holding it can take the session over
+    public final String token;
+
+    private final int maxMessages;
+    private final int maxBytes;
+
+    //ring buffer of the most recently sent frames and their sizes, the oldest is at head
+    private MessageFrame[] frames = new MessageFrame[16];
+    private int[] sizes = new int[16];
+    private int head = 0;
+    private int count = 0;
+    private long bytes = 0;
+    //number of the newest frame sent
+    private long sent = 0;
+
+    /**
+     Creates a session with a new random token
+
+     @param config
+     The settings giving the size of the replay buffer
+     */
+    public ClientSession(ServerConfig config)
+    {
+        maxMessages = config.sessionReplayMessages;
+        maxBytes = config.sessionReplayBytes;
+
+        byte[] bytes = new byte[16];
+        random.nextBytes(bytes);
+        StringBuilder token = new StringBuilder(bytes.length * 2);
+        for(byte b : bytes)
+        {
+            token.append(String.format("%02x", b));
+        }
+        this.token = token.toString();
+    }
+
+    /**
+     Records a frame as sent to the client, giving it the next number. The oldest frames are forgotten once the buffer
+     is full.
+
+     @param frame
+     The frame sent
+     @param size
+     The size of the frame, as counted against the buffer's byte limit
+     */
+    public synchronized void record(MessageFrame frame, int size)
+    {
+        if(count == frames.length && count < maxMessages)
+        {
+            int capacity = Math.min(frames.length * 2, maxMessages);
+            MessageFrame[] newFrames = new MessageFrame[capacity];
+            int[] newSizes = new int[capacity];
+            for(int i = 0; i < count; i++)
+            {
+                newFrames[i] = frames[index(i)];
+                newSizes[i] = sizes[index(i)];
+            }
+            frames = newFrames;
+            sizes = newSizes;
+            head = 0;
+        }
+        if(count == frames.length)
+        {
+            removeOldest();
+        }
+
+        int tail = index(count);
+        frames[tail] = frame;
+        sizes[tail] = size;
+        count++;
+        bytes += size;
+        sent++;
+
+        while(count > 1 && bytes > maxBytes)
+        {
+            removeOldest();
+        }
+    }
+
+    /**
+     Takes back every frame sent after the ones a resuming client received, so they can be sent again. They are
+     numbered again as they are resent, with the same numbers as before.
+
+     @param received
+     The number of frames the client received
+
+     @return The frames the client missed in the order they were sent, or null if the client claims more than was sent
+     or some of what it missed is no longer kept
+     */
+    public synchronized List<MessageFrame> rewind(long received)
+    {
+        long missed = sent - received;
+        if(missed < 0 || missed > count)
+        {
+            return null;
+        }
+
+        List<MessageFrame> res = new ArrayList<>((int) missed);
+        for(int i = count - (int) missed; i < count; i++)
+        {
+            int slot = index(i);
+            res.add(frames[slot]);
+            bytes -= sizes[slot];
+            frames[slot] = null;
+        }
+        count -= missed;
+        sent = received;
+        return res;
+    }
+
+    private int index(int offset)
+    {
+        return (head + offset) % frames.length;
+    }
+
+    private void removeOldest()
+    {
+        bytes -= sizes[head];
+        frames[head] = null;
+        head = (head + 1) % frames.length;
+        count--;
+    }
+}
@@ -1,21 +1,18 @@
 package bthomas.hexmap.server;
 
-import bthomas.hexmap.common.json.JsonConversionException;
 import bthomas.hexmap.logging.HexmapLogger;
 import bthomas.hexmap.Main;
+import bthomas.hexmap.common.net.CloseMessage;
+import bthomas.hexmap.common.net.FrameCompressor;
+import bthomas.hexmap.common.net.FrameDecoder;
 import bthomas.hexmap.common.net.HexMessage;
-import bthomas.hexmap.permissions.PermissionBase;
-import bthomas.hexmap.permissions.PermissionMulti;
-import bthomas.hexmap.permissions.PermissionSingle;
+import bthomas.hexmap.common.net.MessageFormatException;
+import bthomas.hexmap.common.net.MessageFrame;
+import bthomas.hexmap.common.net.WireFormat;
 
-import java.io.*;
-import java.net.Socket;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.util.ArrayDeque;
-import java.util.HashSet;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.BitSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 
 /*
@@ -29,34 +26,49 @@ from the client to send to the server.
  client, and from the client to the server.
  <p>
  This class also represents one user of the Hexmap server, and handles owned units, permissions, and other user-specific
- items
+ items. Subclasses provide the actual transport for the connection.
 
  @author Brendan Thomas
  @since 2017-10-28 */
-public class ConnectionHandler implements Runnable
+public abstract class ConnectionHandler
 {
 
     //connection handler items
     public Server parent;
-    private Socket service;
 
-    public boolean toClose = false;
-    public boolean isClosed = false;
+    public volatile boolean toClose = false;
+    public volatile boolean isClosed = false;
 
-    public long lastPingReceived = System.currentTimeMillis();
-    public long lastPingSent = 0;
+    //the format used for messages sent to the client, agreed on in the handshake
+    public volatile WireFormat wireFormat = WireFormat.JSON;
+    //set once the handshake reply is queued, frames queued before then are pinned to the format they were queued in
+    private volatile boolean formatAgreed = false;
+    //compresses large batches sent to the client, if it asked for that in the handshake
+    private volatile FrameCompressor compressor = null;
 
-    private ConnectionHandlerListener listener;
-    private ArrayDeque<HexMessage> sendQueue = new ArrayDeque<>();
-    private final ReentrantLock queueLock = new ReentrantLock();
+    //when anything was last received from the client, checked by the server's IdleWheel
+    private volatile long lastReceived = System.currentTimeMillis();
+
+    private final SendQueue sendQueue;
+    //set once the client falls too far behind, everything sent afterwards is thrown away
+    private final AtomicBoolean overflowed = new AtomicBoolean(false);
+    //completed once the connection has finished closing
+    private final CompletableFuture<Void> closed = new CompletableFuture<>();
+
+    //set until the client logs in or resumes a session, while it counts towards the server's handshake limit
+    private final AtomicBoolean handshaking = new AtomicBoolean(true);
+
+    //what outlives the connection if it is lost, or null if the client can't resume
+    private volatile ClientSession session = null;
+    //set once the connection is lost and the client may still resume its session on a new one
+    private volatile boolean suspended = false;
 
     //user items
     public String username = null;
 
-    //an instance of PermissionMulti in this set indicates a permission like "hexmap.commands.*"
-    //an instance of PermissionSingle in this set indicates a permission like "hexmap.commands.roll"
-    private HashSet<PermissionBase> singlePermissions = new HashSet<>();
-    private HashSet<PermissionBase> groupPermissions = null;
+    //ids of every permission the user has, from its group and its own file with wildcards expanded
+    //replaced whole rather than changed, so checks never need a lock
+    private volatile BitSet permissions = new BitSet();
 
 
     /**
@@ -64,247 +76,351 @@ public class ConnectionHandler implements Runnable
 
      @param parent
      The server this connection belongs to and should report to
-     @param service
-     The actual data connection to use
      */
-    public ConnectionHandler(Server parent, Socket service)
+    protected ConnectionHandler(Server parent)
     {
         this.parent = parent;
-        this.service = service;
+        sendQueue = new SendQueue(parent.getConfig(), parent.getStats());
     }
 
     /**
-     Load the permissions for this user from its permissions file
+     Gives this user the permissions of its name from the server's permission store
      */
     public void setupPermissions()
     {
-        Path userFile = Paths.get(parent.userPermissionsDirectory.toString(), username + ".txt");
-        if(Files.exists(userFile))
-        {
-            try
-            {
-                BufferedReader inputPermisisons = new BufferedReader(new FileReader(userFile.toFile()));
-                String line = inputPermisisons.readLine();
-                //permission group is the first line
-                groupPermissions = parent.getGroupPermissions(line);
-                if(groupPermissions == null)
-                {
-                    groupPermissions = parent.getGroupPermissions("default.txt");
-                    Main.logger.log(HexmapLogger.ERROR,
-                            "Attempted to apply unknown group: " + line + " to user: " + username);
-                }
-
-                while(line != null)
-                {
-                    applyPermission(line);
-                    line = inputPermisisons.readLine();
-                }
-                inputPermisisons.close();
-            }
-            catch(IOException e)
-            {
-                Main.logger.log(HexmapLogger.SEVERE, "Error reading from permission file for: "
-                        + username + ": " + HexmapLogger.getStackTraceString(e));
-            }
-        }
-        else
-        {
-            groupPermissions = parent.getGroupPermissions("default.txt");
-        }
+        permissions = parent.getPermissionStore().compile(username);
     }
 
     /**
-     Add a single permission to this user
+     Replaces the permissions of this user, such as after its permission file changed
+
+     @param permissions
+     The ids of every permission the user has, which must not be changed afterwards
+     */
+    public void setPermissions(BitSet permissions)
+    {
+        this.permissions = permissions;
+    }
+
+    /**
+     Checks to see if the user has a given permission. Callers that check often should look up the permission's id
+     once with {@link Server#getPermissionId(String)} and use {@link #hasPermission(int)}.
 
      @param permission
-     The permission to add
+     The permission to check the user for
 
-     @return True if the permission was successfully added, false otherwise
+     @return True if the user has that permission, false if they do not or the permission is not registered
      */
-    private boolean applyPermission(String permission)
+    public boolean hasPermission(String permission)
     {
-        //reject invalid permissions
-        if(!PermissionBase.inputPermission.matcher(permission).matches())
+        int id = parent.getPermissionId(permission);
+        if(id < 0)
         {
-            Main.logger.log(HexmapLogger.ERROR, "Tried to load invalid permission: " + permission
-                    + " to user: " + username);
+            Main.logger.log(HexmapLogger.ERROR, "Attempt to check unregistered permission: "
+                    + permission + " to user: " + username);
             return false;
         }
+        return hasPermission(id);
+    }
 
-        //get the lowest level permission manager for this permission
-        PermissionMulti manager = parent.getBasePermissionManager();
-        String[] parts = permission.split("\\.");
-        for(int i = 0; i < parts.length - 1; i++)
-        {
-            manager = manager.getSubManagerOrFail(parts[i]);
-            //reject unregistered permissions
-            if(manager == null)
-            {
-                Main.logger.log(HexmapLogger.ERROR, "Attempt to apply unregistered permission: "
-                        + permission + " to user: " + username);
-                return false;
-            }
-        }
+    /**
+     Checks to see if the user has a given permission
 
-        //for generic permissions, we are done here
-        if(permission.contains("*"))
-        {
-            singlePermissions.add(manager);
-            return true;
-        }
+     @param id
+     The id of the permission, from {@link Server#getPermissionId(String)}
+
+     @return True if the user has that permission, false if they do not or the id is not a permission's
+     */
+    public boolean hasPermission(int id)
+    {
+        return id >= 0 && permissions.get(id);
+    }
 
-        //get the final permission single for this permission
-        PermissionSingle end = manager.getPermissionOrFail(parts[parts.length - 1]);
-        //reject unregistered permissions
-        if(end == null)
+
+    /**
+     Starts handling traffic for this connection
+     */
+    public abstract void start();
+
+    /**
+     Marks this connection to be closed once its queued messages have been sent. A client that fell too far behind is
+     closed straight away instead.
+     */
+    public void requestClose()
+    {
+        toClose = true;
+        sendQueue.close();
+        if(overflowed.get())
         {
-            Main.logger.log(HexmapLogger.ERROR, "Attempt to apply unregistered permission: "
-                    + permission + " to user: " + username);
-            return false;
+            abort();
         }
+    }
+
+    /**
+     Starts numbering and keeping the frames sent to this client, so it can resume on a new connection if this one is
+     lost
+
+     @param session
+     The session to record sent frames in
+     */
+    public void startSession(ClientSession session)
+    {
+        this.session = session;
+        sendQueue.setSession(session);
+    }
 
-        singlePermissions.add(end);
-        return true;
+    /**
+     @return The session of this client, or null if it can't resume
+     */
+    public ClientSession getSession()
+    {
+        return session;
     }
 
     /**
-     Checks to see if the user has a given permission.
+     Marks the handshake of this connection as over, because the client logged in or resumed, or the connection went
+     away
 
-     @param permission
-     The permission to check the user for
+     @return True if the handshake was still going, false if it had already been marked over
+     */
+    public boolean finishHandshake()
+    {
+        return handshaking.compareAndSet(true, false);
+    }
+
+    /**
+     Sets the format of everything queued after the handshake reply. Must be called after the reply is queued.
 
-     @return True if the user has that permission, false if they do not or the permission is invalid
+     @param format
+     The format agreed on with the client
      */
-    public boolean hasPermission(String permission)
+    public void agreeFormat(WireFormat format)
     {
-        //reject invalid permissions
-        if(!PermissionBase.genericPermissionPattern.matcher(permission).matches())
-        {
-            Main.logger.log(HexmapLogger.ERROR, "Tried to check invalid permission: " + permission
-                    + " to user: " + username);
-            return false;
-        }
+        wireFormat = format;
+        formatAgreed = true;
+    }
 
-        //get the lowest level permission manager for this permission
-        PermissionMulti manager = parent.getBasePermissionManager();
-        String[] parts = permission.split("\\.");
-        for(int i = 0; i < parts.length - 1; i++)
-        {
-            //check if user contains a generic permission containing the requested permission
-            if(singlePermissions.contains(manager) || groupPermissions.contains(manager))
-            {
-                return true;
-            }
-
-            manager = manager.getSubManagerOrFail(parts[i]);
-            //reject unregistered permissions
-            if(manager == null)
-            {
-                Main.logger.log(HexmapLogger.ERROR, "Attempt to check unregistered generic permission: "
-                        + permission + " to user: " + username + " on: " + parts[i]);
-                return false;
-            }
-        }
+    /**
+     @return True if the client has not logged in or resumed a session yet
+     */
+    public boolean isHandshaking()
+    {
+        return handshaking.get();
+    }
 
-        //get the final permission single for this permission
-        PermissionSingle end = manager.getPermissionOrFail(parts[parts.length - 1]);
-        //reject unregistered permissions
-        if(end == null)
-        {
-            Main.logger.log(HexmapLogger.ERROR, "Attempt to check unregistered end permission: "
-                    + permission + " to user: " + username);
-            return false;
-        }
+    /**
+     @return When anything was last received from the client, in milliseconds since the epoch
+     */
+    public long getLastReceived()
+    {
+        return lastReceived;
+    }
 
-        return singlePermissions.contains(end) || groupPermissions.contains(manager);
+    /**
+     @return True if the connection was lost and the client may still resume its session
+     */
+    public boolean isSuspended()
+    {
+        return suspended;
     }
 
+    /**
+     Drops the connection after it was lost, keeping everything queued and sent from now on in the session for the
+     client to resume with
+     */
+    public void suspend()
+    {
+        suspended = true;
+        toClose = true;
+        sendQueue.divert();
+        abort();
+    }
 
-    public void run()
+    /**
+     Throws away everything sent to this client from now on, once its session has moved to another connection
+     */
+    public void discard()
     {
-        //set up connection stuff
-        //if there's an error, mark as broken
-        try(Socket service = this.service)
-        {
-            //these are automatically closed by the close() of the parent socket
-            PrintWriter output = new PrintWriter(service.getOutputStream());
-            BufferedReader input = new BufferedReader(new InputStreamReader(service.getInputStream()));
-
-            //start listener
-            listener = new ConnectionHandlerListener(this, input);
-            new Thread(listener).start();
-
-            //send messages to client until handler is closed
-            while(!toClose)
-            {
-                //send a message to the client if one is in the queue
-                if(sendQueue.size() > 0)
-                {
-                    HexMessage message;
-                    synchronized(queueLock)
-                    {
-                        message = sendQueue.poll();
-                    }
-                    sendMessage(output, message);
-                }
-                else
-                {
-                    try
-                    {
-                        Thread.sleep(50);
-                    }
-                    catch(InterruptedException e)
-                    {
-                        //no problem
-                    }
-                }
-            }
-
-            listener.stopped = true;
-        }
-        catch(IOException e)
+        sendQueue.discard();
+    }
+
+    /**
+     Continues as the same user as a connection whose session this one resumed
+
+     @param previous
+     The lost connection
+     */
+    public void takeOver(ConnectionHandler previous)
+    {
+        username = previous.username;
+        permissions = previous.permissions;
+    }
+
+    /**
+     Closes the connection without waiting for queued messages to be sent, for a client that is not reading them. The
+     connection must still end up marked closed.
+     */
+    protected abstract void abort();
+
+    /**
+     Starts compressing large batches sent to this client. Only the thread sending to the client may use the
+     compressor afterwards.
+
+     @param compressor
+     The compressor for this connection
+     */
+    public void setCompressor(FrameCompressor compressor)
+    {
+        this.compressor = compressor;
+    }
+
+    /**
+     @return The compressor for batches sent to this client, or null if they are sent uncompressed
+     */
+    protected FrameCompressor getCompressor()
+    {
+        return compressor;
+    }
+
+    /**
+     Marks this connection as fully closed, completing {@link #whenClosed()}
+     */
+    protected void markClosed()
+    {
+        FrameCompressor compressor = this.compressor;
+        if(compressor != null)
         {
-            Main.logger.log(HexmapLogger.SEVERE,
-                    "Error creating streams for internet communication: " + HexmapLogger.getStackTraceString(e));
+            compressor.close();
         }
         isClosed = true;
+        closed.complete(null);
+    }
+
+    /**
+     @return A future completed once this connection has finished closing, on the thread that finished it
+     */
+    public CompletableFuture<Void> whenClosed()
+    {
+        return closed;
+    }
+
+    /**
+     Takes the next frame to send to the client off of the queue
+
+     @return The next frame, or null if the queue is empty
+     */
+    protected MessageFrame pollFrame()
+    {
+        return sendQueue.poll();
     }
 
     /**
-     Sends a message to the client
+     Takes the next frame to send to the client off of the queue, waiting a limited time for one to be added if needed
+
+     @param timeoutNanos
+     The longest time to wait
+
+     @return The next frame, or null if none was added in time or the connection is closing
+
+     @throws InterruptedException
+     If the thread is interrupted while waiting
+     */
+    protected MessageFrame pollFrame(long timeoutNanos) throws InterruptedException
+    {
+        return sendQueue.poll(timeoutNanos);
+    }
+
+    /**
+     Takes the next frame to send to the client off of the queue, waiting for one to be added if needed
+
+     @return The next frame, or null once the connection is closing and everything queued has been taken
+
+     @throws InterruptedException
+     If the thread is interrupted while waiting
+     */
+    protected MessageFrame takeFrame() throws InterruptedException
+    {
+        return sendQueue.take();
+    }
+
+    /**
+     @return The number of frames waiting to be sent to the client
+     */
+    public int getQueuedMessages()
+    {
+        return sendQueue.messageCount();
+    }
+
+    /**
+     Creates a decoder for the data received from the client
+
+     @return A new decoder that looks messages up in this connection's server
+     */
+    protected FrameDecoder createDecoder()
+    {
+        return new FrameDecoder(parent::getRegistry);
+    }
+
+    /**
+     Hands a message received from the client to the server
 
-     @param output
-     The connection to send the message on
      @param message
-     The message to send
+     The received message
      */
-    private void sendMessage(PrintWriter output, HexMessage message)
+    protected void dispatch(HexMessage message)
     {
-        try
-        {
-            String out = Main.GSON.toJson(message.toJson(new HashSet<>())) + "\n";
-            output.write(out);
-            output.flush();
-        }
-        catch(JsonConversionException e)
-        {
-            Main.logger.log(HexmapLogger.ERROR,
-                    "Error converting message for client: " + message + " error: " +
-                            HexmapLogger.getStackTraceString(e));
-        }
+        lastReceived = System.currentTimeMillis();
+        parent.receiveMessage(new MessageData(message, this));
     }
 
     /**
-     Adds a message to be sent to this connection
+     Adds a message to be sent to this connection. The message is encoded just for this connection, use {@link
+     #addFrame(MessageFrame)} to send an already encoded message.
 
      @param message
      The message to add
      */
     public void addMessage(HexMessage message)
     {
-        synchronized(queueLock)
+        addFrame(new MessageFrame(message, parent.getRegistry()));
+    }
+
+    /**
+     Adds a frame to be sent to this connection
+
+     @param frame
+     The frame to add, which may be shared with other connections
+     */
+    public void addFrame(MessageFrame frame)
+    {
+        SendQueue.Result res;
+        //a frame queued before the format is agreed is sent after the reply that may switch the connection to binary,
+        //so it is pinned to the format it was measured in, the one the client can read without the reply's id table
+        boolean agreed = formatAgreed;
+        WireFormat format = wireFormat;
+        if(!agreed)
+        {
+            frame = frame.pinnedTo(format);
+        }
+        try
+        {
+            res = sendQueue.offer(frame, format);
+        }
+        catch(MessageFormatException e)
+        {
+            Main.logger.log(HexmapLogger.ERROR, "Error converting message: " + frame + " for: " + username
+                    + " error: " + HexmapLogger.getStackTraceString(e));
+            return;
+        }
+
+        if(res == SendQueue.Result.OVERFLOW && overflowed.compareAndSet(false, true))
         {
-            sendQueue.add(message);
+            sendQueue.discard();
+            parent.getStats().recordSlowDisconnect();
+            //this may be called while the server is broadcasting to every connection, so the close is handled later
+            //by the server thread, like any other message from this client
+            parent.receiveMessage(new MessageData(new CloseMessage("too far behind, more than " + parent.getConfig().sendQueueMaxMessages
+                    + " messages or " + parent.getConfig().sendQueueMaxBytes + " bytes queued"), this));
         }
     }
 }
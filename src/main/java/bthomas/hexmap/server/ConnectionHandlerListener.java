@@ -1,16 +1,12 @@
 package bthomas.hexmap.server;
 
-import bthomas.hexmap.common.json.JsonConversionException;
-import bthomas.hexmap.common.net.HexMessage;
-import bthomas.hexmap.common.util.JsonUtils;
+import bthomas.hexmap.common.net.FrameDecoder;
+import bthomas.hexmap.common.net.MessageFormatException;
 import bthomas.hexmap.logging.HexmapLogger;
 import bthomas.hexmap.Main;
-import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonSyntaxException;
 
-import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
 
 /**
  This class handles incoming data from a client connection
@@ -19,9 +15,10 @@ import java.io.IOException;
  @since 2017-10-28 */
 public class ConnectionHandlerListener implements Runnable
 {
+    private static final int READ_BUFFER_SIZE = 8192;
 
     private ConnectionHandler parent;
-    private BufferedReader input;
+    private InputStream input;
 
     public boolean stopped = false;
 
@@ -31,7 +28,7 @@ public class ConnectionHandlerListener implements Runnable
      @param input
      The input stream to read from
      */
-    public ConnectionHandlerListener(ConnectionHandler parent, BufferedReader input)
+    public ConnectionHandlerListener(ConnectionHandler parent, InputStream input)
     {
         this.parent = parent;
         this.input = input;
@@ -39,41 +36,28 @@ public class ConnectionHandlerListener implements Runnable
 
     public void run()
     {
+        FrameDecoder decoder = parent.createDecoder();
+        byte[] readBuffer = new byte[READ_BUFFER_SIZE];
         while(true)
         {
             try
             {
-                String message = input.readLine();
-                if(message != null)
+                int read = input.read(readBuffer);
+                if(read >= 0)
                 {
-                    JsonElement inputMessage = Main.PARSER.parse(message);
-                    if(!(inputMessage instanceof JsonObject))
-                    {
-                        throw new JsonConversionException("Received message not a HexMessage object: " + message);
-                    }
-
-                    JsonObject messageJson = (JsonObject) inputMessage;
-                    long key = JsonUtils.getLong(messageJson, "key");
-                    HexMessage template = parent.parent.getRegisteredMessage(key);
-                    if(template == null)
-                    {
-                        throw new JsonConversionException("Unregistered message key: " + key);
-                    }
-                    HexMessage messageObj = template.fromJson(messageJson);
-
-                    //send message to server with source
-                    parent.parent.receiveMessage(new MessageData(messageObj, parent));
+                    //send each complete message to server with source
+                    decoder.feed(readBuffer, 0, read, parent::dispatch);
                 }
                 else
                 {
-                    throw new IOException("Null received from socket input stream");
+                    throw new IOException("End of stream received from socket input stream");
                 }
             }
-            catch(JsonConversionException | JsonSyntaxException e)
+            catch(MessageFormatException e)
             {
                 Main.logger.log(HexmapLogger.SEVERE,
                         "Error occurred while parsing input message: " + HexmapLogger.getStackTraceString(e));
-                parent.parent.closeListener(parent, "Invalid JSON received from input stream");
+                parent.parent.closeListener(parent, "Invalid message received from input stream");
                 break;
             }
             catch(IOException e)
@@ -83,11 +67,16 @@ public class ConnectionHandlerListener implements Runnable
                 {
                     Main.logger.log(HexmapLogger.SEVERE,
                             "Error reading from input stream: " + HexmapLogger.getStackTraceString(e));
-                    parent.parent.closeListener(parent, "Error reading from input stream");
+                    //a client with a session gets a chance to come back on a new connection
+                    if(!parent.parent.suspendListener(parent, "Error reading from input stream"))
+                    {
+                        parent.parent.closeListener(parent, "Error reading from input stream");
+                    }
                 }
                 //something happened to the stream, close the connection
                 break;
             }
         }
+        decoder.close();
     }
 }
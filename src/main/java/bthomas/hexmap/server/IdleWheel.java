@@ -0,0 +1,318 @@
+package bthomas.hexmap.server;
+
+import bthomas.hexmap.Main;
+import bthomas.hexmap.common.Scheduling.ScheduledTask;
+import bthomas.hexmap.common.net.PingMessage;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ Finds connections whose clients have gone quiet, pings them, and times them out if they still don't answer.
+ <p>
+ Each connection has one entry in a hashed timing wheel, in the slot of the tick when it next needs looking at. A tick
+ only visits the entries in its own slot, so the cost of a tick depends on how many connections are due, not on how
+ many there are. Receiving from a client does not touch the wheel, it only updates the connection's last received time.
+ An entry that comes due for a client that was heard from since is just moved on to its new deadline, so busy clients are
+ never pinged.
+ <p>
+ A client is pinged once it has been silent for the idle time, and times out if it is still silent the timeout after
+ that. A dead client is noticed at most idle + timeout + one tick after it was last heard from. Timeouts are handed to
+ the server without waiting for the connection to close, so a stuck connection can't hold up the wheel.
+ <p>
+ A client that has not logged in or resumed its session also comes due at its handshake deadline, and is closed if it
+ still hasn't by then, even if it is far from idle. Otherwise a client could hold one of the server's few handshake
+ places forever by sending pings.
+
+ @author Brendan Thomas
+ @since 2019-04-04 */
+public class IdleWheel implements Runnable
+{
+    private static final int TICK_MILLIS = 100;
+    //one turn of the wheel, deadlines further away go round more than once
+    private static final int SLOTS = 512;
+
+    private static final class Entry
+    {
+        final ConnectionHandler connection;
+        //turns of the wheel left before the entry is due when its slot comes up
+        int rounds;
+        int slot;
+        //when a ping was sent that has not been answered yet, or 0
+        long pingSent;
+        //when the client must have logged in by, or 0 once it has
+        long handshakeDeadline;
+        Entry prev, next;
+
+        Entry(ConnectionHandler connection)
+        {
+            this.connection = connection;
+        }
+    }
+
+    private final Server server;
+    private final long idleMillis;
+    private final long timeoutMillis;
+    private final long handshakeMillis;
+    private volatile ScheduledTask task;
+
+    //guarded by this
+    private final Entry[] slots = new Entry[SLOTS];
+    private final HashMap<ConnectionHandler, Entry> entries = new HashMap<>();
+    private int cursor = 0;
+    private long nextTick;
+    //pings not needed in the current run because the client was heard from recently
+    private int skipped;
+
+    /**
+     Standard constructor
+
+     @param server
+     The server whose connections are watched
+     @param config
+     The settings giving the idle time and timeout
+     */
+    public IdleWheel(Server server, ServerConfig config)
+    {
+        this.server = server;
+        idleMillis = config.keepaliveIdleSeconds * 1000L;
+        timeoutMillis = config.keepaliveTimeoutSeconds * 1000L;
+        handshakeMillis = config.admissionHandshakeSeconds * 1000L;
+    }
+
+    /**
+     Starts running ticks
+     */
+    public void start()
+    {
+        long first = System.currentTimeMillis() + TICK_MILLIS;
+        synchronized(this)
+        {
+            nextTick = first;
+        }
+        task = Main.scheduleAtFixedRate(this, first, TICK_MILLIS);
+    }
+
+    /**
+     Starts watching a connection, as if its client was just heard from
+
+     @param connection
+     The connection to watch
+     */
+    public synchronized void add(ConnectionHandler connection)
+    {
+        if(entries.containsKey(connection))
+        {
+            return;
+        }
+        Entry entry = new Entry(connection);
+        entries.put(connection, entry);
+        if(connection.isHandshaking())
+        {
+            entry.handshakeDeadline = System.currentTimeMillis() + handshakeMillis;
+        }
+        insert(entry, Math.min(idleMillis, handshakeMillis), false);
+    }
+
+    /**
+     Stops watching a connection
+
+     @param connection
+     The connection to forget
+     */
+    public synchronized void remove(ConnectionHandler connection)
+    {
+        Entry entry = entries.remove(connection);
+        if(entry != null)
+        {
+            unlink(entry);
+        }
+    }
+
+    @Override
+    public void run()
+    {
+        if(server.isClosing())
+        {
+            ScheduledTask task = this.task;
+            if(task != null)
+            {
+                task.cancel();
+            }
+            return;
+        }
+
+        ArrayList<ConnectionHandler> toPing = new ArrayList<>();
+        ArrayList<ConnectionHandler> timedOut = new ArrayList<>();
+        ArrayList<ConnectionHandler> tooSlow = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        int skippedPings;
+        synchronized(this)
+        {
+            skipped = 0;
+            //catch up on ticks the scheduler ran late for, each one only visits its own slot
+            while(nextTick <= now)
+            {
+                expire(now, toPing, timedOut, tooSlow);
+                cursor = (cursor + 1) % SLOTS;
+                nextTick += TICK_MILLIS;
+            }
+            skippedPings = skipped;
+        }
+
+        //handled outside of the lock, neither waits for the client
+        for(ConnectionHandler connection : toPing)
+        {
+            connection.addMessage(new PingMessage(false));
+        }
+        for(ConnectionHandler connection : timedOut)
+        {
+            server.connectionTimedOut(connection);
+        }
+        for(ConnectionHandler connection : tooSlow)
+        {
+            server.handshakeTimedOut(connection);
+        }
+        server.getStats().recordKeepalive(toPing.size(), skippedPings, timedOut.size());
+    }
+
+    /**
+     Handles every entry in the slot under the cursor that is due
+
+     @param now
+     The current time
+     @param toPing
+     The list to add connections that need pinging to
+     @param timedOut
+     The list to add connections that timed out to
+     @param tooSlow
+     The list to add connections that did not log in in time to
+     */
+    private void expire(long now, ArrayList<ConnectionHandler> toPing, ArrayList<ConnectionHandler> timedOut,
+            ArrayList<ConnectionHandler> tooSlow)
+    {
+        Entry entry = slots[cursor];
+        while(entry != null)
+        {
+            Entry next = entry.next;
+            if(entry.rounds > 0)
+            {
+                entry.rounds--;
+                entry = next;
+                continue;
+            }
+
+            unlink(entry);
+            //an entry due for its handshake deadline may not be due for anything else yet
+            boolean handshakeCheck = entry.handshakeDeadline != 0;
+            if(handshakeCheck)
+            {
+                if(!entry.connection.isHandshaking())
+                {
+                    entry.handshakeDeadline = 0;
+                }
+                else if(now >= entry.handshakeDeadline)
+                {
+                    entries.remove(entry.connection);
+                    tooSlow.add(entry.connection);
+                    entry = next;
+                    continue;
+                }
+            }
+
+            long lastReceived = entry.connection.getLastReceived();
+            if(entry.pingSent != 0 && lastReceived < entry.pingSent)
+            {
+                if(now - entry.pingSent >= timeoutMillis)
+                {
+                    entries.remove(entry.connection);
+                    timedOut.add(entry.connection);
+                }
+                else
+                {
+                    reinsert(entry, entry.pingSent + timeoutMillis - now, now);
+                }
+            }
+            else if(now - lastReceived >= idleMillis)
+            {
+                entry.pingSent = now;
+                toPing.add(entry.connection);
+                reinsert(entry, timeoutMillis, now);
+            }
+            else
+            {
+                //heard from since, so it is only due once it has been quiet long enough again
+                if(entry.pingSent == 0 && !handshakeCheck)
+                {
+                    skipped++;
+                }
+                entry.pingSent = 0;
+                reinsert(entry, lastReceived + idleMillis - now, now);
+            }
+            entry = next;
+        }
+    }
+
+    /**
+     Puts an entry back in the wheel during a tick, due after a delay or at its handshake deadline if that is sooner
+
+     @param entry
+     The entry to add, not in any slot
+     @param delayMillis
+     How long from now the entry is due
+     @param now
+     The current time
+     */
+    private void reinsert(Entry entry, long delayMillis, long now)
+    {
+        if(entry.handshakeDeadline != 0)
+        {
+            delayMillis = Math.min(delayMillis, entry.handshakeDeadline - now);
+        }
+        insert(entry, delayMillis, true);
+    }
+
+    /**
+     Puts an entry in the slot of the tick it is due at
+
+     @param entry
+     The entry to add, not in any slot
+     @param delayMillis
+     How long from now the entry is due
+     @param inTick
+     True if called while the slot under the cursor is being expired, false if that slot is still to come
+     */
+    private void insert(Entry entry, long delayMillis, boolean inTick)
+    {
+        long ticks = Math.max(1, (delayMillis + TICK_MILLIS - 1) / TICK_MILLIS);
+        entry.slot = (int) ((cursor + ticks) % SLOTS);
+        //during a tick the cursor's slot next comes up a whole turn later, outside of one it comes up at the next tick,
+        //so an entry landing in it needs one more round to not be due early
+        entry.rounds = (int) (inTick ? (ticks - 1) / SLOTS : ticks / SLOTS);
+        entry.prev = null;
+        entry.next = slots[entry.slot];
+        if(entry.next != null)
+        {
+            entry.next.prev = entry;
+        }
+        slots[entry.slot] = entry;
+    }
+
+    private void unlink(Entry entry)
+    {
+        if(entry.prev == null)
+        {
+            slots[entry.slot] = entry.next;
+        }
+        else
+        {
+            entry.prev.next = entry.next;
+        }
+        if(entry.next != null)
+        {
+            entry.next.prev = entry.prev;
+        }
+        entry.prev = null;
+        entry.next = null;
+    }
+}
@@ -0,0 +1,217 @@
+package bthomas.hexmap.server;
+
+import bthomas.hexmap.common.util.LongIntMap;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+
+/**
+ Tracks which part of the board each client can see, so unit events only go to the connections that can see them.
+ <p>
+ The board is split into square cells, and each connection is listed in every cell its region overlaps. Finding who can
+ see a location then only checks the connections listed in one cell. Connections that have not said what they can see
+ are sent everything, so clients that never report a viewport behave as before.
+ <p>
+ Not thread safe. The server only uses it while holding its list of connections.
+
+ @author Brendan Thomas
+ @since 2019-04-01 */
+public class InterestIndex
+{
+    //width and height of a cell in board locations
+    private static final int CELL_SIZE = 8;
+
+    //connections that see the whole board
+    private final ArrayList<ConnectionHandler> everywhere = new ArrayList<>();
+    private final HashMap<ConnectionHandler, Rectangle> regions = new HashMap<>();
+    //cells are created as regions first cover them and then kept, a board only has so many
+    private final LongIntMap cellIndex = new LongIntMap(64);
+    private final ArrayList<ArrayList<ConnectionHandler>> cells = new ArrayList<>();
+
+    /**
+     Adds a connection that sees the whole board until it reports a region
+
+     @param connection
+     The connection to add
+     */
+    public void add(ConnectionHandler connection)
+    {
+        everywhere.add(connection);
+    }
+
+    /**
+     Stops tracking a connection
+
+     @param connection
+     The connection to remove
+     */
+    public void remove(ConnectionHandler connection)
+    {
+        Rectangle region = regions.remove(connection);
+        if(region == null)
+        {
+            everywhere.remove(connection);
+        }
+        else
+        {
+            removeFromCells(connection, region);
+        }
+    }
+
+    /**
+     Moves what a connection can see over to another connection, replacing whatever that one could see
+
+     @param previous
+     The connection to stop tracking
+     @param next
+     The connection that sees what it saw from now on
+     */
+    public void replace(ConnectionHandler previous, ConnectionHandler next)
+    {
+        Rectangle region = regions.get(previous);
+        remove(previous);
+        remove(next);
+        add(next);
+        if(region != null)
+        {
+            setRegion(next, region);
+        }
+    }
+
+    /**
+     Sets the part of the board a connection can see
+
+     @param connection
+     The connection whose region changed
+     @param region
+     The board locations the connection can see
+
+     @return The region the connection could see before, or null if it could see the whole board
+     */
+    public Rectangle setRegion(ConnectionHandler connection, Rectangle region)
+    {
+        Rectangle previous = regions.put(connection, new Rectangle(region));
+        if(previous == null)
+        {
+            everywhere.remove(connection);
+        }
+        else
+        {
+            removeFromCells(connection, previous);
+        }
+
+        if(!region.isEmpty())
+        {
+            for(int cellX = cellOf(region.x); cellX <= cellOf(region.x + region.width - 1); cellX++)
+            {
+                for(int cellY = cellOf(region.y); cellY <= cellOf(region.y + region.height - 1); cellY++)
+                {
+                    getCell(cellX, cellY, true).add(connection);
+                }
+            }
+        }
+        return previous;
+    }
+
+    /**
+     Checks if a connection can see a location
+
+     @param connection
+     The connection to check
+     @param x
+     The X location
+     @param y
+     The Y location
+
+     @return True if the location is in the connection's region, or the connection sees the whole board
+     */
+    public boolean canSee(ConnectionHandler connection, int x, int y)
+    {
+        Rectangle region = regions.get(connection);
+        return region == null || region.contains(x, y);
+    }
+
+    /**
+     Checks if a connection sees the whole board
+
+     @param connection
+     The connection to check
+
+     @return True if the connection has not reported a region
+     */
+    public boolean seesAll(ConnectionHandler connection)
+    {
+        return !regions.containsKey(connection);
+    }
+
+    /**
+     Finds every connection that can see a location
+
+     @param x
+     The X location
+     @param y
+     The Y location
+     @param res
+     The collection to add the connections to, each is added once
+     */
+    public void findViewers(int x, int y, Collection<ConnectionHandler> res)
+    {
+        res.addAll(everywhere);
+        ArrayList<ConnectionHandler> cell = getCell(cellOf(x), cellOf(y), false);
+        if(cell != null)
+        {
+            for(ConnectionHandler connection : cell)
+            {
+                if(regions.get(connection).contains(x, y))
+                {
+                    res.add(connection);
+                }
+            }
+        }
+    }
+
+    private void removeFromCells(ConnectionHandler connection, Rectangle region)
+    {
+        if(region.isEmpty())
+        {
+            return;
+        }
+        for(int cellX = cellOf(region.x); cellX <= cellOf(region.x + region.width - 1); cellX++)
+        {
+            for(int cellY = cellOf(region.y); cellY <= cellOf(region.y + region.height - 1); cellY++)
+            {
+                ArrayList<ConnectionHandler> cell = getCell(cellX, cellY, false);
+                if(cell != null)
+                {
+                    cell.remove(connection);
+                }
+            }
+        }
+    }
+
+    private ArrayList<ConnectionHandler> getCell(int cellX, int cellY, boolean create)
+    {
+        long key = ((long) cellX << 32) | (cellY & 0xFFFFFFFFL);
+        int id = cellIndex.get(key);
+        if(id >= 0)
+        {
+            return cells.get(id);
+        }
+        if(!create)
+        {
+            return null;
+        }
+
+        ArrayList<ConnectionHandler> cell = new ArrayList<>();
+        cellIndex.put(key, cells.size());
+        cells.add(cell);
+        return cell;
+    }
+
+    private static int cellOf(int location)
+    {
+        return Math.floorDiv(location, CELL_SIZE);
+    }
+}
@@ -0,0 +1,350 @@
+package bthomas.hexmap.server;
+
+import bthomas.hexmap.Main;
+import bthomas.hexmap.common.net.CloseMessage;
+import bthomas.hexmap.common.net.FrameCompressor;
+import bthomas.hexmap.common.net.FrameDecoder;
+import bthomas.hexmap.common.net.MessageFormatException;
+import bthomas.hexmap.common.net.MessageFrame;
+import bthomas.hexmap.common.net.WireFormat;
+import bthomas.hexmap.logging.HexmapLogger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ A connection to a single client that uses a non-blocking channel serviced by a {@link NioWorker}.
+ <p>
+ Errors on the channel are reported to the server by dispatching a {@link CloseMessage} on the client's behalf, so a
+ lost connection is cleaned up by the same path as a client that closed nicely.
+
+ @author Brendan Thomas
+ @since 2019-03-20 */
+public class NioConnectionHandler extends ConnectionHandler
+{
+    private static final int READ_BUFFER_SIZE = 8192;
+
+    private final SocketChannel channel;
+    private final NioWorker worker;
+    private SelectionKey key = null;
+
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private final FrameDecoder decoder = createDecoder();
+    //frames taken off the queue for the next batch
+    private final MessageFrame[] batchFrames;
+    //buffers being written with one gathering write, the unsent ones are writeBatch[batchStart, batchEnd)
+    private final ByteBuffer[] writeBatch;
+    private int batchStart = 0;
+    private int batchEnd = 0;
+    private final AtomicBoolean writeScheduled = new AtomicBoolean(false);
+
+    /**
+     Standard constructor
+
+     @param parent
+     The server this connection belongs to and should report to
+     @param channel
+     The non-blocking channel to the client
+     @param worker
+     The I/O thread that services this connection
+     */
+    NioConnectionHandler(Server parent, SocketChannel channel, NioWorker worker)
+    {
+        super(parent);
+        this.channel = channel;
+        this.worker = worker;
+        batchFrames = new MessageFrame[parent.getConfig().batchMaxMessages];
+        writeBatch = new ByteBuffer[batchFrames.length];
+    }
+
+    @Override
+    public void start()
+    {
+        worker.register(this);
+    }
+
+    @Override
+    public void addFrame(MessageFrame frame)
+    {
+        super.addFrame(frame);
+        scheduleWrite();
+    }
+
+    @Override
+    public void requestClose()
+    {
+        super.requestClose();
+        scheduleWrite();
+    }
+
+    @Override
+    protected void abort()
+    {
+        //unsent frames are thrown away with the channel, handleWrite then finishes the close
+        worker.execute(() -> {
+            closeChannel();
+            handleWrite();
+        });
+    }
+
+    /**
+     Makes sure the worker will try to write out this connection's queue. Many messages queued at once only cost one
+     wakeup.
+     */
+    private void scheduleWrite()
+    {
+        if(writeScheduled.compareAndSet(false, true))
+        {
+            worker.execute(() -> {
+                writeScheduled.set(false);
+                handleWrite();
+            });
+        }
+    }
+
+    /**
+     Registers this connection's channel with a worker's selector and sends anything queued before registration.
+     Called on the worker thread.
+
+     @param selector
+     The selector to register with
+
+     @throws IOException
+     If the channel could not be registered
+     */
+    void register(Selector selector) throws IOException
+    {
+        key = channel.register(selector, SelectionKey.OP_READ, this);
+        handleWrite();
+    }
+
+    /**
+     Reads whatever data is available from the client and dispatches any complete messages. Called on the worker
+     thread.
+     */
+    void handleRead()
+    {
+        int read;
+        try
+        {
+            readBuffer.clear();
+            read = channel.read(readBuffer);
+        }
+        catch(IOException e)
+        {
+            if(!toClose)
+            {
+                Main.logger.log(HexmapLogger.SEVERE,
+                        "Error reading from input stream: " + HexmapLogger.getStackTraceString(e));
+            }
+            fail("Error reading from input stream");
+            return;
+        }
+
+        if(read < 0)
+        {
+            fail("Error reading from input stream");
+            return;
+        }
+
+        readBuffer.flip();
+        try
+        {
+            decoder.feed(readBuffer, this::dispatch);
+        }
+        catch(MessageFormatException e)
+        {
+            Main.logger.log(HexmapLogger.SEVERE,
+                    "Error occurred while parsing input message: " + HexmapLogger.getStackTraceString(e));
+            //stop reading, but let the close message go out before the channel is dropped
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            dispatchClose("Invalid message received from input stream");
+        }
+    }
+
+    /**
+     Writes as much of the send queue to the client as the socket will take. Called on the worker thread.
+     */
+    void handleWrite()
+    {
+        if(!channel.isOpen())
+        {
+            //nothing can be sent anymore, the connection only needs to be finished off
+            while(pollFrame() != null)
+            {
+                //drop
+            }
+            if(toClose)
+            {
+                markClosed();
+            }
+            return;
+        }
+
+        try
+        {
+            while(batchStart < batchEnd || fillBatch())
+            {
+                channel.write(writeBatch, batchStart, batchEnd - batchStart);
+                while(batchStart < batchEnd && !writeBatch[batchStart].hasRemaining())
+                {
+                    writeBatch[batchStart++] = null;
+                }
+
+                if(batchStart < batchEnd)
+                {
+                    //socket buffer is full, wait until the selector says we can write again
+                    if(key != null)
+                    {
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    }
+                    return;
+                }
+            }
+
+            if(key != null && key.isValid())
+            {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            }
+            if(toClose)
+            {
+                closeChannel();
+                markClosed();
+            }
+        }
+        catch(IOException e)
+        {
+            if(!toClose)
+            {
+                Main.logger.log(HexmapLogger.SEVERE,
+                        "Error writing to output stream: " + HexmapLogger.getStackTraceString(e));
+            }
+            fail("Error writing to output stream");
+        }
+    }
+
+    /**
+     Takes as much of the send queue as fits in one batch, to be sent with a single gathering write. A large batch is
+     compressed into one block if the client asked for compression.
+
+     @return True if anything was taken, false if the queue is empty
+     */
+    private boolean fillBatch()
+    {
+        ServerConfig config = parent.getConfig();
+        WireFormat format = wireFormat;
+        int count = 0;
+        int bytes = 0;
+        while(count < batchFrames.length && bytes < config.batchMaxBytes)
+        {
+            MessageFrame frame = pollFrame();
+            if(frame == null)
+            {
+                break;
+            }
+
+            try
+            {
+                bytes += frame.size(format);
+                batchFrames[count++] = frame;
+            }
+            catch(MessageFormatException e)
+            {
+                Main.logger.log(HexmapLogger.ERROR,
+                        "Error converting message for client: " + frame + " error: " +
+                                HexmapLogger.getStackTraceString(e));
+            }
+        }
+
+        batchStart = 0;
+        batchEnd = 0;
+        if(count == 0)
+        {
+            return false;
+        }
+
+        FrameCompressor compressor = getCompressor();
+        try
+        {
+            if(compressor != null && compressor.shouldCompress(bytes))
+            {
+                //the block is only reused by the next batch, which is not filled until this one is written
+                writeBatch[batchEnd++] = compressor.compress(batchFrames, 0, count, format);
+                parent.getStats().recordCompression(bytes, writeBatch[0].remaining());
+            }
+            else
+            {
+                for(int i = 0; i < count; i++)
+                {
+                    writeBatch[batchEnd++] = batchFrames[i].toByteBuffer(format);
+                }
+            }
+        }
+        catch(MessageFormatException e)
+        {
+            //frames were already encoded when they were measured
+            Main.logger.log(HexmapLogger.ERROR,
+                    "Error converting message for client: " + HexmapLogger.getStackTraceString(e));
+        }
+        Arrays.fill(batchFrames, 0, count, null);
+
+        parent.getStats().recordBatch(count, bytes);
+        return batchEnd > 0;
+    }
+
+    /**
+     Drops the channel after an error and makes sure the server cleans up this connection
+
+     @param reason
+     The reason the connection failed
+     */
+    void fail(String reason)
+    {
+        closeChannel();
+        if(toClose)
+        {
+            markClosed();
+        }
+        else if(!parent.suspendListener(this, reason))
+        {
+            dispatchClose(reason);
+        }
+    }
+
+    /**
+     Closes this connection's channel without any cleanup on the server
+     */
+    void closeChannel()
+    {
+        if(key != null)
+        {
+            key.cancel();
+        }
+        //nothing more will be read, so the decoder can let go of its native memory
+        decoder.close();
+        try
+        {
+            channel.close();
+        }
+        catch(IOException e)
+        {
+            Main.logger.log(HexmapLogger.ERROR, "Error closing connection: " + HexmapLogger.getStackTraceString(e));
+        }
+    }
+
+    /**
+     Hands a close message to the server as if the client had sent it
+
+     @param reason
+     The reason for closing
+     */
+    private void dispatchClose(String reason)
+    {
+        parent.receiveMessage(new MessageData(new CloseMessage(reason), this));
+    }
+}
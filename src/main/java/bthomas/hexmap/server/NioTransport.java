@@ -0,0 +1,118 @@
+package bthomas.hexmap.server;
+
+import bthomas.hexmap.Main;
+import bthomas.hexmap.logging.HexmapLogger;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ Accepts client connections for a server and services them with a small fixed pool of selector threads, instead of
+ the two threads per client used by {@link BlockingConnectionHandler}.
+
+ @author Brendan Thomas
+ @since 2019-03-20 */
+public class NioTransport
+{
+    private final Server server;
+    private final ServerSocketChannel serverChannel;
+    private final NioWorker[] workers;
+    private int nextWorker = 0;
+
+    private volatile boolean closing = false;
+
+    /**
+     Standard constructor, binds the server port and starts the I/O threads
+
+     @param server
+     The server that accepted connections belong to
+     @param port
+     The port to listen on
+     @param threads
+     The number of I/O threads to use
+
+     @throws IOException
+     If the port could not be bound or a selector could not be opened
+     */
+    public NioTransport(Server server, int port, int threads) throws IOException
+    {
+        this.server = server;
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+
+        workers = new NioWorker[threads];
+        for(int i = 0; i < threads; i++)
+        {
+            workers[i] = new NioWorker();
+            Thread workerThread = new Thread(workers[i], "Hexmap NIO worker " + i);
+            workerThread.setDaemon(true);
+            workerThread.start();
+        }
+    }
+
+    /**
+     Listen for and hand out new connections
+     Runs until the transport closes
+     */
+    public void acceptConnections()
+    {
+        while(!closing)
+        {
+            try
+            {
+                SocketChannel channel = serverChannel.accept();
+                channel.configureBlocking(false);
+                if(!server.admitConnection(channel.socket().getInetAddress()))
+                {
+                    channel.close();
+                    continue;
+                }
+
+                //spread connections across the workers
+                NioWorker worker = workers[nextWorker];
+                nextWorker = (nextWorker + 1) % workers.length;
+
+                if(!server.addConnection(new NioConnectionHandler(server, channel, worker)))
+                {
+                    channel.close();
+                }
+            }
+            catch(ClosedChannelException e)
+            {
+                //closing the channel is how the accept loop is stopped
+                break;
+            }
+            catch(IOException e)
+            {
+                if(!closing)
+                {
+                    Main.logger.log(HexmapLogger.ERROR, "error accepting connection");
+                }
+            }
+        }
+    }
+
+    /**
+     Stops accepting connections and shuts down the I/O threads
+     */
+    public void close()
+    {
+        closing = true;
+        try
+        {
+            serverChannel.close();
+        }
+        catch(IOException e)
+        {
+            Main.logger.log(HexmapLogger.SEVERE, HexmapLogger.getStackTraceString(e));
+        }
+
+        for(NioWorker worker : workers)
+        {
+            worker.shutdown();
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package bthomas.hexmap.server;
+
+import bthomas.hexmap.Main;
+import bthomas.hexmap.logging.HexmapLogger;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ One I/O thread of the {@link NioTransport}. Each worker owns a selector and services the reads and writes for every
+ connection registered with it.
+ <p>
+ All work on a worker's connections happens on the worker thread, other threads hand work over with {@link
+ #execute(Runnable)}.
+
+ @author Brendan Thomas
+ @since 2019-03-20 */
+class NioWorker implements Runnable
+{
+    private final Selector selector;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private volatile boolean running = true;
+
+    NioWorker() throws IOException
+    {
+        selector = Selector.open();
+    }
+
+    /**
+     Runs a task on this worker's thread
+
+     @param task
+     The task to run
+     */
+    void execute(Runnable task)
+    {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     Starts handling I/O for a new connection
+
+     @param handler
+     The connection to handle
+     */
+    void register(NioConnectionHandler handler)
+    {
+        execute(() -> {
+            try
+            {
+                handler.register(selector);
+            }
+            catch(IOException e)
+            {
+                Main.logger.log(HexmapLogger.ERROR, "Error registering connection: " + HexmapLogger.getStackTraceString(e));
+                handler.fail("Error registering connection");
+            }
+        });
+    }
+
+    /**
+     Stops this worker, dropping all of its connections
+     */
+    void shutdown()
+    {
+        running = false;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run()
+    {
+        while(running)
+        {
+            try
+            {
+                selector.select();
+            }
+            catch(IOException e)
+            {
+                Main.logger.log(HexmapLogger.SEVERE, "Error in connection selector: " + HexmapLogger.getStackTraceString(e));
+                break;
+            }
+
+            Runnable task;
+            while((task = tasks.poll()) != null)
+            {
+                task.run();
+            }
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while(keys.hasNext())
+            {
+                SelectionKey key = keys.next();
+                keys.remove();
+                NioConnectionHandler handler = (NioConnectionHandler) key.attachment();
+
+                if(key.isValid() && key.isReadable())
+                {
+                    handler.handleRead();
+                }
+                if(key.isValid() && key.isWritable())
+                {
+                    handler.handleWrite();
+                }
+            }
+        }
+
+        for(SelectionKey key : selector.keys())
+        {
+            ((NioConnectionHandler) key.attachment()).closeChannel();
+        }
+        try
+        {
+            selector.close();
+        }
+        catch(IOException e)
+        {
+            Main.logger.log(HexmapLogger.ERROR, "Error closing connection selector: " + HexmapLogger.getStackTraceString(e));
+        }
+    }
+}
@@ -0,0 +1,518 @@
+package bthomas.hexmap.server;
+
+import bthomas.hexmap.Main;
+import bthomas.hexmap.logging.HexmapLogger;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ Keeps every group and user permission file in memory, compiled to permission ids, so logging in never reads a file.
+ <p>
+ A group can extend other groups, and a user can belong to several. Whenever group files are loaded, each group is
+ flattened into one set holding its own permissions and everything it inherits, so a user's permissions are the same
+ single set however deep the groups go. A group that ends up inheriting from itself is reported, and the link that
+ closes the loop is left out.
+ <p>
+ All files are read in parallel when the server starts. Afterwards a watcher thread follows changes to the permission
+ directories and reads only the files that changed. The users whose permissions changed because of it, or everyone if
+ a group changed, are given their new permissions straight away. Connections only ever swap in a whole new set, so
+ neither loading nor pushing holds up message handling.
+
+ @author Brendan Thomas
+ @since 2019-04-10 */
+public class PermissionStore implements Runnable
+{
+    public static final String DEFAULT_GROUP = "default.txt";
+    private static final String SUFFIX = ".txt";
+
+    //a group file line naming a group to inherit from, eg "extends player.txt"
+    private static final String EXTENDS = "extends ";
+
+    //how long to keep gathering changes after the first, an editor saving a file can cause several
+    private static final long SETTLE_MILLIS = 100;
+
+    /**
+     A group's file: the groups it extends and the permissions it lists itself
+     */
+    private static final class GroupEntry
+    {
+        final List<String> parents;
+        final BitSet own;
+
+        GroupEntry(List<String> parents, BitSet own)
+        {
+            this.parents = parents;
+            this.own = own;
+        }
+    }
+
+    /**
+     A user's file: the groups it names and the permissions it lists itself
+     */
+    private static final class UserEntry
+    {
+        final List<String> groups;
+        final BitSet own;
+
+        UserEntry(List<String> groups, BitSet own)
+        {
+            this.groups = groups;
+            this.own = own;
+        }
+    }
+
+    private final Server server;
+    private final Path groupDirectory;
+    private final Path userDirectory;
+
+    //by file name, eg "admin.txt"
+    private final ConcurrentHashMap<String, GroupEntry> groups = new ConcurrentHashMap<>();
+    //every group with what it inherits included, replaced whole each time groups are loaded
+    private volatile HashMap<String, BitSet> flattened = new HashMap<>();
+    //by username
+    private final ConcurrentHashMap<String, UserEntry> users = new ConcurrentHashMap<>();
+
+    private WatchService watcher = null;
+
+    /**
+     Standard constructor
+
+     @param server
+     The server whose registered permissions the files refer to
+     @param groupDirectory
+     The directory of group files
+     @param userDirectory
+     The directory of user files
+     */
+    public PermissionStore(Server server, Path groupDirectory, Path userDirectory)
+    {
+        this.server = server;
+        this.groupDirectory = groupDirectory;
+        this.userDirectory = userDirectory;
+    }
+
+    /**
+     Reads every group and user file, several at a time. Permissions must all be registered first.
+     */
+    public void load()
+    {
+        //create default group if needed
+        Path defaultFile = groupDirectory.resolve(DEFAULT_GROUP);
+        if(!Files.exists(defaultFile))
+        {
+            try
+            {
+                Files.write(defaultFile, new byte[0]);
+            }
+            catch(IOException e)
+            {
+                Main.logger.log(HexmapLogger.SEVERE, "Error creating default group permissions file: "
+                        + HexmapLogger.getStackTraceString(e));
+            }
+        }
+
+        long start = System.currentTimeMillis();
+        List<Path> groupFiles = listFiles(groupDirectory);
+        List<Path> userFiles = listFiles(userDirectory);
+        groupFiles.parallelStream().forEach(this::loadGroup);
+        userFiles.parallelStream().forEach(this::loadUser);
+        flatten();
+        Main.logger.log(HexmapLogger.INFO, "Loaded permissions of " + groups.size() + " groups and " + users.size()
+                + " users in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /**
+     Starts following changes to the permission files
+     */
+    public void start()
+    {
+        try
+        {
+            watcher = FileSystems.getDefault().newWatchService();
+            for(Path directory : new Path[]{groupDirectory, userDirectory})
+            {
+                directory.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY,
+                        StandardWatchEventKinds.ENTRY_DELETE);
+            }
+        }
+        catch(IOException e)
+        {
+            Main.logger.log(HexmapLogger.ERROR, "Error watching permission files, changes need a restart: "
+                    + HexmapLogger.getStackTraceString(e));
+            return;
+        }
+        Thread watchThread = new Thread(this, "Hexmap permission watcher");
+        watchThread.setDaemon(true);
+        watchThread.start();
+    }
+
+    /**
+     Stops following changes
+     */
+    public void close()
+    {
+        WatchService watcher = this.watcher;
+        if(watcher != null)
+        {
+            try
+            {
+                watcher.close();
+            }
+            catch(IOException e)
+            {
+                Main.logger.log(HexmapLogger.ERROR, "Error closing permission watcher: "
+                        + HexmapLogger.getStackTraceString(e));
+            }
+        }
+    }
+
+    /**
+     Compiles the permissions of a user, from its own file and its groups'
+
+     @param username
+     The user
+
+     @return The ids of every permission the user has, not shared with anything else
+     */
+    public BitSet compile(String username)
+    {
+        HashMap<String, BitSet> flattened = this.flattened;
+        UserEntry user = users.get(username);
+        BitSet res = new BitSet();
+        boolean grouped = false;
+        if(user != null)
+        {
+            res.or(user.own);
+            for(String groupName : user.groups)
+            {
+                BitSet group = flattened.get(groupName);
+                if(group == null)
+                {
+                    Main.logger.log(HexmapLogger.ERROR, "Attempted to apply unknown group: " + groupName
+                            + " to user: " + username);
+                    continue;
+                }
+                res.or(group);
+                grouped = true;
+            }
+        }
+        if(!grouped)
+        {
+            BitSet group = flattened.get(DEFAULT_GROUP);
+            if(group != null)
+            {
+                res.or(group);
+            }
+        }
+        return res;
+    }
+
+    /**
+     Gets the compiled permissions of a group
+
+     @param groupName
+     The file name of the group, eg "admin.txt"
+
+     @return The ids of the group's permissions and everything it inherits, which must not be changed, or null if there
+     is no such group
+     */
+    public BitSet getGroup(String groupName)
+    {
+        return flattened.get(groupName);
+    }
+
+    /**
+     Works out every group's permissions including everything it inherits, each group once
+     */
+    private void flatten()
+    {
+        HashMap<String, BitSet> res = new HashMap<>();
+        //groups whose permissions are still being worked out, in the order they were reached
+        ArrayList<String> path = new ArrayList<>();
+        for(String groupName : groups.keySet())
+        {
+            flatten(groupName, res, path);
+        }
+        flattened = res;
+    }
+
+    private BitSet flatten(String groupName, HashMap<String, BitSet> done, ArrayList<String> path)
+    {
+        BitSet res = done.get(groupName);
+        if(res != null)
+        {
+            return res;
+        }
+        GroupEntry group = groups.get(groupName);
+        if(group == null)
+        {
+            return null;
+        }
+
+        path.add(groupName);
+        res = new BitSet();
+        res.or(group.own);
+        for(String parent : group.parents)
+        {
+            int loop = path.indexOf(parent);
+            if(loop >= 0)
+            {
+                Main.logger.log(HexmapLogger.ERROR, "Permission groups inherit from themselves: "
+                        + String.join(" -> ", path.subList(loop, path.size())) + " -> " + parent
+                        + ", ignoring the last step");
+                continue;
+            }
+            BitSet inherited = flatten(parent, done, path);
+            if(inherited == null)
+            {
+                Main.logger.log(HexmapLogger.ERROR, "Group: " + groupName + " extends unknown group: " + parent);
+                continue;
+            }
+            res.or(inherited);
+        }
+        path.remove(path.size() - 1);
+        done.put(groupName, res);
+        return res;
+    }
+
+    @Override
+    public void run()
+    {
+        try
+        {
+            while(true)
+            {
+                HashSet<Path> changedGroups = new HashSet<>();
+                HashSet<Path> changedUsers = new HashSet<>();
+                boolean overflow = gather(watcher.take(), changedGroups, changedUsers);
+                //let a burst of changes finish before reading anything
+                WatchKey key = watcher.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS);
+                while(key != null)
+                {
+                    overflow |= gather(key, changedGroups, changedUsers);
+                    key = watcher.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS);
+                }
+
+                if(overflow)
+                {
+                    //some changes were lost, so everything is read again, including files that may be gone
+                    changedGroups.addAll(listFiles(groupDirectory));
+                    for(String group : groups.keySet())
+                    {
+                        changedGroups.add(groupDirectory.resolve(group));
+                    }
+                    changedUsers.addAll(listFiles(userDirectory));
+                    for(String username : users.keySet())
+                    {
+                        changedUsers.add(userDirectory.resolve(username + SUFFIX));
+                    }
+                }
+                reload(changedGroups, changedUsers);
+            }
+        }
+        catch(InterruptedException | ClosedWatchServiceException e)
+        {
+            //closing the watcher is how the thread is stopped
+        }
+    }
+
+    /**
+     Reads the changed files again and gives the affected connections their new permissions
+     */
+    private void reload(HashSet<Path> changedGroups, HashSet<Path> changedUsers)
+    {
+        changedGroups.parallelStream().forEach(this::loadGroup);
+        changedUsers.parallelStream().forEach(this::loadUser);
+        if(!changedGroups.isEmpty())
+        {
+            flatten();
+        }
+
+        HashSet<String> changedNames = new HashSet<>();
+        for(Path file : changedUsers)
+        {
+            changedNames.add(userName(file));
+        }
+        int pushed = 0;
+        for(ConnectionHandler connection : server.getClients())
+        {
+            String username = connection.username;
+            if(username != null && (!changedGroups.isEmpty() || changedNames.contains(username)))
+            {
+                connection.setPermissions(compile(username));
+                pushed++;
+            }
+        }
+        Main.logger.log(HexmapLogger.INFO, "Reloaded permissions of " + changedGroups.size() + " groups and "
+                + changedUsers.size() + " users, updated " + pushed + " connected users");
+    }
+
+    /**
+     Notes which files a watch key reports as changed, and readies the key for more
+
+     @return True if changes were lost and everything has to be read again
+     */
+    private boolean gather(WatchKey key, HashSet<Path> changedGroups, HashSet<Path> changedUsers)
+    {
+        boolean overflow = false;
+        Path directory = (Path) key.watchable();
+        for(WatchEvent<?> event : key.pollEvents())
+        {
+            if(event.kind() == StandardWatchEventKinds.OVERFLOW)
+            {
+                overflow = true;
+                continue;
+            }
+            Path file = directory.resolve((Path) event.context());
+            if(!file.getFileName().toString().endsWith(SUFFIX))
+            {
+                continue;
+            }
+            if(directory.equals(groupDirectory))
+            {
+                changedGroups.add(file);
+            }
+            else
+            {
+                changedUsers.add(file);
+            }
+        }
+        key.reset();
+        return overflow;
+    }
+
+    private void loadGroup(Path file)
+    {
+        String fileName = file.getFileName().toString();
+        List<String> lines;
+        try
+        {
+            lines = readLines(file);
+        }
+        catch(NoSuchFileException e)
+        {
+            groups.remove(fileName);
+            return;
+        }
+        catch(IOException e)
+        {
+            //the group keeps what it had
+            Main.logger.log(HexmapLogger.SEVERE, "Error reading from permission file for group: " + fileName + ": "
+                    + HexmapLogger.getStackTraceString(e));
+            return;
+        }
+
+        ArrayList<String> parents = new ArrayList<>();
+        BitSet own = new BitSet();
+        for(String line : lines)
+        {
+            if(line.startsWith(EXTENDS))
+            {
+                parents.add(line.substring(EXTENDS.length()).trim());
+            }
+            else
+            {
+                server.compilePermission(line, "group: " + fileName, own);
+            }
+        }
+        groups.put(fileName, new GroupEntry(parents, own));
+    }
+
+    private void loadUser(Path file)
+    {
+        String username = userName(file);
+        List<String> lines;
+        try
+        {
+            lines = readLines(file);
+        }
+        catch(NoSuchFileException e)
+        {
+            users.remove(username);
+            return;
+        }
+        catch(IOException e)
+        {
+            //the user keeps what it had
+            Main.logger.log(HexmapLogger.SEVERE, "Error reading from permission file for: " + username + ": "
+                    + HexmapLogger.getStackTraceString(e));
+            return;
+        }
+
+        //the first line names the user's groups, separated by commas
+        ArrayList<String> groupNames = new ArrayList<>();
+        if(!lines.isEmpty())
+        {
+            for(String groupName : lines.get(0).split(","))
+            {
+                if(!groupName.trim().isEmpty())
+                {
+                    groupNames.add(groupName.trim());
+                }
+            }
+        }
+        BitSet own = new BitSet();
+        for(int i = 1; i < lines.size(); i++)
+        {
+            server.compilePermission(lines.get(i), "user: " + username, own);
+        }
+        users.put(username, new UserEntry(groupNames, own));
+    }
+
+    private static List<String> readLines(Path file) throws IOException
+    {
+        ArrayList<String> res = new ArrayList<>();
+        try(BufferedReader input = Files.newBufferedReader(file))
+        {
+            String line = input.readLine();
+            while(line != null)
+            {
+                res.add(line);
+                line = input.readLine();
+            }
+        }
+        return res;
+    }
+
+    private static String userName(Path file)
+    {
+        String name = file.getFileName().toString();
+        return name.substring(0, name.length() - SUFFIX.length());
+    }
+
+    private static List<Path> listFiles(Path directory)
+    {
+        ArrayList<Path> res = new ArrayList<>();
+        try(DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SUFFIX))
+        {
+            for(Path file : files)
+            {
+                res.add(file);
+            }
+        }
+        catch(IOException e)
+        {
+            Main.logger.log(HexmapLogger.SEVERE, "Error creating list of permission files in " + directory + ": "
+                    + HexmapLogger.getStackTraceString(e));
+        }
+        return res;
+    }
+}
@@ -0,0 +1,523 @@
+package bthomas.hexmap.server;
+
+import bthomas.hexmap.common.net.InitMessage;
+import bthomas.hexmap.common.net.MessageFormatException;
+import bthomas.hexmap.common.net.MessageFrame;
+import bthomas.hexmap.common.net.MoveUnitMessage;
+import bthomas.hexmap.common.net.ResumeMessage;
+import bthomas.hexmap.common.net.WireFormat;
+import bthomas.hexmap.common.util.LongIntMap;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ The frames waiting to be sent to one client, bounded in both messages and bytes.
+ <p>
+ When a client falls far enough behind to fill its queue, the server's {@link ServerConfig.OverflowPolicy} decides
+ what happens. Frames are measured in the connection's wire format at the time they are queued. A single frame is always
+ accepted into an empty queue, however large it is.
+ <p>
+ Unless the policy is {@link ServerConfig.OverflowPolicy#DISCONNECT}, a move is merged into a move of the same unit that
+ is still waiting, so a client that falls behind a unit being dragged around only receives where it ended up. Moves are
+ only merged across chat, pings and moves of other units, so nothing that depends on where a unit is gets reordered.
+ <p>
+ Once the client has a {@link ClientSession}, every frame taken off of the queue is recorded in it, starting with the
+ init message or the answer to a resume. Frames are recorded while the queue is locked, so they are numbered in the
+ order they are sent.
+
+ @author Brendan Thomas
+ @since 2019-03-28 */
+public class SendQueue
+{
+    /**
+     What happened to a frame offered to the queue
+     */
+    public enum Result
+    {
+        //the frame will be sent
+        QUEUED,
+        //the frame was thrown away, either by the overflow policy or because the queue is discarding
+        DROPPED,
+        //the queue is full and the policy could not make room, the client should be disconnected
+        OVERFLOW
+    }
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final int maxMessages;
+    private final int maxBytes;
+    private final ServerConfig.OverflowPolicy policy;
+    private final ServerStats stats;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+
+    //ring buffer of frames and their sizes, the oldest is at head
+    private MessageFrame[] frames = new MessageFrame[INITIAL_CAPACITY];
+    private int[] sizes = new int[INITIAL_CAPACITY];
+    private int head = 0;
+    private int count = 0;
+    private long bytes = 0;
+    //slot of the last queued move of each unit, since the last frame moves can't be merged across
+    private final LongIntMap pendingMoves = new LongIntMap(INITIAL_CAPACITY);
+
+    private boolean closed = false;
+    private boolean discarding = false;
+
+    //the session frames are recorded in once they are taken, and if frames are recorded as taken yet
+    private ClientSession session = null;
+    private boolean recording = false;
+    //set once the connection is lost, frames offered afterwards go straight to the session
+    private boolean diverted = false;
+
+    /**
+     Standard constructor
+
+     @param config
+     The settings giving the queue's limits and overflow policy
+     @param stats
+     The counters to report queue depth, drops and coalescing to
+     */
+    public SendQueue(ServerConfig config, ServerStats stats)
+    {
+        maxMessages = config.sendQueueMaxMessages;
+        maxBytes = config.sendQueueMaxBytes;
+        policy = config.overflowPolicy;
+        this.stats = stats;
+    }
+
+    /**
+     Adds a frame to the end of the queue, applying the overflow policy if the queue is full
+
+     @param frame
+     The frame to add
+     @param format
+     The format the frame will be sent in, used to measure it
+
+     @return What happened to the frame
+
+     @throws MessageFormatException
+     If the frame could not be encoded to measure it
+     */
+    public Result offer(MessageFrame frame, WireFormat format) throws MessageFormatException
+    {
+        int size = frame.size(format);
+        lock.lock();
+        try
+        {
+            if(discarding)
+            {
+                return Result.DROPPED;
+            }
+            if(diverted)
+            {
+                record(frame, size);
+                return Result.QUEUED;
+            }
+
+            if(policy != ServerConfig.OverflowPolicy.DISCONNECT && mergeMove(frame, format))
+            {
+                return Result.QUEUED;
+            }
+
+            //add first, then make room, so the new frame can be dropped like anything else queued
+            add(frame, size);
+            Result res = Result.QUEUED;
+            if(isOverLimit() && policy == ServerConfig.OverflowPolicy.DROP)
+            {
+                if(dropDroppable(frame))
+                {
+                    res = Result.DROPPED;
+                }
+            }
+            if(isOverLimit())
+            {
+                return Result.OVERFLOW;
+            }
+
+            stats.recordQueueDepth(count, bytes);
+            changed.signal();
+            return res;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     Takes the oldest frame off of the queue
+
+     @return The oldest frame, or null if the queue is empty
+     */
+    public MessageFrame poll()
+    {
+        lock.lock();
+        try
+        {
+            return count == 0 ? null : removeHead();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     Takes the oldest frame off of the queue, waiting a limited time for one to be added if needed
+
+     @param timeoutNanos
+     The longest time to wait
+
+     @return The oldest frame, or null if none was added in time or the queue is closed
+
+     @throws InterruptedException
+     If the thread is interrupted while waiting
+     */
+    public MessageFrame poll(long timeoutNanos) throws InterruptedException
+    {
+        lock.lock();
+        try
+        {
+            while(count == 0 && !closed && timeoutNanos > 0)
+            {
+                timeoutNanos = changed.awaitNanos(timeoutNanos);
+            }
+            return count == 0 ? null : removeHead();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     Takes the oldest frame off of the queue, waiting for one to be added if needed
+
+     @return The oldest frame, or null once the queue is closed and empty
+
+     @throws InterruptedException
+     If the thread is interrupted while waiting
+     */
+    public MessageFrame take() throws InterruptedException
+    {
+        lock.lock();
+        try
+        {
+            while(count == 0 && !closed)
+            {
+                changed.await();
+            }
+            return count == 0 ? null : removeHead();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     Marks that no more frames need to be waited for. Frames already queued can still be taken.
+     */
+    public void close()
+    {
+        lock.lock();
+        try
+        {
+            closed = true;
+            changed.signalAll();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     Starts recording the frames taken off of this queue in a session. Frames before the first init message or answer to
+     a resume were not sent as part of the session, and are not recorded.
+
+     @param session
+     The session to record in
+     */
+    public void setSession(ClientSession session)
+    {
+        lock.lock();
+        try
+        {
+            this.session = session;
+            recording = false;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     Moves everything queued into the session as if it had been sent, and does the same with every frame offered from
+     now on, for a client whose connection was lost. The queue is closed.
+     */
+    public void divert()
+    {
+        lock.lock();
+        try
+        {
+            while(count > 0)
+            {
+                removeHead();
+            }
+            diverted = true;
+            closed = true;
+            changed.signalAll();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     Throws away everything queued and every frame offered from now on, for a client that is being dropped
+     */
+    public void discard()
+    {
+        lock.lock();
+        try
+        {
+            discarding = true;
+            while(count > 0)
+            {
+                removeHead();
+            }
+            changed.signalAll();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     @return The number of frames queued
+     */
+    public int messageCount()
+    {
+        lock.lock();
+        try
+        {
+            return count;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     @return The number of bytes queued
+     */
+    public long byteCount()
+    {
+        lock.lock();
+        try
+        {
+            return bytes;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    private boolean isOverLimit()
+    {
+        //a lone frame is never too big, or a large message could never be sent
+        return count > 1 && (count > maxMessages || bytes > maxBytes);
+    }
+
+    private int index(int offset)
+    {
+        return (head + offset) % frames.length;
+    }
+
+    private void add(MessageFrame frame, int size)
+    {
+        if(count == frames.length)
+        {
+            MessageFrame[] newFrames = new MessageFrame[frames.length * 2];
+            int[] newSizes = new int[frames.length * 2];
+            for(int i = 0; i < count; i++)
+            {
+                newFrames[i] = frames[index(i)];
+                newSizes[i] = sizes[index(i)];
+            }
+            frames = newFrames;
+            sizes = newSizes;
+            head = 0;
+            pendingMoves.clear();
+        }
+
+        int tail = index(count);
+        frames[tail] = frame;
+        sizes[tail] = size;
+        count++;
+        bytes += size;
+
+        if(frame.message instanceof MoveUnitMessage)
+        {
+            pendingMoves.put(((MoveUnitMessage) frame.message).unitUID, tail);
+        }
+        else if(!frame.message.isDroppable())
+        {
+            pendingMoves.clear();
+        }
+    }
+
+    /**
+     Merges a move into the last queued move of the same unit, if there is one it can be merged with
+
+     @param frame
+     The frame of the move
+     @param format
+     The format to measure the merged frame in
+
+     @return True if the move was merged, false if it has to be added
+     */
+    private boolean mergeMove(MessageFrame frame, WireFormat format) throws MessageFormatException
+    {
+        if(!(frame.message instanceof MoveUnitMessage))
+        {
+            return false;
+        }
+        MoveUnitMessage move = (MoveUnitMessage) frame.message;
+        int slot = pendingMoves.get(move.unitUID);
+        //the recorded move may already have been sent, and its slot reused
+        if(slot < 0 || (slot - head + frames.length) % frames.length >= count ||
+                !(frames[slot].message instanceof MoveUnitMessage) ||
+                ((MoveUnitMessage) frames[slot].message).unitUID != move.unitUID)
+        {
+            return false;
+        }
+
+        //clients find the unit by where it was, so the merged move starts from the queued move's origin
+        MoveUnitMessage queued = (MoveUnitMessage) frames[slot].message;
+        MessageFrame merged = frames[slot].withMessage(
+                new MoveUnitMessage(move.unitUID, move.toX, move.toY, queued.fromX, queued.fromY));
+        int size = merged.size(format);
+        bytes += size - sizes[slot];
+        frames[slot] = merged;
+        sizes[slot] = size;
+        stats.recordCoalesced(1);
+        return true;
+    }
+
+    private MessageFrame removeHead()
+    {
+        MessageFrame res = frames[head];
+        int size = sizes[head];
+        bytes -= size;
+        frames[head] = null;
+        head = (head + 1) % frames.length;
+        count--;
+        if(session != null && !discarding)
+        {
+            record(res, size);
+        }
+        return res;
+    }
+
+    private void record(MessageFrame frame, int size)
+    {
+        if(!recording)
+        {
+            //the answer to a resume continues the session after the frames the client already has
+            if(frame.message instanceof ResumeMessage)
+            {
+                recording = true;
+                return;
+            }
+            if(!(frame.message instanceof InitMessage))
+            {
+                return;
+            }
+            recording = true;
+        }
+        session.record(frame, size);
+    }
+
+    /**
+     Rewrites the queue keeping only the frames that pass a filter, in order
+
+     @param keep
+     The frames to keep, by offset from the head
+     */
+    private void compact(boolean[] keep)
+    {
+        int kept = 0;
+        long keptBytes = 0;
+        for(int i = 0; i < count; i++)
+        {
+            int from = index(i);
+            if(keep[i])
+            {
+                int to = index(kept);
+                frames[to] = frames[from];
+                sizes[to] = sizes[from];
+                keptBytes += sizes[to];
+                kept++;
+            }
+        }
+        for(int i = kept; i < count; i++)
+        {
+            frames[index(i)] = null;
+        }
+        count = kept;
+        bytes = keptBytes;
+        pendingMoves.clear();
+    }
+
+    /**
+     Throws away droppable frames, oldest first, until the queue is back to three quarters of its limits. Leaving room
+     means a client that stays slow does not have the queue searched again for every frame sent to it.
+
+     @param offered
+     The frame that was just added
+
+     @return True if the offered frame was one of those thrown away
+     */
+    private boolean dropDroppable(MessageFrame offered)
+    {
+        int targetMessages = maxMessages - maxMessages / 4;
+        long targetBytes = maxBytes - maxBytes / 4;
+        boolean[] keep = new boolean[count];
+        long remainingBytes = bytes;
+        int remainingCount = count;
+        boolean droppedOffered = false;
+        int dropped = 0;
+        for(int i = 0; i < count; i++)
+        {
+            MessageFrame frame = frames[index(i)];
+            boolean overTarget = remainingCount > 1 && (remainingCount > targetMessages || remainingBytes > targetBytes);
+            if(overTarget && frame.message.isDroppable())
+            {
+                remainingBytes -= sizes[index(i)];
+                remainingCount--;
+                dropped++;
+                droppedOffered |= frame == offered;
+            }
+            else
+            {
+                keep[i] = true;
+            }
+        }
+
+        if(dropped > 0)
+        {
+            compact(keep);
+            stats.recordDropped(dropped);
+        }
+        return droppedOffered;
+    }
+}
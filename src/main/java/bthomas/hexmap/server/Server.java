@@ -5,46 +5,64 @@ import bthomas.hexmap.commands.AddUnitCommand;
 import bthomas.hexmap.commands.HexCommand;
 import bthomas.hexmap.commands.RollCommand;
 import bthomas.hexmap.commands.SetupCommand;
+import bthomas.hexmap.commands.StatsCommand;
 import bthomas.hexmap.commands.StopCommand;
 import bthomas.hexmap.common.Unit;
+import bthomas.hexmap.common.net.BoardDiffMessage;
+import bthomas.hexmap.common.net.BoardSnapshotMessage;
 import bthomas.hexmap.common.net.ChatMessage;
 import bthomas.hexmap.common.net.CloseMessage;
 import bthomas.hexmap.common.net.CommandMessage;
 import bthomas.hexmap.common.net.HandshakeMessage;
 import bthomas.hexmap.common.net.HexMessage;
 import bthomas.hexmap.common.net.InitMessage;
+import bthomas.hexmap.common.net.MessageFormatException;
+import bthomas.hexmap.common.net.MessageFrame;
+import bthomas.hexmap.common.net.MessageRegistry;
+import bthomas.hexmap.common.net.WireFormat;
 import bthomas.hexmap.common.net.MoveUnitMessage;
 import bthomas.hexmap.common.net.NewUnitMessage;
 import bthomas.hexmap.common.net.PingMessage;
+import bthomas.hexmap.common.net.ResumeMessage;
 import bthomas.hexmap.common.net.ValidationMessage;
+import bthomas.hexmap.common.net.ViewportMessage;
 import bthomas.hexmap.logging.HexmapLogger;
 import bthomas.hexmap.permissions.PermissionBase;
 import bthomas.hexmap.permissions.PermissionMulti;
 import bthomas.hexmap.permissions.PermissionSingle;
 
 import java.awt.Dimension;
-import java.io.BufferedReader;
+import java.awt.Point;
+import java.awt.Rectangle;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
-import java.io.FileReader;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.net.SocketException;
-import java.net.SocketTimeoutException;
-import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import java.util.Scanner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
@@ -54,23 +72,40 @@ import java.util.concurrent.locks.ReentrantLock;
  */
 public class Server {
 
+    public static final int PORT = 7777;
+
+    private final ServerConfig config;
+    private final ServerStats stats = new ServerStats();
     public ServerSocket serverService = null;
-    private boolean closing = false;
-    private HashMap<String, ConnectionHandler> usernameMap = new HashMap<>();
+    private NioTransport nioTransport = null;
+    private volatile boolean closing = false;
+    //changed by whichever thread finishes closing a connection, so it has to be safe to use from any thread
+    private final ConcurrentHashMap<String, ConnectionHandler> usernameMap = new ConcurrentHashMap<>();
+    //the connection holding each session, by token, guarded by listenerThreads
+    private final HashMap<String, ConnectionHandler> sessions = new HashMap<>();
 
     //server management
     private Random rand = new Random();
     private HashMap<String, HexCommand> commands = new HashMap<>();
-    private HashMap<Long, HexMessage> messages = new HashMap<>();
+    private final MessageRegistry messages = new MessageRegistry();
     private PermissionMulti permissions = new PermissionMulti();
-    private HashMap<String, HashSet<PermissionBase>> permissionGroups = new HashMap<>();
+    //ids of registered permissions by name, checks look them up once and test bits after
+    private final HashMap<String, Integer> permissionIds = new HashMap<>();
+    //every group's and user's permissions, compiled and kept up to date with their files
+    private final PermissionStore permissionStore;
     private HashMap<String, String> passwords;
 
     //thread handling
     private final ArrayList<ConnectionHandler> listenerThreads = new ArrayList<>();
+    //which part of the board each connection can see, guarded by listenerThreads
+    private final InterestIndex interest = new InterestIndex();
 
     //message receiving
-    private final ArrayDeque<MessageData> arrivalQueue = new ArrayDeque<>();
+    private final LinkedBlockingQueue<MessageData> arrivalQueue = new LinkedBlockingQueue<>();
+    //the most arrived messages handled as one batch, so moves superseded within it can be skipped
+    private static final int MAX_ARRIVAL_BATCH = 1024;
+    //how long closing the server waits for clients to be sent what they have queued before cutting them off
+    private static final long CLOSE_TIMEOUT_MILLIS = 5000;
 
     //battlefield info
     private final ReentrantLock boardLock = new ReentrantLock();
@@ -78,16 +113,41 @@ public class Server {
     private int y = 10;
     private HashMap<Integer, Unit> units = new HashMap<>();
 
+    //pings quiet clients and times out the ones that don't answer
+    private final IdleWheel idleWheel;
+    //saves every change to the board, or null if the board is only kept in memory
+    private BoardStore boardStore = null;
+
+    //refuses new connections the server can't take on right now
+    private final AdmissionControl admission;
+
+    //null unless the server sends board changes once per tick, changes waiting for the next tick are guarded by boardLock
+    private final BoardTicker ticker;
+    //where each moved unit was when the tick started
+    private final LinkedHashMap<Integer, Point> tickMoves = new LinkedHashMap<>();
+    private final LinkedHashSet<Integer> tickAdded = new LinkedHashSet<>();
+    //held while unit copies taken from the board are queued to a client, so a tick's diff can't overtake them
+    private final Object tickLock = new Object();
+
     //file informations
     private Path passwordsFile = Paths.get("passwords.dat");
+    private Path boardDirectory = Paths.get("board");
     private Path groupPermissionsDirectory = Paths.get("permissions", "groups");
     public Path userPermissionsDirectory = Paths.get("permissions", "users");
 
 
     /**
      * Standard constructor, creates a server on port 7777
+     *
+     * @param config The settings to run this server with
      */
-    public Server() {
+    public Server(ServerConfig config) {
+        this.config = config;
+        ticker = config.tickRate > 0 ? new BoardTicker(this, config.tickRate) : null;
+        idleWheel = new IdleWheel(this, config);
+        admission = new AdmissionControl(config);
+        permissionStore = new PermissionStore(this, groupPermissionsDirectory, userPermissionsDirectory);
+
         //create directories if needed
         try {
             Files.createDirectories(userPermissionsDirectory);
@@ -120,18 +180,27 @@ public class Server {
 
         //init internet connection
         try {
-            serverService = new ServerSocket(7777);
+            if(config.transport == ServerConfig.TransportMode.NIO) {
+                nioTransport = new NioTransport(this, PORT, config.nioThreads);
+            }
+            else {
+                serverService = new ServerSocket(PORT);
+            }
         }
         catch (IOException e) {
             Main.logger.log(HexmapLogger.SEVERE, "Error initializing serversocket: " + HexmapLogger.getStackTraceString(e));
             return;
         }
 
+        if (config.boardPersist) {
+            loadBoard();
+        }
+
         Main.logger.log(HexmapLogger.INFO, "Server init.");
         registerAllCommands();
         registerAllPermissions();
         registerAllMessages();
-        loadPermissionGroups();
+        permissionStore.load();
     }
 
     public void run()
@@ -142,57 +211,154 @@ public class Server {
         Thread receiveThread = new Thread(this::handleMessages);
         receiveThread.setDaemon(true);
         receiveThread.start();
-        Main.scheduleTask(new ServerKeepaliveManager(this), System.currentTimeMillis() + ServerKeepaliveManager.PING_INTERVAL_MILLIS);
+        idleWheel.start();
+        permissionStore.start();
+        if(boardStore != null) {
+            boardStore.start();
+        }
+        if(ticker != null) {
+            ticker.start();
+        }
         beginListening();
     }
 
 
+    /**
+     * Restores the board saved by the last run, and starts saving changes to it
+     * If the saved board can't be read the board is not saved at all, so it is not overwritten
+     */
+    private void loadBoard() {
+        BoardStore store = new BoardStore(stats, this::snapshotBoard, boardDirectory, config.boardSnapshotChanges);
+        long start = System.currentTimeMillis();
+        BoardStore.Board board;
+        try {
+            board = store.load();
+        }
+        catch (IOException e) {
+            Main.logger.log(HexmapLogger.SEVERE, "Error loading the saved board, changes will not be saved: " + HexmapLogger.getStackTraceString(e));
+            return;
+        }
+
+        if (board != null) {
+            synchronized (boardLock) {
+                if (board.width > 0 && board.height > 0) {
+                    x = board.width;
+                    y = board.height;
+                }
+                //older versions could save units that were not on the board, clients can't show those
+                int offBoard = 0;
+                for (Unit u : board.units) {
+                    Unit.reserveUID(u.UID);
+                    if (u.locX < 0 || u.locX >= x || u.locY < 0 || u.locY >= y) {
+                        offBoard++;
+                        continue;
+                    }
+                    units.put(u.UID, u);
+                }
+                if (offBoard > 0) {
+                    Main.logger.log(HexmapLogger.ERROR, "Dropped " + offBoard + " saved units that were not on the board");
+                }
+            }
+            Main.logger.log(HexmapLogger.INFO, "Loaded saved board of " + x + " by " + y + " with " + units.size()
+                    + " units in " + (System.currentTimeMillis() - start) + " ms");
+        }
+        boardStore = store;
+    }
+
+
+    /**
+     * Has a copy of the board saved as a new snapshot, so the changes logged before it can be deleted
+     */
+    void snapshotBoard() {
+        if (boardStore == null) {
+            return;
+        }
+        synchronized (boardLock) {
+            ArrayList<Unit> copy = new ArrayList<>(units.size());
+            for (Unit u : units.values()) {
+                copy.add(new Unit(u.name, u.locX, u.locY, u.UID, u.color));
+            }
+            boardStore.logSnapshot(copy, x, y);
+        }
+    }
+
+
     /**
      * Listen for and handle new connections
      * Runs until the server closes
      */
     private void beginListening() {
-        try {
-            //set timeout on ServerSocket.accept()
-            serverService.setSoTimeout(250);
-        }
-        catch (SocketException e) {
-            Main.logger.log(HexmapLogger.SEVERE, "Error setting serversocket timeout: " + HexmapLogger.getStackTraceString(e));
+        if(nioTransport != null) {
+            nioTransport.acceptConnections();
             return;
         }
 
+        //accept blocks until a client connects, closing the server socket wakes it up to stop
         while (!closing) {
             try {
-                //Main.logger.log("Accept");
                 Socket service = serverService.accept();
+                if (!admitConnection(service.getInetAddress())) {
+                    service.close();
+                    continue;
+                }
 
-                synchronized (listenerThreads) {
-
-                    //race condition protection
-                    if (closing) {
-                        break;
-                    }
-
-                    //setup handler for new connection
-                    ConnectionHandler runner = new ConnectionHandler(this, service);
-                    new Thread(runner).start();
-
-                    listenerThreads.add(runner);
-                    Main.logger.log(HexmapLogger.INFO, "Made new listener. Total :" + listenerThreads.size());
+                //setup handler for new connection
+                if(!addConnection(new BlockingConnectionHandler(this, service))) {
+                    service.close();
+                    break;
                 }
             }
-            catch (SocketTimeoutException e) {
-                //we timeout this loop every 1/4 second to check for server closes
-                //perhaps there's a more elegant way to do this?
-            }
             catch (IOException e) {
                 if(!closing) {
-                    Main.logger.log(HexmapLogger.ERROR, "error accepting connection");
+                    Main.logger.log(HexmapLogger.ERROR, "error accepting connection: " + HexmapLogger.getStackTraceString(e));
                 }
             }
         }
     }
 
+    /**
+     * Decides whether to take on a newly accepted connection, before anything is set up for it
+     * A refused connection should be closed straight away, an admitted one must be passed to addConnection
+     *
+     * @param address The address the connection came from
+     * @return True if the connection is admitted, false if it was refused
+     */
+    boolean admitConnection(InetAddress address) {
+        AdmissionControl.Refusal refusal = admission.admit(address);
+        if (refusal != null) {
+            Main.logger.log(HexmapLogger.DEBUG, "Refused connection from %s: %s", address, refusal);
+            stats.recordRefused(refusal);
+            return false;
+        }
+        stats.recordAdmitted();
+        return true;
+    }
+
+    /**
+     * Starts a newly accepted connection and adds it to the server
+     *
+     * @param runner The handler for the new connection
+     * @return True if the connection was added, false if the server is closing
+     */
+    boolean addConnection(ConnectionHandler runner) {
+        synchronized (listenerThreads) {
+
+            //race condition protection
+            if (closing) {
+                admission.release(runner.finishHandshake());
+                return false;
+            }
+
+            runner.start();
+
+            listenerThreads.add(runner);
+            interest.add(runner);
+            idleWheel.add(runner);
+            Main.logger.log(HexmapLogger.INFO, "Made new listener. Total :" + listenerThreads.size());
+            return true;
+        }
+    }
+
     /**
      * Gets if the server has a username registered (password locked)
      *
@@ -239,11 +405,15 @@ public class Server {
         registerMessage(new CommandMessage());
         registerMessage(new MoveUnitMessage());
         registerMessage(new NewUnitMessage());
+        registerMessage(new BoardSnapshotMessage());
+        registerMessage(new BoardDiffMessage());
         registerMessage(new ValidationMessage());
         registerMessage(new HandshakeMessage());
         registerMessage(new CloseMessage());
         registerMessage(new InitMessage());
         registerMessage(new PingMessage());
+        registerMessage(new ViewportMessage());
+        registerMessage(new ResumeMessage());
     }
 
     /**
@@ -255,18 +425,33 @@ public class Server {
      */
     private boolean registerMessage(HexMessage message)
     {
-        if(messages.containsKey(message.getKey()))
-        {
-            return false;
-        }
-
-        messages.put(message.getKey(), message);
-        return true;
+        return messages.register(message);
     }
 
-    public HexMessage getRegisteredMessage(long key)
+    /**
+     * @return The message types this server understands, whose ids are used for binary frames it sends and receives
+     */
+    public MessageRegistry getRegistry()
     {
-        return messages.get(key);
+        return messages;
+    }
+
+    /**
+     * Gets the settings this server is running with
+     *
+     * @return The server's settings
+     */
+    public ServerConfig getConfig() {
+        return config;
+    }
+
+    /**
+     * Gets the traffic counters for this server
+     *
+     * @return The server's counters
+     */
+    public ServerStats getStats() {
+        return stats;
     }
 
     /**
@@ -301,68 +486,39 @@ public class Server {
             manager = manager.getSubMultiOrCreate(parts[i]);
         }
 
-        return manager.registerPermission(parts[parts.length - 1]);
+        if(!manager.registerPermission(parts[parts.length - 1], permissionIds.size())) {
+            return false;
+        }
+        permissionIds.put(permission, permissionIds.size());
+        return true;
     }
 
     /**
-     * Loads all group permissions from files
+     * Gets the id of a registered permission, which a caller can keep and check with
+     * ConnectionHandler.hasPermission(int) instead of the name
+     *
+     * @param permission The permission, eg "hexmap.commands.roll"
+     * @return The permission's id, or -1 if it is not registered
      */
-    private void loadPermissionGroups() {
-        //create default group if needed
-        Path groupFile = Paths.get(groupPermissionsDirectory.toString(), "default.txt");
-        if(!Files.exists(groupFile)) {
-            try {
-                Files.write(groupFile, new byte[0]);
-            }
-            catch (IOException e) {
-                Main.logger.log(HexmapLogger.SEVERE, "Error creating default group permissions file: " + HexmapLogger.getStackTraceString(e));
-            }
-        }
-
-        //try to load each file in the groups folder as a permissions file
-        try {
-            DirectoryStream<Path> groups = Files.newDirectoryStream(groupPermissionsDirectory, "*.txt");
-            for(Path group : groups) {
-                String fileName = group.toFile().getName();
-                try {
-                    HashSet<PermissionBase> newGroup = new HashSet<>();
-                    BufferedReader inputPermissions = new BufferedReader(new FileReader(group.toFile()));
-
-                    //apply each line to the group
-                    String line = inputPermissions.readLine();
-                    while(line != null) {
-                        applyPermission(line, fileName, newGroup);
-                        line = inputPermissions.readLine();
-                    }
-                    inputPermissions.close();
-
-                    //add group to group list
-                    permissionGroups.put(fileName, newGroup);
-                }
-                catch (IOException e) {
-                    Main.logger.log(HexmapLogger.SEVERE, "Error reading from permission file for group: "
-                            + fileName + ": " + HexmapLogger.getStackTraceString(e));
-                }
-            }
-        }
-        catch (IOException e) {
-            Main.logger.log(HexmapLogger.SEVERE, "Error creating list of permissions group files: " + HexmapLogger.getStackTraceString(e));
-        }
+    public int getPermissionId(String permission) {
+        Integer id = permissionIds.get(permission);
+        return id == null ? -1 : id;
     }
 
     /**
-     * Applies a single permission to a given group
+     * Adds a permission read from a file to a set of permission ids
+     * A "*" permission adds every permission registered under it, so checks never have to look for wildcards
      *
-     * @param permission The permission to apply
-     * @param groupName The name of the group (used for logging only)
-     * @param group The group to apply the permission to
+     * @param permission The permission to apply, eg "hexmap.commands.roll" or "hexmap.commands.*"
+     * @param owner Who the permission is for (used for logging only)
+     * @param res The set to add the permission to
      * @return True if the permission was applied successfully, false otherwise
      */
-    private boolean applyPermission(String permission, String groupName, HashSet<PermissionBase> group) {
+    public boolean compilePermission(String permission, String owner, BitSet res) {
         //reject invalid permissions
         if(!PermissionBase.inputPermission.matcher(permission).matches()) {
             Main.logger.log(HexmapLogger.ERROR, "Tried to load invalid permission: " + permission
-                    + " to group: " + groupName);
+                    + " to " + owner);
             return false;
         }
 
@@ -374,14 +530,14 @@ public class Server {
             //reject unregistered permissions
             if(manager == null) {
                 Main.logger.log(HexmapLogger.ERROR, "Attempt to apply unregistered permission: "
-                        + permission + " to group: " + groupName);
+                        + permission + " to " + owner);
                 return false;
             }
         }
 
-        //for generic permissions, we are done here
+        //generic permissions grant everything below them
         if(permission.contains("*")) {
-            group.add(manager);
+            manager.collectIds(res);
             return true;
         }
 
@@ -390,11 +546,11 @@ public class Server {
         //reject unregistered permissions
         if(end == null) {
             Main.logger.log(HexmapLogger.ERROR, "Attempt to apply unregistered permission: "
-                    + permission + " to group: " + groupName);
+                    + permission + " to " + owner);
             return false;
         }
 
-        group.add(end);
+        res.set(end.id);
         return true;
     }
 
@@ -407,6 +563,7 @@ public class Server {
         registerCommand(new StopCommand());
         registerCommand(new SetupCommand());
         registerCommand(new AddUnitCommand());
+        registerCommand(new StatsCommand());
     }
 
 
@@ -472,26 +629,50 @@ public class Server {
     /**
      * Handles messages received from clients
      * Runs infinitely until the server closes
+     * Everything that arrived while the last batch was handled is taken at once, and a move is skipped if a later move
+     * of the same unit is in the batch, since only the unit's final position matters to anyone
      */
     public void handleMessages() {
+        ArrayList<MessageData> batch = new ArrayList<>();
+        HashSet<Integer> movedLater = new HashSet<>();
         while(!closing) {
-            MessageData message;
-            synchronized (arrivalQueue) {
-                message = arrivalQueue.poll();
+            try {
+                batch.add(arrivalQueue.take());
             }
-
-            if(message != null) {
-                message.message.applyToServer(this, message.source);
+            catch (InterruptedException e) {
+                Main.logger.log(HexmapLogger.ERROR, "Message handling interrupted: " + HexmapLogger.getStackTraceString(e));
+                break;
             }
-            //if no message in queue, wait a bit
-            else {
-                try {
-                    Thread.sleep(50);
+            arrivalQueue.drainTo(batch, MAX_ARRIVAL_BATCH - 1);
+
+            //walk back from the newest message, marking moves that a later one overrides
+            boolean[] superseded = new boolean[batch.size()];
+            int skipped = 0;
+            for (int i = batch.size() - 1; i >= 0; i--) {
+                HexMessage message = batch.get(i).message;
+                if (message instanceof MoveUnitMessage) {
+                    superseded[i] = !movedLater.add(((MoveUnitMessage) message).unitUID);
+                    if (superseded[i]) {
+                        skipped++;
+                    }
                 }
-                catch (InterruptedException e) {
-                    //no problem
+                else if (!message.isDroppable()) {
+                    //anything but chat and pings may depend on where units are, so moves can't be skipped across it
+                    movedLater.clear();
                 }
             }
+            movedLater.clear();
+            if (skipped > 0) {
+                stats.recordSupersededMoves(skipped);
+            }
+
+            for (int i = 0; i < batch.size(); i++) {
+                if (!superseded[i]) {
+                    MessageData message = batch.get(i);
+                    message.message.applyToServer(this, message.source);
+                }
+            }
+            batch.clear();
         }
 
     }
@@ -499,12 +680,14 @@ public class Server {
 
     /**
      * Checks to see if the server has a connected user with a given name
+     * A user whose connection was lost and who has not resumed yet does not count, logging in again replaces them
      *
      * @param username The name to check for
      * @return True if there is a connected player with that name, false if not.
      */
     public boolean hasConnectedUser(String username) {
-        return usernameMap.containsKey(username);
+        ConnectionHandler user = usernameMap.get(username);
+        return user != null && !user.isSuspended();
     }
 
 
@@ -517,6 +700,27 @@ public class Server {
     public void addUnit(Unit u) {
         synchronized (boardLock) {
             units.put(u.UID, u);
+            if (boardStore != null) {
+                boardStore.logAdd(u);
+            }
+        }
+    }
+
+
+    /**
+     * Tells the clients that can see a newly added unit about it
+     * In tick mode the unit is sent with the next tick's diff instead
+     *
+     * @param u The unit, which must already be on the board
+     */
+    public void sendNewUnit(Unit u) {
+        if (ticker != null) {
+            synchronized (boardLock) {
+                tickAdded.add(u.UID);
+            }
+        }
+        else {
+            sendNear(new NewUnitMessage(u), u.locX, u.locY);
         }
     }
 
@@ -525,19 +729,247 @@ public class Server {
      * Moves a unit based on a message from a client
      * Assumes the move is valid
      * In case of clients trying to simultaneously move units, operates on first-come, first-serve
+     * The move is sent on from where the server had the unit, since clients find the unit by its old position and the
+     * sender's idea of it may be out of date
+     * In tick mode only the unit's position at the start of the tick is noted, and the move is sent with the tick's diff
      *
      * @param message The move message to apply
      */
     public void moveUnit(MoveUnitMessage message) {
         synchronized (boardLock) {
             Unit u = units.get(message.unitUID);
+            if (u != null && (message.toX < 0 || message.toX >= x || message.toY < 0 || message.toY >= y)) {
+                Main.logger.log(HexmapLogger.INFO, "Ignored move of unit: %s to %d, %d, which is not on the board", u.name,
+                        message.toX, message.toY);
+                return;
+            }
             if (u != null) {
-                Main.logger.log(HexmapLogger.INFO, String.format("Unit: %s moved from %d, %d to %d, %d", u.name, u.locX,
-                        u.locY, message.toX, message.toY));
+                Main.logger.log(HexmapLogger.INFO, "Unit: %s moved from %d, %d to %d, %d", u.name, u.locX, u.locY,
+                        message.toX, message.toY);
+                MoveUnitMessage applied = new MoveUnitMessage(u.UID, message.toX, message.toY, u.locX, u.locY);
+                if (ticker != null && !tickAdded.contains(u.UID)) {
+                    tickMoves.putIfAbsent(u.UID, new Point(u.locX, u.locY));
+                }
                 u.locX = message.toX;
                 u.locY = message.toY;
-                sendAll(message);
+                if (boardStore != null) {
+                    boardStore.logMove(u.UID, u.locX, u.locY);
+                }
+                if (ticker == null) {
+                    sendMove(applied, u);
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Sends the board changes made since the last tick, as one diff per client with only the changes it can see
+     * Clients that see the whole board share a single encoded diff
+     */
+    public void flushTick() {
+        ArrayList<Unit> moved = new ArrayList<>();
+        ArrayList<Point> movedFrom = new ArrayList<>();
+        ArrayList<Unit> added = new ArrayList<>();
+        synchronized (tickLock) {
+            synchronized (boardLock) {
+                for (Map.Entry<Integer, Point> move : tickMoves.entrySet()) {
+                    Unit u = units.get(move.getKey());
+                    Point from = move.getValue();
+                    //a unit moved back to where it started has nothing to send
+                    if (u.locX != from.x || u.locY != from.y) {
+                        moved.add(new Unit(u.name, u.locX, u.locY, u.UID, u.color));
+                        movedFrom.add(from);
+                    }
+                }
+                for (int uid : tickAdded) {
+                    Unit u = units.get(uid);
+                    added.add(new Unit(u.name, u.locX, u.locY, u.UID, u.color));
+                }
+                tickMoves.clear();
+                tickAdded.clear();
+            }
+            if (moved.isEmpty() && added.isEmpty()) {
+                return;
+            }
+
+            synchronized (listenerThreads) {
+                MessageFrame everything = null;
+                int recipients = 0;
+                int entered = 0;
+                for (ConnectionHandler client : listenerThreads) {
+                    //clients that have not joined yet are sent the whole board when they do
+                    if (client.username == null) {
+                        continue;
+                    }
+
+                    if (interest.seesAll(client)) {
+                        if (everything == null) {
+                            everything = encodeForAll(new BoardDiffMessage(diffMoves(null, moved, movedFrom, null), added));
+                            if (everything == null) {
+                                continue;
+                            }
+                        }
+                        client.addFrame(everything);
+                        recipients++;
+                    }
+                    else {
+                        ArrayList<Unit> whole = new ArrayList<>();
+                        int[] moves = diffMoves(client, moved, movedFrom, whole);
+                        entered += whole.size();
+                        for (Unit u : added) {
+                            if (interest.canSee(client, u.locX, u.locY)) {
+                                whole.add(u);
+                            }
+                        }
+                        if (moves.length > 0 || !whole.isEmpty()) {
+                            client.addMessage(new BoardDiffMessage(moves, whole));
+                            recipients++;
+                        }
+                    }
+                }
+                stats.recordTick(moved.size() + added.size(), recipients);
+                stats.recordEnterEvents(entered);
+            }
+        }
+    }
+
+
+    /**
+     * Builds the moves of a tick's diff for one client
+     *
+     * Moves the client could see the start of are kept even if they end out of its view, so it knows the unit left
+     *
+     * @param client The client to build the moves for, or null for a client that sees the whole board
+     * @param moved The moved units, at where they are now
+     * @param movedFrom Where each moved unit was at the start of the tick
+     * @param entered Where to add units the client could not see before but can now, which it is sent whole
+     * @return The moves the client can see, {@link BoardDiffMessage#MOVE_FIELDS} numbers per move
+     */
+    private int[] diffMoves(ConnectionHandler client, List<Unit> moved, List<Point> movedFrom, List<Unit> entered) {
+        int[] res = new int[moved.size() * BoardDiffMessage.MOVE_FIELDS];
+        int count = 0;
+        for (int i = 0; i < moved.size(); i++) {
+            Unit u = moved.get(i);
+            Point from = movedFrom.get(i);
+            if (client == null || interest.canSee(client, from.x, from.y)) {
+                res[count++] = u.UID;
+                res[count++] = u.locX;
+                res[count++] = u.locY;
+                res[count++] = from.x;
+                res[count++] = from.y;
+            }
+            else if (interest.canSee(client, u.locX, u.locY)) {
+                entered.add(u);
+            }
+        }
+        return count == res.length ? res : Arrays.copyOf(res, count);
+    }
+
+
+    /**
+     * Sends a move to the connections that can see where the unit was or where it went
+     * A connection that can only see where it was is still sent the move, which tells it the unit left its view
+     * A connection that can only see where it went may not know the unit, so it is sent the unit as a new one instead
+     *
+     * @param move The applied move
+     * @param u The unit after the move
+     */
+    private void sendMove(MoveUnitMessage move, Unit u) {
+        MessageFrame frame = encodeForAll(move);
+        if (frame == null) {
+            return;
+        }
+
+        ArrayList<ConnectionHandler> sawBefore = new ArrayList<>();
+        ArrayList<ConnectionHandler> seesAfter = new ArrayList<>();
+        synchronized (listenerThreads) {
+            interest.findViewers(move.fromX, move.fromY, sawBefore);
+            interest.findViewers(move.toX, move.toY, seesAfter);
+            //clients that have not joined yet are sent the whole board when they do, and resuming clients the rest of
+            //their session
+            sawBefore.removeIf(client -> client.username == null);
+            seesAfter.removeIf(client -> client.username == null);
+            for (ConnectionHandler client : sawBefore) {
+                client.addFrame(frame);
+            }
+
+            MessageFrame enter = null;
+            int entered = 0;
+            for (ConnectionHandler client : seesAfter) {
+                if (!interest.canSee(client, move.fromX, move.fromY)) {
+                    if (enter == null) {
+                        enter = encodeForAll(new NewUnitMessage(new Unit(u.name, u.locX, u.locY, u.UID, u.color)));
+                        if (enter == null) {
+                            break;
+                        }
+                    }
+                    client.addFrame(enter);
+                    entered++;
+                }
             }
+            stats.recordUnitEvent(sawBefore.size() + entered, listenerThreads.size());
+            stats.recordEnterEvents(entered);
+        }
+    }
+
+
+    /**
+     * Sends a message about one board location to the connections that can see it
+     *
+     * @param message The message to send
+     * @param x The X location the message is about
+     * @param y The Y location the message is about
+     */
+    public void sendNear(HexMessage message, int x, int y) {
+        MessageFrame frame = encodeForAll(message);
+        if (frame == null) {
+            return;
+        }
+
+        ArrayList<ConnectionHandler> viewers = new ArrayList<>();
+        synchronized (listenerThreads) {
+            interest.findViewers(x, y, viewers);
+            viewers.removeIf(client -> client.username == null);
+            viewers.forEach(client -> client.addFrame(frame));
+            stats.recordUnitEvent(viewers.size(), listenerThreads.size());
+        }
+    }
+
+
+    /**
+     * Sets the part of the board a client can see
+     * Units that were out of the client's view before are sent to it as new units, since it may not know where they are
+     *
+     * @param source The connection of the client
+     * @param region The board locations the client can see, cut down to the board
+     */
+    public void setViewport(ConnectionHandler source, Rectangle region) {
+        synchronized (tickLock) {
+            ArrayList<Unit> entering = new ArrayList<>();
+            //like initConnection, units are copied under the lock and queued without it before any tick can send moves
+            synchronized (boardLock) {
+                Rectangle visible = region.intersection(new Rectangle(0, 0, x, y));
+                Rectangle previous;
+                synchronized (listenerThreads) {
+                    if (!listenerThreads.contains(source)) {
+                        return;
+                    }
+                    previous = interest.setRegion(source, visible);
+                }
+                //a client that could see everything already knows every unit
+                if (previous != null) {
+                    for (Unit u : units.values()) {
+                        if (visible.contains(u.locX, u.locY) && !previous.contains(u.locX, u.locY)) {
+                            entering.add(new Unit(u.name, u.locX, u.locY, u.UID, u.color));
+                        }
+                    }
+                }
+            }
+            for (Unit u : entering) {
+                source.addMessage(new NewUnitMessage(u));
+            }
+            stats.recordEnterEvents(entering.size());
         }
     }
 
@@ -549,16 +981,47 @@ public class Server {
      * @param username The username of the new client
      */
     public void initConnection(ConnectionHandler source, String username) {
-        Main.logger.log(HexmapLogger.INFO, "Accepted new connection with name: " + username);
-        source.username = username;
-        usernameMap.put(username, source);
-        source.setupPermissions();
-        source.addMessage(new InitMessage(x, y));
-        sendAll(new ChatMessage(username + " has joined."));
-        //give client the map info
-        synchronized (boardLock) {
-            for (Unit u : units.values()) {
-                source.addMessage(new NewUnitMessage(u));
+        synchronized (tickLock) {
+            Main.logger.log(HexmapLogger.INFO, "Accepted new connection with name: " + username);
+            //a lost connection of the same user won't be resumed anymore
+            ConnectionHandler lost = usernameMap.get(username);
+            if (lost != null && lost.isSuspended()) {
+                removeListener(lost, "logged in again");
+            }
+            //set under the lock, since broadcasts from other threads check it to skip connections that have not joined
+            synchronized (listenerThreads) {
+                source.username = username;
+            }
+            usernameMap.put(username, source);
+            if (source.finishHandshake()) {
+                admission.handshakeFinished();
+            }
+            source.setupPermissions();
+            //numbering of the session starts with the init message
+            String token = null;
+            if (config.sessionGraceSeconds > 0) {
+                ClientSession session = new ClientSession(config);
+                token = session.token;
+                source.startSession(session);
+                synchronized (listenerThreads) {
+                    sessions.put(token, source);
+                }
+            }
+            source.addMessage(new InitMessage(x, y, token));
+            sendAll(new ChatMessage(username + " has joined."));
+            //give client the map info
+            //units are copied under the lock, then encoded and queued without it so movers are not held up
+            //moves are only applied on this thread, so none can slip in between the copy and the queued snapshot
+            //in tick mode they are sent from another thread, which tickLock keeps from sending until the snapshot is queued
+            ArrayList<Unit> snapshot;
+            synchronized (boardLock) {
+                snapshot = new ArrayList<>(units.size());
+                for (Unit u : units.values()) {
+                    snapshot.add(new Unit(u.name, u.locX, u.locY, u.UID, u.color));
+                }
+            }
+            for (BoardSnapshotMessage chunk : BoardSnapshotMessage.split(snapshot)) {
+                source.addMessage(chunk);
             }
         }
     }
@@ -566,15 +1029,45 @@ public class Server {
 
     /**
      * Sends a message to all connected clients
+     * The message is encoded once and the same frame is shared by every connection
      *
      * @param message The message to send
      */
     public void sendAll(HexMessage message) {
+        MessageFrame frame = encodeForAll(message);
+        if (frame == null) {
+            return;
+        }
+
         //requiring messages to bounce from client to server back to client
         //guarantees message order is the same between all clients
+        //connections that have not logged in or resumed are skipped, a resumed session already has what was sent
         synchronized (listenerThreads)
         {
-            listenerThreads.forEach(client -> client.addMessage(message));
+            for (ConnectionHandler client : listenerThreads) {
+                if (client.username != null) {
+                    client.addFrame(frame);
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Encodes a message once for sending to many connections
+     *
+     * @param message The message to encode
+     * @return The encoded frame, or null if the message could not be converted
+     */
+    private MessageFrame encodeForAll(HexMessage message) {
+        try {
+            //most clients will have switched to binary if the server allows it
+            return MessageFrame.encode(message, messages, config.binaryWire ? WireFormat.BINARY : WireFormat.JSON);
+        }
+        catch (MessageFormatException e) {
+            Main.logger.log(HexmapLogger.ERROR, "Error converting message for broadcast: " + message + " error: "
+                    + HexmapLogger.getStackTraceString(e));
+            return null;
         }
     }
 
@@ -586,55 +1079,197 @@ public class Server {
      * @param message The message to process
      */
     public void receiveMessage(MessageData message) {
-        synchronized (arrivalQueue) {
-            arrivalQueue.add(message);
-        }
+        arrivalQueue.add(message);
     }
 
 
     /**
-     * Closes a client connection
+     * Closes a client connection without waiting for it
+     * The connection sends what it has queued and closes on its own thread, then it is removed and its user's
+     * disconnect is announced
      *
      * @param listener The connection to close
      * @param reason The given reason for terminating the connection
+     * @return A future completed once the connection is closed
      */
-    public void closeListener(ConnectionHandler listener, String reason) {
-        //prevent multiple closes
+    public CompletableFuture<Void> closeListener(ConnectionHandler listener, String reason) {
+        //a lost connection is already closed, but is still listed until its session ends
+        if(listener.isSuspended()) {
+            removeListener(listener, reason);
+            return CompletableFuture.completedFuture(null);
+        }
+
+        //prevent multiple closes, whoever started closing it removes it
         if(listener.isClosed || listener.toClose) {
-            return;
+            return listener.whenClosed();
         }
 
         listener.addMessage(new CloseMessage(reason));
 
         if(listener.username != null) {
-            usernameMap.remove(listener.username);
+            usernameMap.remove(listener.username, listener);
         }
 
 
         //nicely close handler if it's running
-        listener.toClose = true;
+        listener.requestClose();
+
+        return listener.whenClosed().thenRun(() -> removeListener(listener, reason));
+    }
 
 
-        while(!listener.isClosed) {
-            //wait a bit
-            try {
-                Thread.sleep(50);
+    /**
+     * Forgets a closed connection and tells everyone its user left
+     * Does nothing if the connection was already removed
+     *
+     * @param listener The connection to remove
+     * @param reason The given reason for terminating the connection
+     */
+    private void removeListener(ConnectionHandler listener, String reason) {
+        synchronized (listenerThreads) {
+            if (!listenerThreads.remove(listener)) {
+                return;
             }
-            catch (InterruptedException e) {
-                Main.logger.log(HexmapLogger.ERROR, "Error waiting for listener to close: " + HexmapLogger.getStackTraceString(e));
-                //should probably deal with this
+            admission.release(listener.finishHandshake());
+            interest.remove(listener);
+            idleWheel.remove(listener);
+            ClientSession session = listener.getSession();
+            if (session != null) {
+                sessions.remove(session.token, listener);
             }
-        }
-        synchronized (listenerThreads) {
-            listenerThreads.remove(listener);
             if (listener.username != null) {
-                sendAll(new ChatMessage(listener.username + " has disconnected."));
+                usernameMap.remove(listener.username, listener);
+                //nobody is left to tell once the server is closing
+                if (!closing) {
+                    sendAll(new ChatMessage(listener.username + " has disconnected."));
+                }
                 Main.logger.log(HexmapLogger.INFO, "Disconnected client: " + listener.username + " for: " + reason);
             }
         }
     }
 
 
+    /**
+     * Keeps the session of a client whose connection was lost, so it can resume on a new connection
+     * The session ends if the client does not resume it in time
+     *
+     * @param listener The connection that was lost
+     * @param reason Why the connection was lost
+     * @return True if the session is kept, false if the connection should be closed instead
+     */
+    public boolean suspendListener(ConnectionHandler listener, String reason) {
+        if (listener.getSession() == null || closing) {
+            return false;
+        }
+        synchronized (listenerThreads) {
+            if (listener.toClose || !listenerThreads.contains(listener)) {
+                return false;
+            }
+            listener.suspend();
+        }
+        idleWheel.remove(listener);
+        Main.logger.log(HexmapLogger.INFO, "Lost connection to: " + listener.username + " for: " + reason
+                + ", keeping session for " + config.sessionGraceSeconds + " seconds");
+        stats.recordSessionSuspended();
+
+        Main.scheduleTask(() -> {
+            synchronized (listenerThreads) {
+                //the session was resumed or ended some other way
+                if (!listenerThreads.contains(listener)) {
+                    return;
+                }
+                stats.recordSessionExpired();
+                removeListener(listener, reason);
+            }
+        }, System.currentTimeMillis() + config.sessionGraceSeconds * 1000L);
+        return true;
+    }
+
+
+    /**
+     * Handles a client that stopped answering pings
+     * The connection is closed by the message thread like any other, so the caller does not wait for it
+     *
+     * @param listener The connection that timed out
+     */
+    public void connectionTimedOut(ConnectionHandler listener) {
+        String reason = "Connection timed out.";
+        if (!suspendListener(listener, reason)) {
+            receiveMessage(new MessageData(new CloseMessage(reason), listener));
+        }
+    }
+
+
+    /**
+     * Handles a client that did not log in or resume in time, so it stops holding up other clients' handshakes
+     * Like a timeout, the connection is closed by the message thread
+     *
+     * @param listener The connection that took too long
+     */
+    public void handshakeTimedOut(ConnectionHandler listener) {
+        stats.recordHandshakeTimeout();
+        Main.logger.log(HexmapLogger.DEBUG, "Closing a connection that did not log in in time");
+        receiveMessage(new MessageData(new CloseMessage("Did not log in in time."), listener));
+    }
+
+
+    /**
+     * Moves the session of a lost connection to a new one, and sends the client everything it missed
+     * If the session can't be resumed, the client is told so and has to log in again
+     *
+     * @param source The new connection of the client
+     * @param token The token of the session to resume
+     * @param received The number of messages the client received in the session
+     */
+    public void resumeSession(ConnectionHandler source, String token, long received) {
+        synchronized (listenerThreads) {
+            //only a connection that has not logged in can resume
+            if (source.username != null || !listenerThreads.contains(source)) {
+                return;
+            }
+
+            ConnectionHandler previous = token == null ? null : sessions.get(token);
+            List<MessageFrame> missed = null;
+            //everything sent to the lost connection is queued while holding listenerThreads, so nothing can be
+            //recorded in its session between taking back what the client missed and discarding the rest
+            if (previous != null && previous.isSuspended()) {
+                missed = previous.getSession().rewind(received);
+            }
+            if (missed == null) {
+                Main.logger.log(HexmapLogger.INFO, "Could not resume session"
+                        + (previous == null ? "" : " of: " + previous.username) + " after " + received + " messages");
+                stats.recordSessionRefused();
+                source.addMessage(new ResumeMessage(null, received));
+                //the client will log in again, so the session is of no more use
+                if (previous != null && previous.isSuspended()) {
+                    removeListener(previous, "session could not be resumed");
+                }
+                return;
+            }
+
+            previous.discard();
+            source.takeOver(previous);
+            source.startSession(previous.getSession());
+            source.addMessage(new ResumeMessage(token, received));
+            for (MessageFrame frame : missed) {
+                source.addFrame(frame);
+            }
+
+            listenerThreads.remove(previous);
+            admission.release(previous.finishHandshake());
+            if (source.finishHandshake()) {
+                admission.handshakeFinished();
+            }
+            interest.replace(previous, source);
+            usernameMap.put(source.username, source);
+            sessions.put(token, source);
+            Main.logger.log(HexmapLogger.INFO, "Resumed session of: " + source.username + ", resent "
+                    + missed.size() + " messages");
+            stats.recordSessionResumed(missed.size());
+        }
+    }
+
+
     /**
      * Nicely close the server and exit with a given status
      *
@@ -657,18 +1292,49 @@ public class Server {
 
         Main.logger.log(HexmapLogger.INFO, "closing server, goodbye");
 
-        //safely close all listeners
+        //close all listeners at once, then give them a moment to send what they have queued
+        ArrayList<ConnectionHandler> listeners;
         synchronized (listenerThreads) {
-            while (listenerThreads.size() > 0) {
-                closeListener(listenerThreads.get(0), "server closing");
+            listeners = new ArrayList<>(listenerThreads);
+        }
+        CompletableFuture<?>[] closes = new CompletableFuture<?>[listeners.size()];
+        for (int i = 0; i < closes.length; i++) {
+            closes[i] = closeListener(listeners.get(i), "server closing");
+        }
+        try {
+            CompletableFuture.allOf(closes).get(CLOSE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        catch (TimeoutException e) {
+            //clients that aren't reading are cut off, their connections still finish closing
+            for (ConnectionHandler listener : listeners) {
+                if (!listener.isClosed) {
+                    Main.logger.log(HexmapLogger.INFO, "Cutting off client that did not close in time: " + listener.username);
+                    listener.abort();
+                }
             }
         }
+        catch (InterruptedException | ExecutionException e) {
+            Main.logger.log(HexmapLogger.ERROR, "Error waiting for listeners to close: " + HexmapLogger.getStackTraceString(e));
+        }
 
-        try {
-            serverService.close();
+        permissionStore.close();
+
+        //a last snapshot makes the next start quick
+        if(boardStore != null) {
+            snapshotBoard();
+            boardStore.close();
         }
-        catch (IOException e) {
-            Main.logger.log(HexmapLogger.SEVERE, HexmapLogger.getStackTraceString(e));
+
+        if(nioTransport != null) {
+            nioTransport.close();
+        }
+        else {
+            try {
+                serverService.close();
+            }
+            catch (IOException e) {
+                Main.logger.log(HexmapLogger.SEVERE, HexmapLogger.getStackTraceString(e));
+            }
         }
 
     }
@@ -683,6 +1349,10 @@ public class Server {
         return commands.get(name);
     }
 
+    public boolean isClosing() {
+        return closing;
+    }
+
     public Random getRandom() {
         return rand;
     }
@@ -691,6 +1361,9 @@ public class Server {
         synchronized (boardLock) {
             this.x = x;
             this.y = y;
+            if (boardStore != null) {
+                boardStore.logSize(x, y);
+            }
         }
     }
 
@@ -710,7 +1383,11 @@ public class Server {
         return permissions;
     }
 
-    public HashSet<PermissionBase> getGroupPermissions(String groupName) {
-        return permissionGroups.get(groupName);
+    public BitSet getGroupPermissions(String groupName) {
+        return permissionStore.getGroup(groupName);
+    }
+
+    public PermissionStore getPermissionStore() {
+        return permissionStore;
     }
 }
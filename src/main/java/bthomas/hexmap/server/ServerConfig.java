@@ -0,0 +1,310 @@
+package bthomas.hexmap.server;
+
+import bthomas.hexmap.Main;
+import bthomas.hexmap.logging.HexmapLogger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+
+/**
+ Settings for a Hexmap server, loaded from a properties file in the working directory.
+ <p>
+ Every setting has a default, so a missing file or a missing/malformed key simply leaves that setting at its default.
+
+ @author Brendan Thomas
+ @since 2019-03-20 */
+public class ServerConfig
+{
+    /**
+     The ways the server can handle its client connections
+     */
+    public enum TransportMode
+    {
+        //a sender and a listener thread per client
+        BLOCKING,
+        //a small fixed pool of selector threads shared by all clients
+        NIO
+    }
+
+    /**
+     How to keep a client that falls behind from filling its send queue. Each policy also does everything the ones
+     before it do, and disconnects the client if its queue fills anyway.
+     */
+    public enum OverflowPolicy
+    {
+        //disconnect the client straight away
+        DISCONNECT,
+        //merge each move into a waiting move of the same unit
+        COALESCE,
+        //throw away queued chat and pings, oldest first
+        DROP
+    }
+
+    /**
+     The least important messages that are written to the log
+     */
+    public enum LogLevel
+    {
+        DEBUG(HexmapLogger.DEBUG),
+        INFO(HexmapLogger.INFO),
+        ERROR(HexmapLogger.ERROR),
+        SEVERE(HexmapLogger.SEVERE);
+
+        public final String level;
+
+        LogLevel(String level)
+        {
+            this.level = level;
+        }
+    }
+
+    private static final String transportKey = "transport";
+    public final TransportMode transport;
+
+    private static final String nioThreadsKey = "nio.threads";
+    public final int nioThreads;
+
+    private static final String binaryWireKey = "wire.binary";
+    public final boolean binaryWire;
+
+    private static final String compressionKey = "wire.compression";
+    public final boolean compression;
+
+    private static final String compressionThresholdKey = "wire.compressionThreshold";
+    public final int compressionThreshold;
+
+    private static final String compressionLevelKey = "wire.compressionLevel";
+    public final int compressionLevel;
+
+    private static final String batchMessagesKey = "batch.maxMessages";
+    public final int batchMaxMessages;
+
+    private static final String batchBytesKey = "batch.maxBytes";
+    public final int batchMaxBytes;
+
+    private static final String batchLingerKey = "batch.lingerMicros";
+    public final int batchLingerMicros;
+
+    private static final String sendQueueMessagesKey = "sendQueue.maxMessages";
+    public final int sendQueueMaxMessages;
+
+    private static final String sendQueueBytesKey = "sendQueue.maxBytes";
+    public final int sendQueueMaxBytes;
+
+    private static final String overflowPolicyKey = "sendQueue.policy";
+    public final OverflowPolicy overflowPolicy;
+
+    //board changes per second sent as one diff per client, or 0 to send each change as it happens
+    private static final String tickRateKey = "tick.rate";
+    public final int tickRate;
+
+    //how long a client that lost its connection can take to resume its session, or 0 to close it straight away
+    private static final String sessionGraceKey = "session.graceSeconds";
+    public final int sessionGraceSeconds;
+
+    //how much of what was sent to a client is kept for it to resume with
+    private static final String sessionReplayMessagesKey = "session.replayMessages";
+    public final int sessionReplayMessages;
+
+    private static final String sessionReplayBytesKey = "session.replayBytes";
+    public final int sessionReplayBytes;
+
+    //how long a client can be silent before it is pinged, and how long it then has to answer before it times out
+    private static final String idleKey = "keepalive.idleSeconds";
+    public final int keepaliveIdleSeconds;
+
+    private static final String idleTimeoutKey = "keepalive.timeoutSeconds";
+    public final int keepaliveTimeoutSeconds;
+
+    //the most connections the server keeps at once, and the most of them that may not have logged in yet
+    private static final String maxConnectionsKey = "admission.maxConnections";
+    public final int admissionMaxConnections;
+
+    private static final String maxHandshakesKey = "admission.maxHandshakes";
+    public final int admissionMaxHandshakes;
+
+    //connections accepted per second from one address, or 0 for no limit, and how many it may open at once
+    //how long an accepted client has to log in or resume before it is closed, however much else it sends
+    private static final String handshakeTimeoutKey = "admission.handshakeSeconds";
+    public final int admissionHandshakeSeconds;
+
+    private static final String ipRateKey = "admission.ipRate";
+    public final int admissionIpRate;
+
+    private static final String ipBurstKey = "admission.ipBurst";
+    public final int admissionIpBurst;
+
+    //whether the board is saved to disk, and how many changes are logged before it is compacted into a new snapshot
+    private static final String boardPersistKey = "board.persist";
+    public final boolean boardPersist;
+
+    private static final String boardSnapshotKey = "board.snapshotChanges";
+    public final int boardSnapshotChanges;
+
+    //messages below this level are thrown away without being formatted
+    private static final String logLevelKey = "log.level";
+    public final LogLevel logLevel;
+
+    //how many messages can wait for the log writer thread, or 0 to write each one on the thread that logs it
+    private static final String logBufferKey = "log.bufferSize";
+    public final int logBufferSize;
+
+    private static final String logFullKey = "log.whenFull";
+    public final HexmapLogger.FullPolicy logFullPolicy;
+
+    //the log is rotated once it reaches this size or 0 for no limit, and when a new day starts, keeping this many old
+    //logs or 0 to keep them all
+    private static final String logRotateSizeKey = "log.rotateMegabytes";
+    public final int logRotateMegabytes;
+
+    private static final String logRotateDailyKey = "log.rotateDaily";
+    public final boolean logRotateDaily;
+
+    private static final String logKeepKey = "log.keepArchives";
+    public final int logKeepArchives;
+
+    /**
+     Creates a config with all default settings
+     */
+    public ServerConfig()
+    {
+        this(new Properties());
+    }
+
+    /**
+     Creates a config from a set of loaded properties
+
+     @param properties
+     The properties to read settings from
+     */
+    public ServerConfig(Properties properties)
+    {
+        transport = getEnum(properties, transportKey, TransportMode.BLOCKING);
+        nioThreads = getInt(properties, nioThreadsKey, 2, 1, 64);
+        binaryWire = getBoolean(properties, binaryWireKey, true);
+        compression = getBoolean(properties, compressionKey, true);
+        compressionThreshold = getInt(properties, compressionThresholdKey, 512, 0, 1024 * 1024);
+        compressionLevel = getInt(properties, compressionLevelKey, 1, 1, 9);
+        batchMaxMessages = getInt(properties, batchMessagesKey, 64, 1, 4096);
+        batchMaxBytes = getInt(properties, batchBytesKey, 64 * 1024, 1024, 1024 * 1024);
+        batchLingerMicros = getInt(properties, batchLingerKey, 0, 0, 100_000);
+        sendQueueMaxMessages = getInt(properties, sendQueueMessagesKey, 8192, 16, 1_000_000);
+        sendQueueMaxBytes = getInt(properties, sendQueueBytesKey, 8 * 1024 * 1024, 64 * 1024, 1024 * 1024 * 1024);
+        overflowPolicy = getEnum(properties, overflowPolicyKey, OverflowPolicy.COALESCE);
+        tickRate = getInt(properties, tickRateKey, 0, 0, 100);
+        sessionGraceSeconds = getInt(properties, sessionGraceKey, 30, 0, 3600);
+        sessionReplayMessages = getInt(properties, sessionReplayMessagesKey, 4096, 16, 1_000_000);
+        sessionReplayBytes = getInt(properties, sessionReplayBytesKey, 4 * 1024 * 1024, 64 * 1024, 1024 * 1024 * 1024);
+        keepaliveIdleSeconds = getInt(properties, idleKey, 15, 1, 3600);
+        keepaliveTimeoutSeconds = getInt(properties, idleTimeoutKey, 15, 1, 3600);
+        admissionMaxConnections = getInt(properties, maxConnectionsKey, 1024, 1, 1_000_000);
+        admissionMaxHandshakes = getInt(properties, maxHandshakesKey, 64, 1, 1_000_000);
+        admissionHandshakeSeconds = getInt(properties, handshakeTimeoutKey, 10, 1, 3600);
+        admissionIpRate = getInt(properties, ipRateKey, 10, 0, 100_000);
+        admissionIpBurst = getInt(properties, ipBurstKey, 20, 1, 100_000);
+        boardPersist = getBoolean(properties, boardPersistKey, true);
+        boardSnapshotChanges = getInt(properties, boardSnapshotKey, 100_000, 1000, 100_000_000);
+        logLevel = getEnum(properties, logLevelKey, LogLevel.DEBUG);
+        logBufferSize = getInt(properties, logBufferKey, 8192, 0, 1 << 24);
+        logFullPolicy = getEnum(properties, logFullKey, HexmapLogger.FullPolicy.DROP);
+        logRotateMegabytes = getInt(properties, logRotateSizeKey, 64, 0, 1024 * 1024);
+        logRotateDaily = getBoolean(properties, logRotateDailyKey, true);
+        logKeepArchives = getInt(properties, logKeepKey, 30, 0, 100_000);
+    }
+
+    /**
+     Loads the server settings from a file, using defaults if the file does not exist
+
+     @param file
+     The properties file to load
+
+     @return The loaded config
+     */
+    public static ServerConfig load(Path file)
+    {
+        Properties properties = new Properties();
+        if(Files.exists(file))
+        {
+            try(InputStream input = Files.newInputStream(file))
+            {
+                properties.load(input);
+            }
+            catch(IOException e)
+            {
+                Main.logger.log(HexmapLogger.ERROR, "Error reading server settings, using defaults: "
+                        + HexmapLogger.getStackTraceString(e));
+            }
+        }
+        return new ServerConfig(properties);
+    }
+
+    private static int getInt(Properties properties, String key, int defaultValue, int min, int max)
+    {
+        String value = properties.getProperty(key);
+        if(value == null)
+        {
+            return defaultValue;
+        }
+
+        try
+        {
+            int res = Integer.parseInt(value.trim());
+            if(res >= min && res <= max)
+            {
+                return res;
+            }
+        }
+        catch(NumberFormatException e)
+        {
+            //fall through to the warning
+        }
+        Main.logger.log(HexmapLogger.ERROR, "Invalid value for server setting " + key + ": " + value
+                + ", using " + defaultValue);
+        return defaultValue;
+    }
+
+    private static boolean getBoolean(Properties properties, String key, boolean defaultValue)
+    {
+        String value = properties.getProperty(key);
+        if(value == null)
+        {
+            return defaultValue;
+        }
+
+        value = value.trim();
+        if(value.equalsIgnoreCase("true"))
+        {
+            return true;
+        }
+        if(value.equalsIgnoreCase("false"))
+        {
+            return false;
+        }
+        Main.logger.log(HexmapLogger.ERROR, "Invalid value for server setting " + key + ": " + value
+                + ", using " + defaultValue);
+        return defaultValue;
+    }
+
+    private static <T extends Enum<T>> T getEnum(Properties properties, String key, T defaultValue)
+    {
+        String value = properties.getProperty(key);
+        if(value == null)
+        {
+            return defaultValue;
+        }
+
+        try
+        {
+            return Enum.valueOf(defaultValue.getDeclaringClass(), value.trim().toUpperCase());
+        }
+        catch(IllegalArgumentException e)
+        {
+            Main.logger.log(HexmapLogger.ERROR, "Invalid value for server setting " + key + ": " + value
+                    + ", using " + defaultValue);
+            return defaultValue;
+        }
+    }
+}
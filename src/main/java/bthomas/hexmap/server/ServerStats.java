@@ -0,0 +1,399 @@
+package bthomas.hexmap.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ Counters for the traffic a server has handled, shown with the /stats console command.
+ <p>
+ Counters are updated by many connection threads at once, so they only ever grow and are read without locking. A
+ report may be slightly out of step between counters.
+
+ @author Brendan Thomas
+ @since 2019-03-27 */
+public class ServerStats
+{
+    //upper bounds of the batch size histogram buckets, the last bucket holds everything larger
+    private static final int[] BATCH_BUCKETS = {1, 4, 16, 64};
+
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder batchedMessages = new LongAdder();
+    private final LongAdder batchedBytes = new LongAdder();
+    private final AtomicLong largestBatch = new AtomicLong();
+    private final LongAdder[] batchHistogram = new LongAdder[BATCH_BUCKETS.length + 1];
+
+    private final LongAdder compressedBatches = new LongAdder();
+    private final LongAdder compressionInput = new LongAdder();
+    private final LongAdder compressionOutput = new LongAdder();
+
+    private final LongAdder unitEvents = new LongAdder();
+    private final LongAdder unitEventRecipients = new LongAdder();
+    private final LongAdder unitEventConnections = new LongAdder();
+    private final LongAdder enterEvents = new LongAdder();
+    private final LongAdder ticks = new LongAdder();
+    private final LongAdder tickChanges = new LongAdder();
+    private final LongAdder tickDiffs = new LongAdder();
+    private final LongAdder supersededMoves = new LongAdder();
+    private final LongAdder coalescedMoves = new LongAdder();
+    private final LongAdder droppedMessages = new LongAdder();
+    private final LongAdder slowDisconnects = new LongAdder();
+    private final LongAdder idlePings = new LongAdder();
+    private final LongAdder skippedPings = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder suspendedSessions = new LongAdder();
+    private final LongAdder resumedSessions = new LongAdder();
+    private final LongAdder replayedMessages = new LongAdder();
+    private final LongAdder refusedResumes = new LongAdder();
+    private final LongAdder expiredSessions = new LongAdder();
+    private final LongAdder boardCommits = new LongAdder();
+    private final LongAdder boardLogBytes = new LongAdder();
+    private final LongAdder boardSnapshots = new LongAdder();
+    private final AtomicLong lastSnapshotUnits = new AtomicLong();
+    private final AtomicLong lastSnapshotMillis = new AtomicLong();
+    private final LongAdder admitted = new LongAdder();
+    private final LongAdder[] refused = new LongAdder[AdmissionControl.Refusal.values().length];
+    private final LongAdder handshakeTimeouts = new LongAdder();
+    private final AtomicLong peakQueueMessages = new AtomicLong();
+    private final AtomicLong peakQueueBytes = new AtomicLong();
+
+    public ServerStats()
+    {
+        for(int i = 0; i < batchHistogram.length; i++)
+        {
+            batchHistogram[i] = new LongAdder();
+        }
+        for(int i = 0; i < refused.length; i++)
+        {
+            refused[i] = new LongAdder();
+        }
+    }
+
+    /**
+     Records one flush of a connection's output
+
+     @param messages
+     The number of messages written in the batch
+     @param bytes
+     The number of bytes written in the batch
+     */
+    public void recordBatch(int messages, int bytes)
+    {
+        batches.increment();
+        batchedMessages.add(messages);
+        batchedBytes.add(bytes);
+        largestBatch.accumulateAndGet(messages, Math::max);
+
+        int bucket = 0;
+        while(bucket < BATCH_BUCKETS.length && messages > BATCH_BUCKETS[bucket])
+        {
+            bucket++;
+        }
+        batchHistogram[bucket].increment();
+    }
+
+    /**
+     Records one batch sent as a compressed block
+
+     @param bytes
+     The size of the batch before compression
+     @param compressedBytes
+     The size of the block actually sent
+     */
+    public void recordCompression(int bytes, int compressedBytes)
+    {
+        compressedBatches.increment();
+        compressionInput.add(bytes);
+        compressionOutput.add(compressedBytes);
+    }
+
+    /**
+     Records the depth of a send queue after a frame was added, keeping the deepest seen
+
+     @param messages
+     The number of frames in the queue
+     @param bytes
+     The number of bytes in the queue
+     */
+    public void recordQueueDepth(int messages, long bytes)
+    {
+        //checked first so the common case of a shallow queue never writes to the shared counter
+        if(messages > peakQueueMessages.get())
+        {
+            peakQueueMessages.accumulateAndGet(messages, Math::max);
+        }
+        if(bytes > peakQueueBytes.get())
+        {
+            peakQueueBytes.accumulateAndGet(bytes, Math::max);
+        }
+    }
+
+    /**
+     Records a unit event sent only to the connections that can see it
+
+     @param recipients
+     The number of connections the event was sent to
+     @param connections
+     The number of connections it would have been sent to without filtering
+     */
+    public void recordUnitEvent(int recipients, int connections)
+    {
+        unitEvents.increment();
+        unitEventRecipients.add(recipients);
+        unitEventConnections.add(connections);
+    }
+
+    /**
+     Records units sent to clients as new because they came into view
+
+     @param units
+     The number of units sent
+     */
+    public void recordEnterEvents(int units)
+    {
+        enterEvents.add(units);
+    }
+
+    /**
+     Records one server tick that had board changes to send
+
+     @param changes
+     The number of units moved or added during the tick
+     @param diffs
+     The number of clients sent a diff
+     */
+    public void recordTick(int changes, int diffs)
+    {
+        ticks.increment();
+        tickChanges.add(changes);
+        tickDiffs.add(diffs);
+    }
+
+    /**
+     Records received moves that were never applied because a later move of the same unit arrived with them
+
+     @param messages
+     The number of moves skipped
+     */
+    public void recordSupersededMoves(int messages)
+    {
+        supersededMoves.add(messages);
+    }
+
+    /**
+     Records moves that were merged into a move of the same unit still waiting in a send queue
+
+     @param messages
+     The number of moves that were merged away
+     */
+    public void recordCoalesced(int messages)
+    {
+        coalescedMoves.add(messages);
+    }
+
+    /**
+     Records messages thrown away instead of being sent to a slow client
+
+     @param messages
+     The number of messages dropped
+     */
+    public void recordDropped(int messages)
+    {
+        droppedMessages.add(messages);
+    }
+
+    /**
+     Records a client disconnected for falling too far behind
+     */
+    public void recordSlowDisconnect()
+    {
+        slowDisconnects.increment();
+    }
+
+    /**
+     Records one tick of the server's idle wheel
+
+     @param pings
+     The number of quiet clients pinged
+     @param skipped
+     The number of clients due a ping that did not need one, because they were heard from recently
+     @param timedOut
+     The number of clients that timed out
+     */
+    public void recordKeepalive(int pings, int skipped, int timedOut)
+    {
+        idlePings.add(pings);
+        skippedPings.add(skipped);
+        timeouts.add(timedOut);
+    }
+
+    /**
+     Records a lost connection whose session is kept for the client to resume
+     */
+    public void recordSessionSuspended()
+    {
+        suspendedSessions.increment();
+    }
+
+    /**
+     Records a session resumed on a new connection
+
+     @param replayed
+     The number of messages resent because the client missed them
+     */
+    public void recordSessionResumed(int replayed)
+    {
+        resumedSessions.increment();
+        replayedMessages.add(replayed);
+    }
+
+    /**
+     Records a resume that was refused, because the session was gone or had forgotten some of what the client missed
+     */
+    public void recordSessionRefused()
+    {
+        refusedResumes.increment();
+    }
+
+    /**
+     Records a session that ended because its client did not resume it in time
+     */
+    public void recordSessionExpired()
+    {
+        expiredSessions.increment();
+    }
+
+    /**
+     Records one block of board changes written to the log and forced to disk
+
+     @param bytes
+     The size of the block's changes
+     */
+    public void recordBoardCommit(int bytes)
+    {
+        boardCommits.increment();
+        boardLogBytes.add(bytes);
+    }
+
+    /**
+     Records a snapshot of the board written to disk
+
+     @param units
+     The number of units on the board
+     @param millis
+     How long writing it took
+     */
+    public void recordBoardSnapshot(int units, long millis)
+    {
+        boardSnapshots.increment();
+        lastSnapshotUnits.set(units);
+        lastSnapshotMillis.set(millis);
+    }
+
+    /**
+     Records a newly accepted connection that the server took on
+     */
+    public void recordAdmitted()
+    {
+        admitted.increment();
+    }
+
+    /**
+     Records a connection that was closed for not logging in or resuming in time
+     */
+    public void recordHandshakeTimeout()
+    {
+        handshakeTimeouts.increment();
+    }
+
+    /**
+     Records a newly accepted connection that was closed straight away
+
+     @param reason
+     Why it was refused
+     */
+    public void recordRefused(AdmissionControl.Refusal reason)
+    {
+        refused[reason.ordinal()].increment();
+    }
+
+    /**
+     Builds a readable summary of all counters
+
+     @param connections
+     The currently open connections, to show how deep their send queues are right now
+
+     @return The summary, one counter group per line
+     */
+    public String report(ConnectionHandler[] connections)
+    {
+        StringBuilder res = new StringBuilder("Server stats:");
+
+        long batchCount = batches.sum();
+        long messageCount = batchedMessages.sum();
+        res.append(String.format("%n  send batches: %d, messages: %d, bytes: %d, average: %.2f messages, largest: %d",
+                batchCount, messageCount, batchedBytes.sum(),
+                batchCount == 0 ? 0.0 : (double) messageCount / batchCount, largestBatch.get()));
+
+        res.append(String.format("%n  batch sizes:"));
+        for(int i = 0; i < batchHistogram.length; i++)
+        {
+            String label;
+            if(i == 0)
+            {
+                label = "1";
+            }
+            else if(i < BATCH_BUCKETS.length)
+            {
+                label = (BATCH_BUCKETS[i - 1] + 1) + "-" + BATCH_BUCKETS[i];
+            }
+            else
+            {
+                label = (BATCH_BUCKETS[i - 1] + 1) + "+";
+            }
+            res.append(' ').append(label).append(": ").append(batchHistogram[i].sum());
+        }
+
+        long compressedIn = compressionInput.sum();
+        long compressedOut = compressionOutput.sum();
+        res.append(String.format("%n  compression: batches: %d, bytes in: %d, bytes out: %d, ratio: %.2f",
+                compressedBatches.sum(), compressedIn, compressedOut,
+                compressedOut == 0 ? 0.0 : (double) compressedIn / compressedOut));
+
+        ConnectionHandler deepest = null;
+        int deepestMessages = 0;
+        for(ConnectionHandler connection : connections)
+        {
+            int depth = connection.getQueuedMessages();
+            if(deepest == null || depth > deepestMessages)
+            {
+                deepest = connection;
+                deepestMessages = depth;
+            }
+        }
+        res.append(String.format("%n  send queues: deepest now: %s, peak: %d messages, %d bytes",
+                deepest == null ? "none" : deepestMessages + " messages (" + deepest.username + ")",
+                peakQueueMessages.get(), peakQueueBytes.get()));
+        res.append(String.format("%n  interest filtering: unit events: %d, sent to %d of %d connections, enter events: %d",
+                unitEvents.sum(), unitEventRecipients.sum(), unitEventConnections.sum(), enterEvents.sum()));
+        res.append(String.format("%n  ticks: %d, units changed: %d, diffs sent: %d",
+                ticks.sum(), tickChanges.sum(), tickDiffs.sum()));
+        res.append(String.format("%n  move coalescing: skipped on arrival: %d, merged in send queues: %d",
+                supersededMoves.sum(), coalescedMoves.sum()));
+        res.append(String.format("%n  slow clients: dropped messages: %d, disconnected: %d",
+                droppedMessages.sum(), slowDisconnects.sum()));
+        res.append(String.format("%n  keepalive: pings sent: %d, skipped for recent traffic: %d, timed out: %d",
+                idlePings.sum(), skippedPings.sum(), timeouts.sum()));
+        res.append(String.format("%n  sessions: suspended: %d, resumed: %d, messages replayed: %d, refused: %d, expired: %d",
+                suspendedSessions.sum(), resumedSessions.sum(), replayedMessages.sum(), refusedResumes.sum(),
+                expiredSessions.sum()));
+        res.append(String.format("%n  board log: commits: %d, bytes: %d, snapshots: %d, last: %d units in %d ms",
+                boardCommits.sum(), boardLogBytes.sum(), boardSnapshots.sum(), lastSnapshotUnits.get(),
+                lastSnapshotMillis.get()));
+        res.append(String.format("%n  admission: admitted: %d, refused for connections: %d, handshakes: %d, rate: %d, "
+                        + "handshake timeouts: %d",
+                admitted.sum(), refused[AdmissionControl.Refusal.CONNECTIONS.ordinal()].sum(),
+                refused[AdmissionControl.Refusal.HANDSHAKES.ordinal()].sum(),
+                refused[AdmissionControl.Refusal.RATE.ordinal()].sum(), handshakeTimeouts.sum()));
+        return res.toString();
+    }
+}
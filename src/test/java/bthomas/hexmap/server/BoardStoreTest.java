@@ -0,0 +1,389 @@
+package bthomas.hexmap.server;
+
+import bthomas.hexmap.Main;
+import bthomas.hexmap.common.Unit;
+import bthomas.hexmap.logging.HexmapLogger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.awt.Color;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ Checks that {@link BoardStore} restores exactly the changes that were confirmed written, after a clean stop and after
+ the crashes it is meant to survive.
+
+ @author Brendan Thomas
+ @since 2019-04-09 */
+public class BoardStoreTest
+{
+    private static final long COMMIT_TIMEOUT_MILLIS = 5000;
+
+    @ClassRule
+    public static final TemporaryFolder logFolder = new TemporaryFolder();
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private Path directory;
+    //what the board should be, by UID, kept like the server's board so snapshots can copy it
+    private final TreeMap<Integer, Unit> board = new TreeMap<>();
+    private int width = -1;
+    private int height = -1;
+    private BoardStore store;
+    //blocks the current store has written to its log
+    private final AtomicInteger commits = new AtomicInteger();
+
+    @BeforeClass
+    public static void setUpLogger() throws IOException
+    {
+        Main.logger = new HexmapLogger(logFolder.newFolder().toPath().resolve("test").toString(), false);
+    }
+
+    @Before
+    public void setUp()
+    {
+        directory = folder.getRoot().toPath().resolve("board");
+    }
+
+    @After
+    public void tearDown()
+    {
+        if(store != null)
+        {
+            store.close();
+        }
+    }
+
+    @Test
+    public void nothingSavedLoadsNothing() throws IOException
+    {
+        assertNull(newStore(100_000).load());
+    }
+
+    @Test
+    public void restoresChangesAcrossRestarts() throws Exception
+    {
+        run(100_000, s -> {
+            add(s, 1, "a", 0, 0);
+            add(s, 2, "b", 3, 4);
+            size(s, 20, 30);
+        });
+        //each restart replays into a new snapshot and carries on in a log of the next generation
+        run(100_000, s -> {
+            move(s, 1, 5, 6);
+            add(s, 3, "c", 7, 8);
+        });
+        run(100_000, s -> move(s, 2, 9, 9));
+
+        assertRestored();
+    }
+
+    @Test
+    public void restoresChangesAcrossSnapshotsTakenWhileRunning() throws Exception
+    {
+        //a snapshot is asked for every few changes, so several are taken and the logs before each deleted
+        run(5, s -> {
+            for(int i = 0; i < 40; i++)
+            {
+                if(i % 3 == 0)
+                {
+                    add(s, i, "unit" + i, i % 10, i / 10);
+                }
+                else
+                {
+                    move(s, (i / 3) * 3, i % 7, i % 5);
+                }
+            }
+        });
+
+        assertRestored();
+        assertTrue("old logs were not deleted", logs().size() <= 2);
+    }
+
+    @Test
+    public void ignoresTornFinalBlock() throws Exception
+    {
+        run(100_000, s -> add(s, 1, "kept", 1, 1));
+        TreeMap<Integer, String> beforeLast = new TreeMap<>();
+        run(100_000, s -> {
+            add(s, 2, "also kept", 2, 2);
+            awaitCommits(1);
+            beforeLast.putAll(describe(board.values()));
+            add(s, 3, "torn", 3, 3);
+            awaitCommits(2);
+        });
+
+        //the crash happened part way through writing the last block
+        Path log = latestLog();
+        truncate(log, Files.size(log) - 3);
+
+        assertEquals(beforeLast, describe(load().units));
+    }
+
+    @Test
+    public void stopsReplayAtBadChecksum() throws Exception
+    {
+        run(100_000, s -> add(s, 1, "kept", 1, 1));
+        TreeMap<Integer, String> beforeLog = describe(board.values());
+        run(100_000, s -> {
+            add(s, 2, "damaged", 2, 2);
+            awaitCommits(1);
+            add(s, 3, "after damage", 3, 3);
+            awaitCommits(2);
+        });
+
+        //a byte of the first block's records is changed, so that block and everything after it is untrusted
+        flipByte(latestLog(), 3);
+
+        assertEquals(beforeLog, describe(load().units));
+    }
+
+    @Test
+    public void recoversFromKillDuringSnapshot() throws Exception
+    {
+        run(100_000, s -> add(s, 1, "a", 1, 1));
+        run(100_000, s -> add(s, 2, "b", 2, 2));
+        //the old snapshot and the log of changes made after it
+        Path before = copyOf(directory);
+
+        run(100_000, s -> add(s, 3, "c", 3, 3));
+
+        //a snapshot was being written when the server died: the writer had already opened the next log and put changes
+        //in it, but the new snapshot never replaced the old one
+        Path crashed = folder.newFolder().toPath();
+        copyDirectory(before, crashed);
+        Files.copy(latestLog(), crashed.resolve(latestLog().getFileName()));
+        Files.write(crashed.resolve("snapshot.dat.tmp"), new byte[]{1, 2, 3});
+        directory = crashed;
+
+        assertRestored();
+    }
+
+    @Test
+    public void recoversFromKillBeforeOldLogsDeleted() throws Exception
+    {
+        run(100_000, s -> add(s, 1, "a", 1, 1));
+        Path before = copyOf(directory);
+        run(100_000, s -> move(s, 1, 4, 4));
+
+        //the new snapshot is in place, but the logs it replaced were not deleted yet
+        for(Path log : logsIn(before))
+        {
+            if(!Files.exists(directory.resolve(log.getFileName())))
+            {
+                Files.copy(log, directory.resolve(log.getFileName()));
+            }
+        }
+
+        assertRestored();
+    }
+
+    //================================================================================================================
+
+    private BoardStore newStore(int snapshotRecords)
+    {
+        commits.set(0);
+        ServerStats stats = new ServerStats()
+        {
+            @Override
+            public void recordBoardCommit(int bytes)
+            {
+                super.recordBoardCommit(bytes);
+                commits.incrementAndGet();
+            }
+        };
+        BoardStore res = new BoardStore(stats, () -> {
+            synchronized(board)
+            {
+                ArrayList<Unit> copy = new ArrayList<>();
+                for(Unit u : board.values())
+                {
+                    copy.add(new Unit(u.name, u.locX, u.locY, u.UID, u.color));
+                }
+                store.logSnapshot(copy, width, height);
+            }
+        }, directory, snapshotRecords);
+        store = res;
+        return res;
+    }
+
+    /**
+     Loads the saved board into the expected board, makes some changes and stops cleanly
+     */
+    private void run(int snapshotRecords, Consumer<BoardStore> changes) throws IOException
+    {
+        BoardStore s = newStore(snapshotRecords);
+        BoardStore.Board loaded = s.load();
+        if(loaded != null)
+        {
+            assertEquals(describe(board.values()), describe(loaded.units));
+        }
+        s.start();
+        changes.accept(s);
+        s.close();
+        store = null;
+    }
+
+    private BoardStore.Board load() throws IOException
+    {
+        BoardStore.Board res = newStore(100_000).load();
+        store = null;
+        assertNotNull(res);
+        return res;
+    }
+
+    private void assertRestored() throws IOException
+    {
+        BoardStore.Board loaded = load();
+        assertEquals(describe(board.values()), describe(loaded.units));
+        assertEquals(width, loaded.width);
+        assertEquals(height, loaded.height);
+    }
+
+    private void add(BoardStore s, int uid, String name, int x, int y)
+    {
+        synchronized(board)
+        {
+            Unit u = new Unit(name, x, y, uid, Color.RED);
+            board.put(uid, u);
+            s.logAdd(u);
+        }
+    }
+
+    private void move(BoardStore s, int uid, int x, int y)
+    {
+        synchronized(board)
+        {
+            Unit u = board.get(uid);
+            u.locX = x;
+            u.locY = y;
+            s.logMove(uid, x, y);
+        }
+    }
+
+    private void size(BoardStore s, int newWidth, int newHeight)
+    {
+        synchronized(board)
+        {
+            width = newWidth;
+            height = newHeight;
+            s.logSize(newWidth, newHeight);
+        }
+    }
+
+    private static TreeMap<Integer, String> describe(Iterable<Unit> units)
+    {
+        TreeMap<Integer, String> res = new TreeMap<>();
+        for(Unit u : units)
+        {
+            res.put(u.UID, u.name + " at " + u.locX + ", " + u.locY + " " + u.color.getRGB());
+        }
+        return res;
+    }
+
+    /**
+     Waits until the current store has written a number of blocks, so the changes made so far are in one of them
+     */
+    private void awaitCommits(int count)
+    {
+        long deadline = System.currentTimeMillis() + COMMIT_TIMEOUT_MILLIS;
+        while(commits.get() < count)
+        {
+            assertTrue("changes were not committed in time", System.currentTimeMillis() < deadline);
+            try
+            {
+                Thread.sleep(5);
+            }
+            catch(InterruptedException e)
+            {
+                throw new AssertionError(e);
+            }
+        }
+    }
+
+    private Path latestLog() throws IOException
+    {
+        ArrayList<Path> logs = logs();
+        assertTrue("no board log", !logs.isEmpty());
+        return logs.get(logs.size() - 1);
+    }
+
+    private ArrayList<Path> logs() throws IOException
+    {
+        return logsIn(directory);
+    }
+
+    /**
+     @return The logs in a directory, oldest generation first
+     */
+    private static ArrayList<Path> logsIn(Path dir) throws IOException
+    {
+        TreeMap<Long, Path> logs = new TreeMap<>();
+        try(DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "log-*.wal"))
+        {
+            for(Path path : stream)
+            {
+                String name = path.getFileName().toString();
+                logs.put(Long.parseLong(name.substring("log-".length(), name.length() - ".wal".length())), path);
+            }
+        }
+        return new ArrayList<>(logs.values());
+    }
+
+    private Path copyOf(Path dir) throws IOException
+    {
+        Path res = folder.newFolder().toPath();
+        copyDirectory(dir, res);
+        return res;
+    }
+
+    private static void copyDirectory(Path from, Path to) throws IOException
+    {
+        try(DirectoryStream<Path> stream = Files.newDirectoryStream(from))
+        {
+            for(Path path : stream)
+            {
+                Files.copy(path, to.resolve(path.getFileName()), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+    }
+
+    private static void truncate(Path file, long length) throws IOException
+    {
+        try(RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw"))
+        {
+            raf.setLength(length);
+        }
+    }
+
+    private static void flipByte(Path file, long position) throws IOException
+    {
+        try(RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw"))
+        {
+            raf.seek(position);
+            int b = raf.read();
+            raf.seek(position);
+            raf.write(b ^ 0xFF);
+        }
+    }
+}